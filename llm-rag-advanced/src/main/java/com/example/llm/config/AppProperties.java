@@ -3,6 +3,13 @@ package com.example.llm.config;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Configuration
 @ConfigurationProperties(prefix = "app")
@@ -13,9 +20,14 @@ public class AppProperties {
     private OpenAiProperties openai = new OpenAiProperties();
     private OllamaProperties ollama = new OllamaProperties();
     private RagProperties rag = new RagProperties();
+    private IngestProperties ingest = new IngestProperties();
     private SecurityProperties security = new SecurityProperties();
     private RateLimitProperties rateLimit = new RateLimitProperties();
     private ToolsProperties tools = new ToolsProperties();
+    private TokenizerProperties tokenizer = new TokenizerProperties();
+    private HttpClientProperties http = new HttpClientProperties();
+    private RoutingProperties routing = new RoutingProperties();
+    private ChatProperties chat = new ChatProperties();
     
     @Data
     public static class OpenAiProperties {
@@ -25,6 +37,9 @@ public class AppProperties {
         private String embeddingModel;
         private Double temperature;
         private Integer maxTokens;
+        private Integer contextWindow;
+        private HttpClientProperties http = new HttpClientProperties();
+        private ProviderRateLimitProperties rateLimit = new ProviderRateLimitProperties();
     }
     
     @Data
@@ -34,15 +49,101 @@ public class AppProperties {
         private String embeddingModel;
         private Double temperature;
         private Integer maxTokens;
+        private Integer contextWindow;
+        private HttpClientProperties http = new HttpClientProperties();
     }
     
     @Data
     public static class RagProperties {
         private Integer topK;
-        private Integer maxContextChars;
-        private Integer chunkSize;
-        private Integer chunkOverlap;
+        private Integer maxContextTokens;
+        private Integer chunkTokens;
+        private Integer chunkOverlapTokens;
         private String systemPrompt;
+        private IndexProperties index = new IndexProperties();
+        private EmbeddingProperties embedding = new EmbeddingProperties();
+        private MmrProperties mmr = new MmrProperties();
+        private HybridProperties hybrid = new HybridProperties();
+        private RetrievalCacheProperties retrievalCache = new RetrievalCacheProperties();
+        private ResponseCacheProperties responseCache = new ResponseCacheProperties();
+        
+        @Data
+        public static class IndexProperties {
+            private Boolean enabled;
+            private Integer dimension;
+            private Integer m;
+            private Integer efConstruction;
+            private Integer efSearch;
+            private Integer loadPageSize;
+            private Double rebuildDeletedRatio;
+            private String quantization;
+            private Integer rescoreMultiplier;
+        }
+        
+        @Data
+        public static class MmrProperties {
+            private Double lambda;
+            private Integer fetchMultiplier;
+        }
+        
+        @Data
+        public static class HybridProperties {
+            private Boolean enabled;
+            private Integer rrfK;
+        }
+        
+        @Data
+        public static class RetrievalCacheProperties {
+            private Boolean enabled;
+            private Long ttlMinutes;
+            private Long maxAddCheckComparisons;
+            private Long localMaxEntries;
+        }
+        
+        @Data
+        public static class ResponseCacheProperties {
+            private Boolean enabled;
+            private Double similarityThreshold;
+            private Double maxTemperature;
+            private Long ttlMinutes;
+            private Long maxEntries;
+        }
+        
+        @Data
+        public static class EmbeddingProperties {
+            private Integer batchSize;
+            private Integer concurrency;
+            private Integer maxRetries;
+            private Long initialBackoffMillis;
+            private Long lingerMillis;
+            private CacheProperties cache = new CacheProperties();
+            
+            @Data
+            public static class CacheProperties {
+                private Boolean enabled;
+                private Long localMaxEntries;
+                private Boolean redisEnabled;
+                private Long redisTtlMinutes;
+            }
+        }
+    }
+    
+    @Data
+    public static class IngestProperties {
+        private Integer workers;
+        private String stagingDir;
+        private Integer maxAttempts;
+        private Integer maxActiveJobsPerUser;
+        private Integer shutdownTimeoutSeconds;
+        private BulkProperties bulk = new BulkProperties();
+        
+        @Data
+        public static class BulkProperties {
+            private Integer maxFiles;
+            private String maxFileSize;
+            private String maxTotalSize;
+            private String allowedRoots;
+        }
     }
     
     @Data
@@ -59,7 +160,22 @@ public class AppProperties {
     @Data
     public static class RateLimitProperties {
         private Integer requestsPerMinute;
-        private Integer windowSizeMinutes;
+        private Integer burstCapacity;
+        private Map<String, PlanProperties> plans = new HashMap<>();
+        private NearCacheProperties nearCache = new NearCacheProperties();
+        
+        @Data
+        public static class PlanProperties {
+            private Integer capacity;
+            private Integer refillPerMinute;
+        }
+        
+        @Data
+        public static class NearCacheProperties {
+            private Boolean enabled;
+            private Integer leaseTokens;
+            private Long leaseMillis;
+        }
     }
     
     @Data
@@ -67,5 +183,129 @@ public class AppProperties {
         private Boolean enabled;
         private Integer maxToolCalls;
         private Integer toolTimeoutSeconds;
+        private Integer executorThreads;
+        private CircuitBreakerProperties circuitBreaker = new CircuitBreakerProperties();
+        private ToolCacheProperties cache = new ToolCacheProperties();
+        private ToolProperties math = new ToolProperties();
+        private ToolProperties weather = new ToolProperties();
+        private UrlToolProperties url = new UrlToolProperties();
+        
+        @Data
+        public static class CircuitBreakerProperties {
+            private Integer failureThreshold;
+            private Long openSeconds;
+        }
+        
+        @Data
+        public static class ToolCacheProperties {
+            private Boolean enabled;
+            private Long ttlMinutes;
+            private Long maxEntries;
+        }
+        
+        @Data
+        public static class ToolProperties {
+            private Long timeoutSeconds;
+        }
+        
+        @Data
+        public static class UrlToolProperties {
+            private Long timeoutSeconds;
+            private Long fetchTimeoutSeconds;
+        }
+    }
+    
+    @Data
+    public static class ChatProperties {
+        private HistoryProperties history = new HistoryProperties();
+        private SummaryProperties summary = new SummaryProperties();
+        
+        @Data
+        public static class HistoryProperties {
+            private Integer windowSize;
+            private Long maxSessions;
+            private Long idleMinutes;
+            private Long flushIntervalMillis;
+            private Boolean redisEnabled;
+            private Long redisTtlMinutes;
+        }
+        
+        @Data
+        public static class SummaryProperties {
+            private Boolean enabled;
+            private Integer triggerTokens;
+            private Integer keepMessages;
+            private Integer maxTokens;
+            private Integer maxInputTokens;
+            private Integer maxMessageTokens;
+        }
+    }
+    
+    @Data
+    public static class TokenizerProperties {
+        private String vocabulary;
+    }
+    
+    /**
+     * Chat routing across providers. The defaults apply when the section is missing, since the router
+     * is built from these values directly.
+     */
+    @Data
+    public static class RoutingProperties {
+        private Boolean enabled = false;
+        private List<String> providers = new ArrayList<>(List.of("openai", "ollama"));
+        private List<EndpointProperties> endpoints = new ArrayList<>();
+        private Double ewmaAlpha = 0.2;
+        private Integer failureThreshold = 3;
+        private Duration openDuration = Duration.ofSeconds(30);
+        private Boolean hedgeEnabled = true;
+        private Double hedgePercentile = 0.95;
+        private Duration hedgeMinDelay = Duration.ofMillis(200);
+        private Integer hedgeMinSamples = 20;
+    }
+    
+    @Data
+    public static class EndpointProperties {
+        private String name;
+        private String baseUrl;
+        private String apiKey;
+        private String model;
+        private Double temperature = 0.7;
+        private Integer maxTokens = 2000;
+        private Integer contextWindow = 8192;
+        private HttpClientProperties http = new HttpClientProperties();
+    }
+    
+    /**
+     * Client-side pacing of calls to a provider's rate limits. The defaults apply when the section is
+     * missing; limits reported by the provider in its response headers replace the configured ones.
+     */
+    @Data
+    public static class ProviderRateLimitProperties {
+        private Boolean enabled = true;
+        private Integer requestsPerMinute = 500;
+        private Integer tokensPerMinute = 200000;
+        private Double backgroundMaxShare = 0.8;
+        private Integer maxQueueSize = 10000;
+        private Duration maxWait = Duration.ofSeconds(60);
+    }
+    
+    /**
+     * Connection pool and protocol settings of an HTTP client. The defaults apply when a client's
+     * section is missing, since the clients are built from these values directly.
+     */
+    @Data
+    public static class HttpClientProperties {
+        private Integer maxConnections = 50;
+        private Integer pendingAcquireMaxCount = 500;
+        private Duration pendingAcquireTimeout = Duration.ofSeconds(10);
+        private Duration maxIdleTime = Duration.ofSeconds(30);
+        private Duration maxLifeTime = Duration.ofMinutes(5);
+        private Duration evictInBackground = Duration.ofSeconds(30);
+        private Duration connectTimeout = Duration.ofSeconds(10);
+        private Duration responseTimeout = Duration.ofSeconds(30);
+        private Boolean http2 = false;
+        private Boolean compression = true;
+        private DataSize maxResponseSize = DataSize.ofMegabytes(10);
     }
 }
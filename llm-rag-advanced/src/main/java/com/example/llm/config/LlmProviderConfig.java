@@ -3,36 +3,116 @@ package com.example.llm.config;
 import com.example.llm.llm.LlmProvider;
 import com.example.llm.llm.OllamaProvider;
 import com.example.llm.llm.OpenAiProvider;
+import com.example.llm.llm.RequestScheduler;
+import com.example.llm.llm.RoutingLlmProvider;
+import com.example.llm.llm.ScheduledLlmProvider;
+import com.example.llm.llm.SingleFlightLlmProvider;
+import com.example.llm.llm.Tokenizer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @Configuration
 @RequiredArgsConstructor
 @Slf4j
 public class LlmProviderConfig {
     
+    private final AppProperties appProperties;
+    
     @Value("${app.provider}")
     private String provider;
     
+    @Bean
+    public RequestScheduler openAiRequestScheduler(MeterRegistry meterRegistry) {
+        AppProperties.ProviderRateLimitProperties rateLimit = appProperties.getOpenai().getRateLimit();
+        return new RequestScheduler("openai", rateLimit.getRequestsPerMinute(), rateLimit.getTokensPerMinute(),
+                rateLimit.getBackgroundMaxShare(), rateLimit.getMaxQueueSize(), rateLimit.getMaxWait(), meterRegistry);
+    }
+    
     @Bean
     @Primary
-    public LlmProvider llmProvider(OpenAiProvider openAiProvider, OllamaProvider ollamaProvider) {
+    public LlmProvider llmProvider(OpenAiProvider openAiProvider, OllamaProvider ollamaProvider,
+                                   RequestScheduler openAiRequestScheduler, Tokenizer tokenizer,
+                                   ObjectMapper objectMapper, MeterRegistry meterRegistry) {
         log.info("Configuring LLM provider: {}", provider);
         
+        // OpenAI calls are paced to its requests and tokens per minute limits, chat ahead of ingestion
+        LlmProvider openAi = openAiProvider;
+        AppProperties.OpenAiProperties openai = appProperties.getOpenai();
+        if (openai.getRateLimit().getEnabled()) {
+            openAi = new ScheduledLlmProvider(openAiProvider, openAiRequestScheduler, tokenizer,
+                    openai.getMaxTokens() != null ? openai.getMaxTokens() : 2000);
+        }
+        
+        LlmProvider selected;
         switch (provider.toLowerCase()) {
             case "openai":
                 log.info("Using OpenAI provider");
-                return openAiProvider;
+                selected = openAi;
+                break;
             case "ollama":
                 log.info("Using Ollama provider");
-                return ollamaProvider;
+                selected = ollamaProvider;
+                break;
             default:
                 log.warn("Unknown provider: {}, defaulting to OpenAI", provider);
-                return openAiProvider;
+                selected = openAi;
+        }
+        
+        if (appProperties.getRouting().getEnabled()) {
+            selected = routingProvider(selected, openAi, ollamaProvider, objectMapper, meterRegistry);
         }
+        
+        // Identical concurrent chat calls at temperature 0 share one completion
+        return new SingleFlightLlmProvider(selected, objectMapper, meterRegistry);
+    }
+    
+    /**
+     * Routes chat across the configured providers. The selected provider comes first, so it keeps
+     * serving embeddings and wins ties.
+     */
+    private LlmProvider routingProvider(LlmProvider selected, LlmProvider openAiProvider, OllamaProvider ollamaProvider,
+                                       ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        AppProperties.RoutingProperties routing = appProperties.getRouting();
+        
+        Map<String, LlmProvider> available = new HashMap<>();
+        available.put("openai", openAiProvider);
+        available.put("ollama", ollamaProvider);
+        for (AppProperties.EndpointProperties endpoint : routing.getEndpoints()) {
+            WebClient.Builder client = WebClientConfig.buildWebClient(endpoint.getName(), endpoint.getBaseUrl(), endpoint.getHttp());
+            if (endpoint.getApiKey() != null && !endpoint.getApiKey().isEmpty()) {
+                client.defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + endpoint.getApiKey());
+            }
+            available.put(endpoint.getName(), OpenAiProvider.forEndpoint(client.build(), objectMapper, endpoint.getModel(),
+                    null, endpoint.getTemperature(), endpoint.getMaxTokens(), endpoint.getContextWindow()));
+        }
+        
+        LinkedHashMap<String, LlmProvider> providers = new LinkedHashMap<>();
+        String selectedName = selected == ollamaProvider ? "ollama" : "openai";
+        providers.put(selectedName, selected);
+        for (String name : routing.getProviders()) {
+            LlmProvider candidate = available.get(name);
+            if (candidate == null) {
+                log.warn("Unknown routing provider: {}, ignoring it", name);
+            } else {
+                providers.putIfAbsent(name, candidate);
+            }
+        }
+        log.info("Routing chat across providers: {}", providers.keySet());
+        
+        return new RoutingLlmProvider(providers, routing.getEwmaAlpha(), routing.getFailureThreshold(),
+                routing.getOpenDuration(), routing.getHedgeEnabled(), routing.getHedgePercentile(),
+                routing.getHedgeMinDelay(), routing.getHedgeMinSamples(), meterRegistry);
     }
 }
@@ -0,0 +1,37 @@
+package com.example.llm.config;
+
+import com.example.llm.llm.ApproximateTokenizer;
+import com.example.llm.llm.BpeTokenizer;
+import com.example.llm.llm.Tokenizer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+@Configuration
+@Slf4j
+public class TokenizerConfig {
+    
+    @Value("${app.tokenizer.vocabulary:classpath:tokenizer/cl100k_base.tiktoken}")
+    private Resource vocabulary;
+    
+    @Bean
+    public Tokenizer tokenizer() throws IOException {
+        if (!vocabulary.exists()) {
+            log.warn("Tokenizer vocabulary {} not found, falling back to approximate token counts", vocabulary);
+            return new ApproximateTokenizer();
+        }
+        
+        String filename = vocabulary.getFilename();
+        String name = filename != null && filename.contains(".") ? filename.substring(0, filename.indexOf('.')) : "bpe";
+        try (InputStream input = vocabulary.getInputStream()) {
+            BpeTokenizer tokenizer = BpeTokenizer.load(name, BpeTokenizer.CL100K_PATTERN, input);
+            log.info("Loaded {} tokenizer with {} tokens", name, tokenizer.getVocabularySize());
+            return tokenizer;
+        }
+    }
+}
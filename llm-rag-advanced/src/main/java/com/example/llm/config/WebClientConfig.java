@@ -1,26 +1,98 @@
 package com.example.llm.config;
 
+import com.example.llm.llm.RequestScheduler;
+import io.netty.channel.ChannelOption;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
-import java.time.Duration;
-
+/**
+ * One HTTP client per upstream, each with its own connection pool, so an embedding burst against one
+ * provider cannot starve chat calls to another or tool fetches. Pools export
+ * reactor.netty.connection.provider.* metrics (total, active, idle and pending connections) tagged
+ * with the pool name.
+ */
 @Configuration
+@RequiredArgsConstructor
 @Slf4j
 public class WebClientConfig {
     
+    private final AppProperties appProperties;
+    
+    /**
+     * General purpose client, used by tools to fetch arbitrary URLs.
+     */
     @Bean
     public WebClient webClient() {
-        HttpClient httpClient = HttpClient.create()
-                .responseTimeout(Duration.ofSeconds(30))
-                .option(reactor.netty.channel.ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
-        
-        return WebClient.builder()
-                .clientConnector(new org.springframework.http.client.reactive.ReactorClientHttpConnector(httpClient))
-                .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(10 * 1024 * 1024)) // 10MB
+        return buildWebClient("default", null, appProperties.getHttp()).build();
+    }
+    
+    @Bean
+    public WebClient openAiWebClient(RequestScheduler openAiRequestScheduler) {
+        AppProperties.OpenAiProperties openai = appProperties.getOpenai();
+        WebClient.Builder builder = buildWebClient("openai", openai.getBaseUrl(), openai.getHttp());
+        if (openai.getApiKey() != null && !openai.getApiKey().isEmpty()) {
+            builder.defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + openai.getApiKey());
+        }
+        if (openai.getRateLimit().getEnabled()) {
+            // Rate limit headers of every response keep the scheduler's budgets in line with the provider's
+            builder.filter(openAiRequestScheduler.responseFilter());
+        }
+        return builder.build();
+    }
+    
+    @Bean
+    public WebClient ollamaWebClient() {
+        AppProperties.OllamaProperties ollama = appProperties.getOllama();
+        return buildWebClient("ollama", ollama.getBaseUrl(), ollama.getHttp()).build();
+    }
+    
+    /**
+     * A client builder with its own connection pool, named for the pool metrics.
+     */
+    public static WebClient.Builder buildWebClient(String name, String baseUrl, AppProperties.HttpClientProperties settings) {
+        ConnectionProvider connectionProvider = ConnectionProvider.builder(name)
+                .maxConnections(settings.getMaxConnections())
+                .pendingAcquireMaxCount(settings.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(settings.getPendingAcquireTimeout())
+                .maxIdleTime(settings.getMaxIdleTime())
+                .maxLifeTime(settings.getMaxLifeTime())
+                .evictInBackground(settings.getEvictInBackground())
+                .metrics(true)
                 .build();
+        
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .responseTimeout(settings.getResponseTimeout())
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) settings.getConnectTimeout().toMillis())
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .keepAlive(true)
+                .compress(settings.getCompression());
+        
+        if (settings.getHttp2()) {
+            // Streams are multiplexed over the pooled connections; HTTP/1.1 remains the fallback
+            if (baseUrl != null && baseUrl.startsWith("https")) {
+                httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11).secure();
+            } else {
+                httpClient = httpClient.protocol(HttpProtocol.H2C, HttpProtocol.HTTP11);
+            }
+        }
+        
+        log.info("HTTP client {}: max {} connections, {} pending, http2={}, compression={}", name,
+                settings.getMaxConnections(), settings.getPendingAcquireMaxCount(), settings.getHttp2(), settings.getCompression());
+        
+        WebClient.Builder builder = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize((int) settings.getMaxResponseSize().toBytes()));
+        if (baseUrl != null) {
+            builder.baseUrl(baseUrl);
+        }
+        return builder;
     }
 }
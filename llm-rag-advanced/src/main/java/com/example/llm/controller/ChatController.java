@@ -5,14 +5,15 @@ import com.example.llm.dto.ChatResponse;
 import com.example.llm.entity.User;
 import com.example.llm.service.ChatService;
 import com.example.llm.service.RateLimitService;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.util.UUID;
 
@@ -24,41 +25,40 @@ public class ChatController {
     
     private final ChatService chatService;
     private final RateLimitService rateLimitService;
-    private final ObjectMapper objectMapper;
     
     @PostMapping(value = "/chat", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<String> chatStream(@RequestBody ChatRequest request, 
-                                  @AuthenticationPrincipal User user) {
+    public Flux<ServerSentEvent<ChatResponse>> chatStream(@RequestBody ChatRequest request,
+                                                         @AuthenticationPrincipal User user) {
         log.info("Chat stream request from user: {}", user.getUsername());
         
         // Check rate limit
-        if (!rateLimitService.isAllowed(user.getId())) {
-            return Flux.just("data: " + createErrorResponse("Rate limit exceeded").toJson() + "\n\n");
+        if (!rateLimitService.isAllowed(user)) {
+            return Flux.just(event(createErrorResponse("Rate limit exceeded")));
         }
         
+        // Spring writes each event as a "data:" line with the response serialized by Jackson
         return chatService.chatStream(request, user)
-                .map(response -> "data: " + response.toJson() + "\n\n")
+                .map(this::event)
                 .doOnError(error -> log.error("Error in chat stream", error))
-                .onErrorReturn("data: " + createErrorResponse(error.getMessage()).toJson() + "\n\n");
+                .onErrorResume(error -> Flux.just(event(createErrorResponse(error.getMessage()))));
     }
     
     @PostMapping("/chat/nonstream")
-    public ResponseEntity<ChatResponse> chatNonStream(@RequestBody ChatRequest request,
-                                                     @AuthenticationPrincipal User user) {
+    public Mono<ResponseEntity<ChatResponse>> chatNonStream(@RequestBody ChatRequest request,
+                                                           @AuthenticationPrincipal User user) {
         log.info("Non-streaming chat request from user: {}", user.getUsername());
         
         // Check rate limit
-        if (!rateLimitService.isAllowed(user.getId())) {
-            return ResponseEntity.status(429).body(createErrorResponse("Rate limit exceeded"));
+        if (!rateLimitService.isAllowed(user)) {
+            return Mono.just(ResponseEntity.status(429).body(createErrorResponse("Rate limit exceeded")));
         }
         
-        try {
-            ChatResponse response = chatService.chatNonStream(request, user);
-            return ResponseEntity.ok(response);
-        } catch (Exception e) {
-            log.error("Error in non-streaming chat", e);
-            return ResponseEntity.status(500).body(createErrorResponse(e.getMessage()));
-        }
+        return chatService.chatNonStream(request, user)
+                .map(ResponseEntity::ok)
+                .onErrorResume(e -> {
+                    log.error("Error in non-streaming chat", e);
+                    return Mono.just(ResponseEntity.status(500).body(createErrorResponse(e.getMessage())));
+                });
     }
     
     @GetMapping("/chat/sessions")
@@ -73,6 +73,10 @@ public class ChatController {
         }
     }
     
+    private ServerSentEvent<ChatResponse> event(ChatResponse response) {
+        return ServerSentEvent.builder(response).build();
+    }
+    
     private ChatResponse createErrorResponse(String error) {
         return new ChatResponse("error", null, null, null, null, error);
     }
@@ -1,18 +1,32 @@
 package com.example.llm.controller;
 
+import com.example.llm.dto.BulkDirectoryRequest;
+import com.example.llm.dto.BulkIngestDTO;
 import com.example.llm.dto.DocumentDTO;
+import com.example.llm.dto.IngestJobDTO;
 import com.example.llm.dto.IngestRequest;
 import com.example.llm.dto.SearchResultDTO;
 import com.example.llm.entity.User;
 import com.example.llm.rag.RetrieverService;
+import com.example.llm.service.BulkIngestService;
+import com.example.llm.service.IngestJobService;
 import com.example.llm.service.IngestService;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.util.List;
 import java.util.UUID;
 
@@ -23,10 +37,13 @@ import java.util.UUID;
 public class IngestController {
     
     private final IngestService ingestService;
+    private final IngestJobService ingestJobService;
+    private final BulkIngestService bulkIngestService;
     private final RetrieverService retrieverService;
+    private final ObjectMapper objectMapper;
     
     @PostMapping("/documents")
-    public ResponseEntity<DocumentDTO> uploadDocument(
+    public ResponseEntity<IngestJobDTO> uploadDocument(
             @RequestParam("file") MultipartFile file,
             @RequestParam(value = "tags", required = false) String tagsJson,
             @AuthenticationPrincipal User user) {
@@ -43,54 +60,193 @@ public class IngestController {
             }
             
             List<String> tags = parseTags(tagsJson);
-            DocumentDTO document = ingestService.ingestDocument(file, tags, user);
+            IngestJobDTO job = ingestJobService.submit(file, tags, user);
             
-            return ResponseEntity.ok(document);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/ingest/jobs/" + job.getId()))
+                    .body(job);
             
+        } catch (IllegalStateException e) {
+            log.warn("Rejected document upload: {}", e.getMessage());
+            return ResponseEntity.status(429).build();
         } catch (Exception e) {
             log.error("Error uploading document", e);
             return ResponseEntity.status(500).build();
         }
     }
     
-    @GetMapping("/search")
-    public ResponseEntity<SearchResultDTO> search(@RequestParam("q") String query,
-                                                 @RequestParam(value = "topK", required = false) Integer topK,
-                                                 @AuthenticationPrincipal User user) {
+    /**
+     * Re-ingests a changed version of a document; unchanged chunks keep their embeddings.
+     */
+    @PutMapping("/documents/{documentId}")
+    public ResponseEntity<IngestJobDTO> updateDocument(
+            @PathVariable UUID documentId,
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "tags", required = false) String tagsJson,
+            @AuthenticationPrincipal User user) {
         
-        log.info("Search request from user: {} for query: {}", user.getUsername(), query);
+        log.info("Document update request from user: {} for document: {}", user.getUsername(), documentId);
         
         try {
-            long startTime = System.currentTimeMillis();
+            if (file.isEmpty() || file.getSize() > 50 * 1024 * 1024) {
+                return ResponseEntity.badRequest().build();
+            }
             
-            List<RetrieverService.ContextSnippet> snippets = retrieverService.retrieveContext(query, topK);
+            IngestJobDTO job = ingestJobService.submitUpdate(documentId, file, parseTags(tagsJson), user);
             
-            long searchTime = System.currentTimeMillis() - startTime;
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/ingest/jobs/" + job.getId()))
+                    .body(job);
             
-            SearchResultDTO result = new SearchResultDTO(
-                    snippets.stream()
-                            .map(snippet -> new com.example.llm.dto.ChunkDTO(
-                                    snippet.getId(),
-                                    snippet.getDocumentId(),
-                                    snippet.getChunkIndex(),
-                                    snippet.getText(),
-                                    snippet.getMetadata(),
-                                    snippet.getScore()
-                            ))
-                            .collect(java.util.stream.Collectors.toList()),
-                    query,
-                    snippets.size(),
-                    searchTime
-            );
+        } catch (IllegalStateException e) {
+            log.warn("Rejected document update: {}", e.getMessage());
+            return ResponseEntity.status(429).build();
+        } catch (IOException e) {
+            log.error("Error staging document update", e);
+            return ResponseEntity.status(500).build();
+        } catch (Exception e) {
+            log.error("Error updating document", e);
+            return ResponseEntity.status(404).build();
+        }
+    }
+    
+    /**
+     * Bulk upload: the request body is a zip or tar archive (optionally gzip compressed) streamed as is.
+     */
+    @PostMapping("/documents/bulk")
+    public ResponseEntity<BulkIngestDTO> uploadArchive(
+            InputStream body,
+            @RequestParam(value = "tags", required = false) String tagsJson,
+            @AuthenticationPrincipal User user) {
+        
+        log.info("Bulk upload request from user: {}", user.getUsername());
+        
+        try {
+            BulkIngestDTO batch = bulkIngestService.submitArchive(body, parseTags(tagsJson), user);
+            
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/ingest/batches/" + batch.getBatchId()))
+                    .body(batch);
+            
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected bulk upload: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (IllegalStateException e) {
+            log.warn("Rejected bulk upload: {}", e.getMessage());
+            return ResponseEntity.status(429).build();
+        } catch (Exception e) {
+            log.error("Error processing bulk upload", e);
+            return ResponseEntity.status(500).build();
+        }
+    }
+    
+    @PostMapping("/documents/bulk/directory")
+    public ResponseEntity<BulkIngestDTO> ingestDirectory(@RequestBody BulkDirectoryRequest request,
+                                                         @AuthenticationPrincipal User user) {
+        log.info("Directory ingest request from user: {} for path: {}", user.getUsername(), request.getPath());
+        
+        try {
+            BulkIngestDTO batch = bulkIngestService.submitDirectory(request.getPath(), request.getTags(), user);
             
-            return ResponseEntity.ok(result);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/ingest/batches/" + batch.getBatchId()))
+                    .body(batch);
             
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected directory ingest: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (IllegalStateException e) {
+            log.warn("Rejected directory ingest: {}", e.getMessage());
+            return ResponseEntity.status(429).build();
         } catch (Exception e) {
-            log.error("Error searching", e);
+            log.error("Error processing directory ingest", e);
             return ResponseEntity.status(500).build();
         }
     }
     
+    @GetMapping("/ingest/batches/{batchId}")
+    public ResponseEntity<List<IngestJobDTO>> getIngestBatch(@PathVariable UUID batchId,
+                                                             @AuthenticationPrincipal User user) {
+        try {
+            return ResponseEntity.ok(ingestJobService.getBatchJobs(batchId, user));
+        } catch (Exception e) {
+            log.error("Error getting ingest batch", e);
+            return ResponseEntity.status(404).build();
+        }
+    }
+    
+    @GetMapping("/ingest/jobs")
+    public ResponseEntity<List<IngestJobDTO>> getIngestJobs(@AuthenticationPrincipal User user) {
+        log.info("Get ingest jobs request from user: {}", user.getUsername());
+        
+        try {
+            return ResponseEntity.ok(ingestJobService.getUserJobs(user));
+        } catch (Exception e) {
+            log.error("Error getting ingest jobs", e);
+            return ResponseEntity.status(500).build();
+        }
+    }
+    
+    @GetMapping("/ingest/jobs/{jobId}")
+    public ResponseEntity<IngestJobDTO> getIngestJob(@PathVariable UUID jobId,
+                                                     @AuthenticationPrincipal User user) {
+        try {
+            return ResponseEntity.ok(ingestJobService.getJob(jobId, user));
+        } catch (Exception e) {
+            log.error("Error getting ingest job", e);
+            return ResponseEntity.status(404).build();
+        }
+    }
+    
+    @GetMapping(value = "/ingest/jobs/{jobId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<IngestJobDTO>> streamIngestJob(@PathVariable UUID jobId,
+                                                               @AuthenticationPrincipal User user) {
+        log.info("Ingest job progress stream from user: {} for job: {}", user.getUsername(), jobId);
+        
+        return ingestJobService.streamProgress(jobId, user)
+                .map(job -> ServerSentEvent.<IngestJobDTO>builder()
+                        .event(job.getStatus().toLowerCase())
+                        .data(job)
+                        .build());
+    }
+    
+    @GetMapping("/search")
+    public Mono<ResponseEntity<SearchResultDTO>> search(@RequestParam("q") String query,
+                                                       @RequestParam(value = "topK", required = false) Integer topK,
+                                                       @AuthenticationPrincipal User user) {
+        
+        log.info("Search request from user: {} for query: {}", user.getUsername(), query);
+        
+        long startTime = System.currentTimeMillis();
+        
+        return retrieverService.retrieveContext(query, topK)
+                .map(snippets -> {
+                    long searchTime = System.currentTimeMillis() - startTime;
+                    
+                    SearchResultDTO result = new SearchResultDTO(
+                            snippets.stream()
+                                    .map(snippet -> new com.example.llm.dto.ChunkDTO(
+                                            snippet.getId(),
+                                            snippet.getDocumentId(),
+                                            snippet.getChunkIndex(),
+                                            snippet.getText(),
+                                            snippet.getMetadata(),
+                                            snippet.getScore()
+                                    ))
+                                    .collect(java.util.stream.Collectors.toList()),
+                            query,
+                            snippets.size(),
+                            searchTime
+                    );
+                    
+                    return ResponseEntity.ok(result);
+                })
+                .onErrorResume(e -> {
+                    log.error("Error searching", e);
+                    return Mono.just(ResponseEntity.status(500).<SearchResultDTO>build());
+                });
+    }
+    
     @GetMapping("/documents")
     public ResponseEntity<List<DocumentDTO>> getUserDocuments(@AuthenticationPrincipal User user) {
         log.info("Get documents request from user: {}", user.getUsername());
@@ -138,7 +294,7 @@ public class IngestController {
         }
         
         try {
-            return com.fasterxml.jackson.databind.ObjectMapper().readValue(tagsJson, List.class);
+            return objectMapper.readValue(tagsJson, new TypeReference<List<String>>() {});
         } catch (Exception e) {
             log.warn("Failed to parse tags JSON: {}", tagsJson, e);
             return List.of();
@@ -2,6 +2,7 @@ package com.example.llm.controller;
 
 import com.example.llm.entity.User;
 import com.example.llm.tools.ToolRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
@@ -18,6 +19,7 @@ import java.util.Map;
 public class ToolController {
     
     private final ToolRegistry toolRegistry;
+    private final ObjectMapper objectMapper;
     
     @GetMapping("/tools")
     public ResponseEntity<Map<String, Object>> getAvailableTools(@AuthenticationPrincipal User user) {
@@ -56,7 +58,7 @@ public class ToolController {
                 return ResponseEntity.status(404).body(error);
             }
             
-            String argsJson = com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(args);
+            String argsJson = objectMapper.writeValueAsString(args);
             String result = toolRegistry.invokeTool(toolName, argsJson).get();
             
             Map<String, Object> response = new HashMap<>();
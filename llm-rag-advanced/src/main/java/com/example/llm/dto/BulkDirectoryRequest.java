@@ -0,0 +1,16 @@
+package com.example.llm.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkDirectoryRequest {
+    
+    private String path;
+    private List<String> tags;
+}
@@ -0,0 +1,20 @@
+package com.example.llm.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkIngestDTO {
+    
+    private UUID batchId;
+    private Integer queued;
+    private Integer duplicates;
+    private Integer skipped;
+    private List<BulkIngestFileDTO> files;
+}
@@ -0,0 +1,20 @@
+package com.example.llm.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkIngestFileDTO {
+    
+    private String filename;
+    private String status; // QUEUED|DUPLICATE|SKIPPED
+    private Long size;
+    private UUID jobId;
+    private UUID documentId; // existing document for duplicates
+    private String reason;
+}
@@ -18,6 +18,7 @@ public interface EntityMapper {
     DocumentDTO toDocumentDTO(Document document);
     List<DocumentDTO> toDocumentDTOs(List<Document> documents);
     
+    @Mapping(target = "score", ignore = true)
     ChunkDTO toChunkDTO(Chunk chunk);
     List<ChunkDTO> toChunkDTOs(List<Chunk> chunks);
     
@@ -28,9 +29,17 @@ public interface EntityMapper {
     List<ChatMessageDTO> toChatMessageDTOs(List<ChatMessage> messages);
     
     // Reverse mappings
+    @Mapping(target = "passwordHash", ignore = true)
     User toUser(UserDTO userDTO);
     Document toDocument(DocumentDTO documentDTO);
+    @Mapping(target = "contentHash", ignore = true)
+    @Mapping(target = "vector", ignore = true)
+    @Mapping(target = "document", ignore = true)
     Chunk toChunk(ChunkDTO chunkDTO);
+    @Mapping(target = "summary", ignore = true)
+    @Mapping(target = "summarizedUntil", ignore = true)
+    @Mapping(target = "user", ignore = true)
     ChatSession toChatSession(ChatSessionDTO sessionDTO);
+    @Mapping(target = "session", ignore = true)
     ChatMessage toChatMessage(ChatMessageDTO messageDTO);
 }
@@ -0,0 +1,25 @@
+package com.example.llm.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IngestJobDTO {
+    
+    private UUID id;
+    private UUID batchId;
+    private String filename;
+    private String status;
+    private Integer totalChunks;
+    private Integer processedChunks;
+    private UUID documentId;
+    private String error;
+    private OffsetDateTime createdAt;
+    private OffsetDateTime updatedAt;
+}
@@ -30,6 +30,12 @@ public class ChatSession {
     @Column(name = "created_at", nullable = false)
     private OffsetDateTime createdAt;
     
+    @Column(columnDefinition = "TEXT")
+    private String summary;
+    
+    @Column(name = "summarized_until")
+    private OffsetDateTime summarizedUntil;
+    
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "user_id", insertable = false, updatable = false)
     private User user;
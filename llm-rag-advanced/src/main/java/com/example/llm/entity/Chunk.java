@@ -4,7 +4,9 @@ import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.ColumnTransformer;
 import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.annotations.Type;
 import org.hibernate.type.SqlTypes;
 
 import java.util.UUID;
@@ -29,8 +31,14 @@ public class Chunk {
     @Column(nullable = false, columnDefinition = "TEXT")
     private String text;
     
+    // SHA-256 of the text, used to diff chunks when a document is re-ingested
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+    
+    @Type(VectorType.class)
+    @ColumnTransformer(read = "vector_send(vector)")
     @Column(columnDefinition = "vector(1536)")
-    private String vector;
+    private float[] vector;
     
     @JdbcTypeCode(SqlTypes.JSON)
     @Column(columnDefinition = "jsonb")
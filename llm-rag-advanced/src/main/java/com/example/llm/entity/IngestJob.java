@@ -0,0 +1,98 @@
+package com.example.llm.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.annotations.UpdateTimestamp;
+import org.hibernate.type.SqlTypes;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+@Entity
+@Table(name = "ingest_jobs")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IngestJob {
+    
+    public enum Status {
+        QUEUED, EXTRACTING, EMBEDDING, DONE, FAILED;
+        
+        public boolean isTerminal() {
+            return this == DONE || this == FAILED;
+        }
+    }
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+    
+    @Column(name = "user_id", nullable = false)
+    private UUID userId;
+    
+    @Column(nullable = false, length = 255)
+    private String filename;
+    
+    @Column(name = "content_type", length = 100)
+    private String contentType;
+    
+    @Column(nullable = false)
+    private Long size;
+    
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(columnDefinition = "jsonb")
+    private String tags = "[]";
+    
+    @Column(name = "staged_path", nullable = false, length = 1024)
+    private String stagedPath;
+    
+    // False when the job reads a file in place from a server-side directory
+    @Column(name = "delete_staged", nullable = false)
+    private boolean deleteStaged = true;
+    
+    @Column(name = "batch_id")
+    private UUID batchId;
+    
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 20)
+    private Status status = Status.QUEUED;
+    
+    @Column(name = "total_chunks", nullable = false)
+    private Integer totalChunks = 0;
+    
+    @Column(name = "processed_chunks", nullable = false)
+    private Integer processedChunks = 0;
+    
+    @Column(nullable = false)
+    private Integer attempts = 0;
+    
+    @Column(name = "document_id")
+    private UUID documentId;
+    
+    // Set when the job replaces the content of an existing document
+    @Column(name = "target_document_id")
+    private UUID targetDocumentId;
+    
+    @Column(columnDefinition = "TEXT")
+    private String error;
+    
+    @CreationTimestamp
+    @Column(name = "created_at", nullable = false)
+    private OffsetDateTime createdAt;
+    
+    @UpdateTimestamp
+    @Column(name = "updated_at", nullable = false)
+    private OffsetDateTime updatedAt;
+    
+    public IngestJob(UUID userId, String filename, String contentType, Long size, String stagedPath) {
+        this.userId = userId;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.size = size;
+        this.stagedPath = stagedPath;
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.llm.entity;
+
+import com.example.llm.util.VectorCodec;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.usertype.UserType;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Maps a pgvector column to float[].
+ * Values are bound as a real[] array, which the driver sends in binary and pgvector
+ * converts with its assignment cast, so no per-element text formatting happens on write.
+ * Mapped columns are read through vector_send() (see Chunk.vector), so reads decode the
+ * binary form as well; the text form is only parsed for a plain vector column.
+ */
+public class VectorType implements UserType<float[]> {
+    
+    @Override
+    public int getSqlType() {
+        return Types.OTHER;
+    }
+    
+    @Override
+    public Class<float[]> returnedClass() {
+        return float[].class;
+    }
+    
+    @Override
+    public boolean equals(float[] x, float[] y) {
+        return Arrays.equals(x, y);
+    }
+    
+    @Override
+    public int hashCode(float[] x) {
+        return Arrays.hashCode(x);
+    }
+    
+    @Override
+    public float[] nullSafeGet(ResultSet rs, int position, SharedSessionContractImplementor session, Object owner) throws SQLException {
+        Object value = rs.getObject(position);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof byte[] bytes) {
+            return VectorCodec.fromBinary(bytes);
+        }
+        return VectorCodec.fromText(value.toString());
+    }
+    
+    @Override
+    public void nullSafeSet(PreparedStatement st, float[] value, int index, SharedSessionContractImplementor session) throws SQLException {
+        if (value == null) {
+            st.setNull(index, Types.OTHER);
+        } else {
+            st.setObject(index, value);
+        }
+    }
+    
+    @Override
+    public float[] deepCopy(float[] value) {
+        return value != null ? value.clone() : null;
+    }
+    
+    @Override
+    public boolean isMutable() {
+        return true;
+    }
+    
+    @Override
+    public Serializable disassemble(float[] value) {
+        return deepCopy(value);
+    }
+    
+    @Override
+    public float[] assemble(Serializable cached, Object owner) {
+        return deepCopy((float[]) cached);
+    }
+    
+    @Override
+    public float[] replace(float[] detached, float[] managed, Object owner) {
+        return deepCopy(detached);
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.llm.llm;
+
+import java.util.regex.Matcher;
+
+/**
+ * Fallback used when no vocabulary file is available. Text is split with the cl100k pre-tokenizer
+ * and each piece counts one token per four characters, rounded up, which errs on the high side.
+ */
+public class ApproximateTokenizer implements Tokenizer {
+    
+    private static final int CHARS_PER_TOKEN = 4;
+    
+    @Override
+    public String getName() {
+        return "approximate";
+    }
+    
+    @Override
+    public int countTokens(CharSequence text) {
+        Matcher matcher = BpeTokenizer.CL100K_PATTERN.matcher(text);
+        int count = 0;
+        while (matcher.find()) {
+            count += pieceTokens(matcher.end() - matcher.start());
+        }
+        return count;
+    }
+    
+    @Override
+    public String truncate(String text, int maxTokens) {
+        if (maxTokens <= 0) {
+            return "";
+        }
+        
+        Matcher matcher = BpeTokenizer.CL100K_PATTERN.matcher(text);
+        int count = 0;
+        while (matcher.find()) {
+            int pieceTokens = pieceTokens(matcher.end() - matcher.start());
+            if (count + pieceTokens > maxTokens) {
+                int end = matcher.start() + (maxTokens - count) * CHARS_PER_TOKEN;
+                if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+                    end--;
+                }
+                return text.substring(0, end);
+            }
+            count += pieceTokens;
+        }
+        return text;
+    }
+    
+    private static int pieceTokens(int length) {
+        return (length + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+}
@@ -0,0 +1,376 @@
+package com.example.llm.llm;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte pair encoding over a tiktoken rank file (one "base64(token) rank" pair per line), such as
+ * cl100k_base. Text is split with the encoding's pre-tokenizer pattern, and each piece is encoded
+ * to UTF-8 and merged by rank, exactly as tiktoken does.
+ *
+ * Ranks live in one open-addressing table over a shared byte pool, so lookups compare byte ranges
+ * in place. With per-thread scratch buffers, counting tokens allocates nothing per piece.
+ */
+public class BpeTokenizer implements Tokenizer {
+    
+    public static final Pattern CL100K_PATTERN = Pattern.compile(
+            "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+",
+            Pattern.UNICODE_CHARACTER_CLASS
+    );
+    
+    private static final int NO_RANK = Integer.MAX_VALUE;
+    
+    private final String name;
+    private final int size;
+    private final byte[] pool;
+    private final int[] offsets; // by rank
+    private final int[] lengths; // by rank, 0 where a rank is unused
+    private final int[] table; // rank + 1 per slot, 0 when empty
+    private final int mask;
+    private final ThreadLocal<Scratch> scratch;
+    
+    private BpeTokenizer(String name, Pattern pattern, int size, byte[] pool, int[] offsets, int[] lengths) {
+        this.name = name;
+        this.size = size;
+        this.pool = pool;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.table = new int[Integer.highestOneBit(Math.max(size, 1) * 4 - 1) << 1];
+        this.mask = table.length - 1;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(pattern));
+        
+        for (int rank = 0; rank < lengths.length; rank++) {
+            if (lengths[rank] == 0) {
+                continue;
+            }
+            int slot = hash(pool, offsets[rank], offsets[rank] + lengths[rank]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = rank + 1;
+        }
+    }
+    
+    /**
+     * Reads a tiktoken rank file. Every single byte must be in the vocabulary so any input can be encoded.
+     */
+    public static BpeTokenizer load(String name, Pattern pattern, InputStream input) throws IOException {
+        ByteArrayOutputStream pool = new ByteArrayOutputStream(1 << 20);
+        int[] offsets = new int[1 << 17];
+        int[] lengths = new int[1 << 17];
+        int size = 0;
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.US_ASCII));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            
+            int space = line.indexOf(' ');
+            byte[] token;
+            int rank;
+            try {
+                token = Base64.getDecoder().decode(line.substring(0, space));
+                rank = Integer.parseInt(line.substring(space + 1).trim());
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed vocabulary line " + lineNumber + ": " + line, e);
+            }
+            if (token.length == 0 || rank < 0) {
+                throw new IOException("Malformed vocabulary line " + lineNumber + ": " + line);
+            }
+            
+            if (rank >= offsets.length) {
+                int capacity = Math.max(rank + 1, offsets.length * 2);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            if (lengths[rank] != 0) {
+                throw new IOException("Duplicate rank " + rank + " on vocabulary line " + lineNumber);
+            }
+            offsets[rank] = pool.size();
+            lengths[rank] = token.length;
+            pool.write(token, 0, token.length);
+            size++;
+        }
+        
+        int ranks = lengths.length;
+        while (ranks > 0 && lengths[ranks - 1] == 0) {
+            ranks--;
+        }
+        BpeTokenizer tokenizer = new BpeTokenizer(name, pattern, size, pool.toByteArray(),
+                Arrays.copyOf(offsets, ranks), Arrays.copyOf(lengths, ranks));
+        
+        byte[] single = new byte[1];
+        for (int b = 0; b < 256; b++) {
+            single[0] = (byte) b;
+            if (tokenizer.rank(single, 0, 1) == NO_RANK) {
+                throw new IOException("Vocabulary has no token for byte " + b);
+            }
+        }
+        return tokenizer;
+    }
+    
+    @Override
+    public String getName() {
+        return name;
+    }
+    
+    public int getVocabularySize() {
+        return size;
+    }
+    
+    @Override
+    public int countTokens(CharSequence text) {
+        return encode(text, null);
+    }
+    
+    public int[] encode(CharSequence text) {
+        TokenBuffer tokens = new TokenBuffer(text.length() / 3 + 1);
+        encode(text, tokens);
+        return tokens.toArray();
+    }
+    
+    public String decode(int[] tokens) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(tokens.length * 4);
+        for (int token : tokens) {
+            if (token < 0 || token >= lengths.length || lengths[token] == 0) {
+                throw new IllegalArgumentException("Unknown token: " + token);
+            }
+            bytes.write(pool, offsets[token], lengths[token]);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+    
+    @Override
+    public String truncate(String text, int maxTokens) {
+        if (maxTokens <= 0) {
+            return "";
+        }
+        
+        // Find the piece where the budget runs out
+        Scratch s = scratch.get();
+        Matcher matcher = s.matcher.reset(text);
+        int count = 0;
+        int pieceStart = -1;
+        int pieceEnd = -1;
+        try {
+            while (matcher.find()) {
+                int pieceTokens = encodePiece(s, utf8(text, matcher.start(), matcher.end(), s), null);
+                if (count + pieceTokens > maxTokens) {
+                    pieceStart = matcher.start();
+                    pieceEnd = matcher.end();
+                    break;
+                }
+                count += pieceTokens;
+            }
+        } finally {
+            matcher.reset("");
+        }
+        if (pieceStart < 0) {
+            return text;
+        }
+        
+        // Keep the longest prefix of that piece that still fits
+        int remaining = maxTokens - count;
+        int low = 0;
+        int high = pieceEnd - pieceStart;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (countTokens(text.subSequence(pieceStart, pieceStart + mid)) <= remaining) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int end = pieceStart + low;
+        if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+    
+    private int encode(CharSequence text, TokenBuffer out) {
+        Scratch s = scratch.get();
+        Matcher matcher = s.matcher.reset(text);
+        int count = 0;
+        try {
+            while (matcher.find()) {
+                count += encodePiece(s, utf8(text, matcher.start(), matcher.end(), s), out);
+            }
+        } finally {
+            matcher.reset(""); // do not keep the text reachable from the thread
+        }
+        return count;
+    }
+    
+    /**
+     * Merges the UTF-8 bytes of one piece by rank, as in tiktoken's byte_pair_merge. parts holds the
+     * start of every current part; ranks[i] is the rank of parts i and i + 1 merged.
+     */
+    private int encodePiece(Scratch s, int length, TokenBuffer out) {
+        byte[] bytes = s.bytes;
+        
+        int whole = rank(bytes, 0, length);
+        if (whole != NO_RANK) {
+            if (out != null) {
+                out.add(whole);
+            }
+            return 1;
+        }
+        
+        s.ensurePartCapacity(length + 1);
+        int[] parts = s.parts;
+        int[] ranks = s.ranks;
+        int size = length + 1;
+        for (int i = 0; i < size; i++) {
+            parts[i] = i;
+        }
+        for (int i = 0; i < size; i++) {
+            ranks[i] = i + 2 < size ? rank(bytes, i, i + 2) : NO_RANK;
+        }
+        
+        while (size > 2) {
+            int minRank = NO_RANK;
+            int minIndex = -1;
+            for (int i = 0; i < size - 2; i++) {
+                if (ranks[i] < minRank) {
+                    minRank = ranks[i];
+                    minIndex = i;
+                }
+            }
+            if (minIndex < 0) {
+                break;
+            }
+            
+            System.arraycopy(parts, minIndex + 2, parts, minIndex + 1, size - minIndex - 2);
+            System.arraycopy(ranks, minIndex + 2, ranks, minIndex + 1, size - minIndex - 2);
+            size--;
+            ranks[minIndex] = minIndex + 2 < size ? rank(bytes, parts[minIndex], parts[minIndex + 2]) : NO_RANK;
+            if (minIndex > 0) {
+                ranks[minIndex - 1] = rank(bytes, parts[minIndex - 1], parts[minIndex + 1]);
+            }
+        }
+        
+        if (out != null) {
+            for (int i = 0; i < size - 1; i++) {
+                out.add(rank(bytes, parts[i], parts[i + 1]));
+            }
+        }
+        return size - 1;
+    }
+    
+    private int rank(byte[] bytes, int from, int to) {
+        int length = to - from;
+        int slot = hash(bytes, from, to) & mask;
+        while (true) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return NO_RANK;
+            }
+            int rank = entry - 1;
+            if (lengths[rank] == length
+                    && Arrays.equals(pool, offsets[rank], offsets[rank] + length, bytes, from, to)) {
+                return rank;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 0x811c9dc5;
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+    
+    /**
+     * Encodes chars [start, end) as UTF-8 into the scratch buffer and returns the byte count.
+     * Unpaired surrogates become U+FFFD, as with String.getBytes.
+     */
+    private static int utf8(CharSequence text, int start, int end, Scratch s) {
+        s.ensureByteCapacity((end - start) * 3);
+        byte[] bytes = s.bytes;
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[n++] = (byte) (0xc0 | (c >> 6));
+                bytes[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                bytes[n++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[n++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                if (Character.isSurrogate(c)) {
+                    c = '\uFFFD';
+                }
+                bytes[n++] = (byte) (0xe0 | (c >> 12));
+                bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return n;
+    }
+    
+    private static final class Scratch {
+        
+        private final Matcher matcher;
+        private byte[] bytes = new byte[256];
+        private int[] parts = new int[257];
+        private int[] ranks = new int[257];
+        
+        private Scratch(Pattern pattern) {
+            this.matcher = pattern.matcher("");
+        }
+        
+        private void ensureByteCapacity(int capacity) {
+            if (bytes.length < capacity) {
+                bytes = new byte[Math.max(capacity, bytes.length * 2)];
+            }
+        }
+        
+        private void ensurePartCapacity(int capacity) {
+            if (parts.length < capacity) {
+                parts = new int[Math.max(capacity, parts.length * 2)];
+                ranks = new int[parts.length];
+            }
+        }
+    }
+    
+    private static final class TokenBuffer {
+        
+        private int[] tokens;
+        private int size;
+        
+        private TokenBuffer(int capacity) {
+            this.tokens = new int[capacity];
+        }
+        
+        private void add(int token) {
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, size * 2);
+            }
+            tokens[size++] = token;
+        }
+        
+        private int[] toArray() {
+            return Arrays.copyOf(tokens, size);
+        }
+    }
+}
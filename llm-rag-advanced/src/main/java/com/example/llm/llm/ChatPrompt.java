@@ -18,4 +18,15 @@ public class ChatPrompt {
     private List<ToolDefinition> tools;
     private Double temperature;
     private Integer maxTokens;
+    
+    /**
+     * The system prompt followed by the retrieved context, as one system message
+     */
+    public String systemMessageWithContext() {
+        String prompt = systemPrompt != null ? systemPrompt : "";
+        if (context == null || context.isEmpty()) {
+            return prompt;
+        }
+        return prompt + "\n\nContext:\n" + context;
+    }
 }
@@ -27,11 +27,33 @@ public interface LlmProvider {
      */
     Mono<List<float[]>> embed(List<String> texts);
     
+    /**
+     * Generate embeddings for texts being ingested, which may wait behind interactive calls
+     */
+    default Mono<List<float[]>> embedForIngestion(List<String> texts) {
+        return embed(texts);
+    }
+    
     /**
      * Get the model name being used
      */
     String getModelName();
     
+    /**
+     * Get the embedding model name being used
+     */
+    String getEmbeddingModelName();
+    
+    /**
+     * Get the model's context window in tokens, shared by the prompt and the completion
+     */
+    int getContextWindow();
+    
+    /**
+     * Get the sampling temperature used when the prompt does not set one
+     */
+    double getTemperature();
+    
     /**
      * Check if the provider is available
      */
@@ -5,12 +5,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,12 +20,9 @@ import java.util.Map;
 @Slf4j
 public class OllamaProvider implements LlmProvider {
     
-    private final WebClient webClient;
+    private final WebClient ollamaWebClient; // base URL comes with the client
     private final ObjectMapper objectMapper;
     
-    @Value("${app.ollama.baseUrl}")
-    private String baseUrl;
-    
     @Value("${app.ollama.model}")
     private String model;
     
@@ -38,23 +35,29 @@ public class OllamaProvider implements LlmProvider {
     @Value("${app.ollama.maxTokens:2000}")
     private Integer maxTokens;
     
+    @Value("${app.ollama.contextWindow:8192}")
+    private int contextWindow;
+    
+    @Value("${app.rag.embedding.concurrency:4}")
+    private int embeddingConcurrency;
+    
     @Override
     public Mono<Flux<String>> chatStream(ChatPrompt prompt) {
         log.debug("Ollama streaming chat with model: {}", model);
         
         Map<String, Object> requestBody = buildChatRequest(prompt, true);
         
-        return webClient.post()
-                .uri(baseUrl + "/api/generate")
-                .bodyValue(requestBody)
-                .retrieve()
-                .bodyToFlux(String.class)
-                .map(this::parseStreamResponse)
-                .flatMapMany(Flux::fromIterable)
-                .map(this::extractToken)
-                .filter(token -> token != null && !token.isEmpty())
-                .collectList()
-                .map(Flux::fromIterable);
+        // Ollama streams NDJSON, one object per line until "done" is true
+        Flux<String> tokens = StreamLineDecoder.decodeLines(ollamaWebClient.post()
+                        .uri("/api/generate")
+                        .bodyValue(requestBody)
+                        .retrieve()
+                        .bodyToFlux(DataBuffer.class))
+                .filter(line -> !line.isBlank())
+                .mapNotNull(this::parseStreamLine)
+                .filter(token -> !token.isEmpty());
+        
+        return Mono.just(tokens);
     }
     
     @Override
@@ -63,8 +66,8 @@ public class OllamaProvider implements LlmProvider {
         
         Map<String, Object> requestBody = buildChatRequest(prompt, false);
         
-        return webClient.post()
-                .uri(baseUrl + "/api/generate")
+        return ollamaWebClient.post()
+                .uri("/api/generate")
                 .bodyValue(requestBody)
                 .retrieve()
                 .bodyToMono(String.class)
@@ -80,8 +83,8 @@ public class OllamaProvider implements LlmProvider {
                 "prompt", text
         );
         
-        return webClient.post()
-                .uri(baseUrl + "/api/embeddings")
+        return ollamaWebClient.post()
+                .uri("/api/embeddings")
                 .bodyValue(requestBody)
                 .retrieve()
                 .bodyToMono(String.class)
@@ -93,8 +96,9 @@ public class OllamaProvider implements LlmProvider {
         log.debug("Ollama batch embedding for {} texts", texts.size());
         
         // Ollama doesn't support batch embeddings, so we'll do them one by one
+        // flatMapSequential keeps results aligned with the input order
         return Flux.fromIterable(texts)
-                .flatMap(this::embed)
+                .flatMapSequential(this::embed, embeddingConcurrency)
                 .collectList();
     }
     
@@ -103,10 +107,25 @@ public class OllamaProvider implements LlmProvider {
         return model;
     }
     
+    @Override
+    public String getEmbeddingModelName() {
+        return embeddingModel;
+    }
+    
+    @Override
+    public int getContextWindow() {
+        return contextWindow;
+    }
+    
+    @Override
+    public double getTemperature() {
+        return temperature;
+    }
+    
     @Override
     public Mono<Boolean> isAvailable() {
-        return webClient.get()
-                .uri(baseUrl + "/api/tags")
+        return ollamaWebClient.get()
+                .uri("/api/tags")
                 .retrieve()
                 .bodyToMono(String.class)
                 .map(response -> response.contains(model))
@@ -142,35 +161,23 @@ public class OllamaProvider implements LlmProvider {
         requestBody.put("stream", stream);
         requestBody.put("options", Map.of(
                 "temperature", prompt.getTemperature() != null ? prompt.getTemperature() : temperature,
-                "num_predict", prompt.getMaxTokens() != null ? prompt.getMaxTokens() : maxTokens
+                "num_predict", prompt.getMaxTokens() != null ? prompt.getMaxTokens() : maxTokens,
+                "num_ctx", contextWindow
         ));
         
         return requestBody;
     }
     
-    private List<String> parseStreamResponse(String response) {
-        List<String> tokens = new ArrayList<>();
+    private String parseStreamLine(String line) {
         try {
-            String[] lines = response.split("\n");
-            for (String line : lines) {
-                if (line.trim().isEmpty()) continue;
-                
-                JsonNode jsonNode = objectMapper.readTree(line);
-                if (jsonNode.has("response")) {
-                    tokens.add(jsonNode.get("response").asText());
-                }
-                if (jsonNode.has("done") && jsonNode.get("done").asBoolean()) {
-                    break;
-                }
+            JsonNode jsonNode = objectMapper.readTree(line);
+            if (jsonNode.has("response")) {
+                return jsonNode.get("response").asText();
             }
         } catch (Exception e) {
-            log.error("Error parsing Ollama stream response", e);
+            log.error("Error parsing Ollama stream line: {}", line, e);
         }
-        return tokens;
-    }
-    
-    private String extractToken(String token) {
-        return token;
+        return null;
     }
     
     private String parseChatResponse(String response) {
@@ -199,8 +206,8 @@ public class OllamaProvider implements LlmProvider {
                 }
             }
         } catch (Exception e) {
-            log.error("Error parsing Ollama embedding response", e);
+            throw new IllegalStateException("Malformed Ollama embedding response", e);
         }
-        return new float[0];
+        throw new IllegalStateException("Ollama embedding response has no embedding");
     }
 }
@@ -5,6 +5,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
@@ -20,18 +22,12 @@ import java.util.Map;
 @Slf4j
 public class OpenAiProvider implements LlmProvider {
     
-    private final WebClient webClient;
+    private final WebClient openAiWebClient; // base URL and authentication come with the client
     private final ObjectMapper objectMapper;
     
-    @Value("${app.openai.apiKey}")
-    private String apiKey;
-    
     @Value("${app.openai.model}")
     private String model;
     
-    @Value("${app.openai.baseUrl}")
-    private String baseUrl;
-    
     @Value("${app.openai.embeddingModel}")
     private String embeddingModel;
     
@@ -41,24 +37,43 @@ public class OpenAiProvider implements LlmProvider {
     @Value("${app.openai.maxTokens:2000}")
     private Integer maxTokens;
     
+    @Value("${app.openai.contextWindow:128000}")
+    private int contextWindow;
+    
+    /**
+     * A provider for another OpenAI-compatible endpoint, configured explicitly instead of from
+     * app.openai. The client carries the endpoint's base URL and credentials.
+     */
+    public static OpenAiProvider forEndpoint(WebClient webClient, ObjectMapper objectMapper, String model,
+                                             String embeddingModel, double temperature, int maxTokens, int contextWindow) {
+        OpenAiProvider provider = new OpenAiProvider(webClient, objectMapper);
+        provider.model = model;
+        provider.embeddingModel = embeddingModel;
+        provider.temperature = temperature;
+        provider.maxTokens = maxTokens;
+        provider.contextWindow = contextWindow;
+        return provider;
+    }
+    
     @Override
     public Mono<Flux<String>> chatStream(ChatPrompt prompt) {
         log.debug("OpenAI streaming chat with model: {}", model);
         
         Map<String, Object> requestBody = buildChatRequest(prompt, true);
         
-        return webClient.post()
-                .uri(baseUrl + "/chat/completions")
-                .header("Authorization", "Bearer " + apiKey)
-                .bodyValue(requestBody)
-                .retrieve()
-                .bodyToFlux(String.class)
-                .map(this::parseStreamResponse)
-                .flatMapMany(Flux::fromIterable)
-                .map(this::extractToken)
-                .filter(token -> token != null && !token.isEmpty())
-                .collectList()
-                .map(Flux::fromIterable);
+        // Decode SSE lines as they arrive so each token is emitted without waiting for the full completion
+        Flux<String> tokens = StreamLineDecoder.decodeLines(openAiWebClient.post()
+                        .uri("/chat/completions")
+                        .accept(MediaType.TEXT_EVENT_STREAM)
+                        .bodyValue(requestBody)
+                        .retrieve()
+                        .bodyToFlux(DataBuffer.class))
+                .mapNotNull(StreamLineDecoder::sseData)
+                .takeWhile(data -> !data.equals("[DONE]"))
+                .mapNotNull(this::parseStreamChunk)
+                .filter(token -> !token.isEmpty());
+        
+        return Mono.just(tokens);
     }
     
     @Override
@@ -67,9 +82,8 @@ public class OpenAiProvider implements LlmProvider {
         
         Map<String, Object> requestBody = buildChatRequest(prompt, false);
         
-        return webClient.post()
-                .uri(baseUrl + "/chat/completions")
-                .header("Authorization", "Bearer " + apiKey)
+        return openAiWebClient.post()
+                .uri("/chat/completions")
                 .bodyValue(requestBody)
                 .retrieve()
                 .bodyToMono(String.class)
@@ -85,9 +99,8 @@ public class OpenAiProvider implements LlmProvider {
                 "input", text
         );
         
-        return webClient.post()
-                .uri(baseUrl + "/embeddings")
-                .header("Authorization", "Bearer " + apiKey)
+        return openAiWebClient.post()
+                .uri("/embeddings")
                 .bodyValue(requestBody)
                 .retrieve()
                 .bodyToMono(String.class)
@@ -103,9 +116,8 @@ public class OpenAiProvider implements LlmProvider {
                 "input", texts
         );
         
-        return webClient.post()
-                .uri(baseUrl + "/embeddings")
-                .header("Authorization", "Bearer " + apiKey)
+        return openAiWebClient.post()
+                .uri("/embeddings")
                 .bodyValue(requestBody)
                 .retrieve()
                 .bodyToMono(String.class)
@@ -117,11 +129,25 @@ public class OpenAiProvider implements LlmProvider {
         return model;
     }
     
+    @Override
+    public String getEmbeddingModelName() {
+        return embeddingModel;
+    }
+    
+    @Override
+    public int getContextWindow() {
+        return contextWindow;
+    }
+    
+    @Override
+    public double getTemperature() {
+        return temperature;
+    }
+    
     @Override
     public Mono<Boolean> isAvailable() {
-        return webClient.get()
-                .uri(baseUrl + "/models")
-                .header("Authorization", "Bearer " + apiKey)
+        return openAiWebClient.get()
+                .uri("/models")
                 .retrieve()
                 .bodyToMono(String.class)
                 .map(response -> response.contains(model))
@@ -131,15 +157,10 @@ public class OpenAiProvider implements LlmProvider {
     private Map<String, Object> buildChatRequest(ChatPrompt prompt, boolean stream) {
         List<Map<String, Object>> messages = new ArrayList<>();
         
-        // Add system prompt
-        if (prompt.getSystemPrompt() != null && !prompt.getSystemPrompt().isEmpty()) {
-            messages.add(Map.of("role", "system", "content", prompt.getSystemPrompt()));
-        }
-        
-        // Add context if available
-        if (prompt.getContext() != null && !prompt.getContext().isEmpty()) {
-            String contextMessage = prompt.getSystemPrompt() + "\n\nContext:\n" + prompt.getContext();
-            messages.add(Map.of("role", "system", "content", contextMessage));
+        // Add system prompt, with the context if available
+        String systemMessage = prompt.systemMessageWithContext();
+        if (!systemMessage.isEmpty()) {
+            messages.add(Map.of("role", "system", "content", systemMessage));
         }
         
         // Add history
@@ -190,34 +211,20 @@ public class OpenAiProvider implements LlmProvider {
         return openAITools;
     }
     
-    private List<String> parseStreamResponse(String response) {
-        List<String> tokens = new ArrayList<>();
+    private String parseStreamChunk(String data) {
         try {
-            String[] lines = response.split("\n");
-            for (String line : lines) {
-                if (line.startsWith("data: ")) {
-                    String data = line.substring(6);
-                    if (data.equals("[DONE]")) {
-                        break;
-                    }
-                    JsonNode jsonNode = objectMapper.readTree(data);
-                    JsonNode choices = jsonNode.get("choices");
-                    if (choices != null && choices.isArray() && choices.size() > 0) {
-                        JsonNode delta = choices.get(0).get("delta");
-                        if (delta != null && delta.has("content")) {
-                            tokens.add(delta.get("content").asText());
-                        }
-                    }
+            JsonNode jsonNode = objectMapper.readTree(data);
+            JsonNode choices = jsonNode.get("choices");
+            if (choices != null && choices.isArray() && choices.size() > 0) {
+                JsonNode delta = choices.get(0).get("delta");
+                if (delta != null && delta.hasNonNull("content")) {
+                    return delta.get("content").asText();
                 }
             }
         } catch (Exception e) {
-            log.error("Error parsing stream response", e);
+            log.error("Error parsing stream chunk: {}", data, e);
         }
-        return tokens;
-    }
-    
-    private String extractToken(String token) {
-        return token;
+        return null;
     }
     
     private String parseChatResponse(String response) {
@@ -248,9 +255,9 @@ public class OpenAiProvider implements LlmProvider {
                 }
             }
         } catch (Exception e) {
-            log.error("Error parsing embedding response", e);
+            throw new IllegalStateException("Malformed OpenAI embedding response", e);
         }
-        return new float[0];
+        throw new IllegalStateException("OpenAI embedding response has no embedding");
     }
     
     private List<float[]> parseBatchEmbeddingResponse(String response) {
@@ -258,22 +265,35 @@ public class OpenAiProvider implements LlmProvider {
             JsonNode jsonNode = objectMapper.readTree(response);
             JsonNode data = jsonNode.get("data");
             if (data != null && data.isArray()) {
-                List<float[]> result = new ArrayList<>();
-                for (JsonNode item : data) {
+                // Place each embedding by its "index" so results line up with the inputs
+                float[][] ordered = new float[data.size()][];
+                for (int position = 0; position < data.size(); position++) {
+                    JsonNode item = data.get(position);
                     JsonNode embedding = item.get("embedding");
                     if (embedding != null && embedding.isArray()) {
                         float[] embeddingArray = new float[embedding.size()];
                         for (int i = 0; i < embedding.size(); i++) {
                             embeddingArray[i] = embedding.get(i).floatValue();
                         }
-                        result.add(embeddingArray);
+                        int index = item.path("index").asInt(position);
+                        ordered[index < ordered.length ? index : position] = embeddingArray;
+                    }
+                }
+                
+                List<float[]> result = new ArrayList<>();
+                for (float[] embeddingArray : ordered) {
+                    if (embeddingArray == null) {
+                        throw new IllegalStateException("OpenAI batch embedding response is missing an embedding");
                     }
+                    result.add(embeddingArray);
                 }
                 return result;
             }
+        } catch (IllegalStateException e) {
+            throw e;
         } catch (Exception e) {
-            log.error("Error parsing batch embedding response", e);
+            throw new IllegalStateException("Malformed OpenAI batch embedding response", e);
         }
-        return new ArrayList<>();
+        throw new IllegalStateException("OpenAI batch embedding response has no data");
     }
 }
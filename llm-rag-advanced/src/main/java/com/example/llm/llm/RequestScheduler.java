@@ -0,0 +1,287 @@
+package com.example.llm.llm;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Paces requests to a provider so they stay under its requests-per-minute and tokens-per-minute
+ * limits. Both budgets are token buckets refilling continuously at limit per minute. A request waits
+ * in a priority queue until the buckets hold its estimated tokens; interactive requests go before
+ * background ones, and background requests may only spend down to the reserve left for interactive
+ * ones, so bulk ingestion cannot starve chat.
+ *
+ * The provider's x-ratelimit-* response headers correct the local estimate: limits replace the
+ * configured ones, and remaining counts lower the buckets when the provider has seen more usage (from
+ * other nodes or other clients of the key). A 429 pauses dispatch until the provider's retry-after.
+ */
+@Slf4j
+public class RequestScheduler {
+    
+    public enum Priority { INTERACTIVE, BACKGROUND }
+    
+    private static final long MIN_WAKEUP_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+    
+    private final String name;
+    private final double backgroundMaxShare;
+    private final int maxQueueSize;
+    private final Duration maxWait;
+    private final MeterRegistry meterRegistry;
+    private final PriorityQueue<Pending> queue = new PriorityQueue<>();
+    
+    private double requestLimit;
+    private double tokenLimit;
+    private double requests;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private long pausedUntil = 0;
+    private long sequence = 0;
+    private Disposable wakeup;
+    
+    public RequestScheduler(String name, int requestsPerMinute, int tokensPerMinute, double backgroundMaxShare,
+                            int maxQueueSize, Duration maxWait, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.requestLimit = Math.max(1, requestsPerMinute);
+        this.tokenLimit = Math.max(1, tokensPerMinute);
+        this.requests = requestLimit;
+        this.tokens = tokenLimit;
+        this.backgroundMaxShare = Math.min(1.0, Math.max(0.05, backgroundMaxShare));
+        this.maxQueueSize = maxQueueSize;
+        this.maxWait = maxWait;
+        this.meterRegistry = meterRegistry;
+        
+        for (Priority priority : Priority.values()) {
+            meterRegistry.gauge("llm.scheduler.queue", Tags.of("provider", name, "priority", priority.name().toLowerCase()),
+                    this, scheduler -> scheduler.queued(priority));
+        }
+        meterRegistry.gauge("llm.scheduler.budget", Tags.of("provider", name, "kind", "requests"), this, scheduler -> scheduler.budget(false));
+        meterRegistry.gauge("llm.scheduler.budget", Tags.of("provider", name, "kind", "tokens"), this, scheduler -> scheduler.budget(true));
+    }
+    
+    /**
+     * Completes once a request of the estimated size may be sent, or fails when it waited longer
+     * than maxWait or the queue is full. Cancelling gives up the place in the queue.
+     */
+    public Mono<Void> acquire(Priority priority, int estimatedTokens) {
+        return Mono.<Void>create(sink -> {
+                    Pending pending;
+                    synchronized (this) {
+                        if (queue.size() >= maxQueueSize) {
+                            sink.error(new IllegalStateException("Request queue for " + name + " is full"));
+                            return;
+                        }
+                        pending = new Pending(priority, sequence++, Math.max(1, estimatedTokens), sink);
+                        queue.add(pending);
+                    }
+                    sink.onCancel(() -> cancel(pending));
+                    drain();
+                })
+                .timeout(maxWait, Mono.error(() -> new IllegalStateException(
+                        "Timed out waiting for the " + name + " rate limit after " + maxWait)));
+    }
+    
+    /**
+     * Feeds the rate limit headers and status of a provider response back into the budgets.
+     */
+    public ExchangeFilterFunction responseFilter() {
+        return ExchangeFilterFunction.ofResponseProcessor(response -> {
+            onResponse(response.statusCode(), response.headers().asHttpHeaders());
+            return Mono.just(response);
+        });
+    }
+    
+    private void onResponse(HttpStatusCode status, HttpHeaders headers) {
+        synchronized (this) {
+            refill();
+            
+            Double limitRequests = number(headers.getFirst("x-ratelimit-limit-requests"));
+            Double limitTokens = number(headers.getFirst("x-ratelimit-limit-tokens"));
+            if (limitRequests != null && limitRequests > 0) {
+                requestLimit = limitRequests;
+            }
+            if (limitTokens != null && limitTokens > 0) {
+                tokenLimit = limitTokens;
+            }
+            
+            // Only lowered: the headers lag behind requests this node already sent
+            Double remainingRequests = number(headers.getFirst("x-ratelimit-remaining-requests"));
+            Double remainingTokens = number(headers.getFirst("x-ratelimit-remaining-tokens"));
+            if (remainingRequests != null) {
+                requests = Math.min(requests, remainingRequests);
+            }
+            if (remainingTokens != null) {
+                tokens = Math.min(tokens, remainingTokens);
+            }
+            
+            if (status.value() == 429) {
+                long retryNanos = retryAfterNanos(headers);
+                pausedUntil = Math.max(pausedUntil, System.nanoTime() + retryNanos);
+                meterRegistry.counter("llm.scheduler.throttled", "provider", name).increment();
+                log.warn("Provider {} rate limited the client, pausing dispatch for {} ms", name, TimeUnit.NANOSECONDS.toMillis(retryNanos));
+            }
+        }
+        drain();
+    }
+    
+    private void drain() {
+        List<Pending> ready = new ArrayList<>();
+        synchronized (this) {
+            refill();
+            long now = System.nanoTime();
+            long waitNanos = 0;
+            
+            while (!queue.isEmpty()) {
+                if (now < pausedUntil) {
+                    waitNanos = pausedUntil - now;
+                    break;
+                }
+                
+                Pending head = queue.peek();
+                double reserve = head.priority == Priority.BACKGROUND ? 1.0 - backgroundMaxShare : 0.0;
+                double requestFloor = Math.min(reserve * requestLimit, requestLimit - 1);
+                double tokenFloor = reserve * tokenLimit;
+                // A request larger than its share of the bucket goes once that share is full
+                double needTokens = Math.min(head.tokens, tokenLimit - tokenFloor);
+                
+                if (requests - 1 >= requestFloor - 1e-9 && tokens - needTokens >= tokenFloor - 1e-9) {
+                    requests -= 1;
+                    tokens -= needTokens;
+                    ready.add(queue.poll());
+                    continue;
+                }
+                
+                double requestDeficit = Math.max(0, requestFloor + 1 - requests);
+                double tokenDeficit = Math.max(0, tokenFloor + needTokens - tokens);
+                double minutes = Math.max(requestDeficit / requestLimit, tokenDeficit / tokenLimit);
+                waitNanos = (long) (minutes * TimeUnit.MINUTES.toNanos(1));
+                break;
+            }
+            
+            if (!queue.isEmpty() && wakeup == null) {
+                wakeup = Schedulers.parallel().schedule(() -> {
+                    synchronized (this) {
+                        wakeup = null;
+                    }
+                    drain();
+                }, Math.max(MIN_WAKEUP_NANOS, waitNanos), TimeUnit.NANOSECONDS);
+            }
+        }
+        
+        for (Pending pending : ready) {
+            pending.sample.stop(meterRegistry.timer("llm.scheduler.wait", "provider", name, "priority", pending.priority.name().toLowerCase()));
+            pending.sink.success();
+        }
+    }
+    
+    private void refill() {
+        long now = System.nanoTime();
+        double minutes = (now - refilledAt) / (double) TimeUnit.MINUTES.toNanos(1);
+        refilledAt = now;
+        requests = Math.min(requestLimit, requests + minutes * requestLimit);
+        tokens = Math.min(tokenLimit, tokens + minutes * tokenLimit);
+    }
+    
+    private void cancel(Pending pending) {
+        synchronized (this) {
+            queue.remove(pending);
+        }
+    }
+    
+    private synchronized int queued(Priority priority) {
+        int count = 0;
+        for (Pending pending : queue) {
+            if (pending.priority == priority) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    private synchronized double budget(boolean tokenBudget) {
+        refill();
+        return tokenBudget ? tokens : requests;
+    }
+    
+    private static long retryAfterNanos(HttpHeaders headers) {
+        Double retryAfterMillis = number(headers.getFirst("retry-after-ms"));
+        if (retryAfterMillis != null) {
+            return TimeUnit.MICROSECONDS.toNanos((long) (retryAfterMillis * 1000));
+        }
+        Double retryAfterSeconds = number(headers.getFirst("retry-after"));
+        if (retryAfterSeconds != null) {
+            return (long) (retryAfterSeconds * TimeUnit.SECONDS.toNanos(1));
+        }
+        long reset = Math.max(resetNanos(headers.getFirst("x-ratelimit-reset-requests")),
+                resetNanos(headers.getFirst("x-ratelimit-reset-tokens")));
+        return reset > 0 ? reset : TimeUnit.SECONDS.toNanos(1);
+    }
+    
+    /**
+     * Parses reset durations in the provider's format, e.g. 1s, 6m0s or 20ms.
+     */
+    private static long resetNanos(String value) {
+        if (value == null) {
+            return 0;
+        }
+        long nanos = 0;
+        Matcher matcher = DURATION_PART.matcher(value);
+        while (matcher.find()) {
+            double amount = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "h" -> nanos += (long) (amount * TimeUnit.HOURS.toNanos(1));
+                case "m" -> nanos += (long) (amount * TimeUnit.MINUTES.toNanos(1));
+                case "s" -> nanos += (long) (amount * TimeUnit.SECONDS.toNanos(1));
+                default -> nanos += (long) (amount * TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+        return nanos;
+    }
+    
+    private static Double number(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    private static class Pending implements Comparable<Pending> {
+        
+        private final Priority priority;
+        private final long sequence;
+        private final int tokens;
+        private final MonoSink<Void> sink;
+        private final Timer.Sample sample = Timer.start();
+        
+        private Pending(Priority priority, long sequence, int tokens, MonoSink<Void> sink) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.tokens = tokens;
+            this.sink = sink;
+        }
+        
+        @Override
+        public int compareTo(Pending other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.example.llm.llm;
+
+import com.example.llm.util.CircuitBreaker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Routes chat calls across several providers. Each provider keeps an EWMA of its latency (time to
+ * first token for streams, to the full answer otherwise) and of its error rate, plus a circuit
+ * breaker that takes it out of rotation after consecutive failures. A call goes to the provider with
+ * the lowest latency divided by its success rate; providers without samples yet are tried first so
+ * every one gets measured.
+ *
+ * A call that fails before producing output moves on to the next provider. A call still waiting
+ * after the provider's hedgePercentile latency is hedged: the next provider is asked too and the
+ * first to answer wins, the other is cancelled. A call that fails before its hedge delay is up
+ * starts the hedge right away rather than waiting the delay out.
+ *
+ * Embeddings always go to the first provider, since vectors from different models are not
+ * comparable. The context window is the smallest of all providers, so a prompt fits wherever it
+ * is routed.
+ */
+@Slf4j
+public class RoutingLlmProvider implements LlmProvider {
+    
+    private static final int LATENCY_WINDOW = 128;
+    
+    private final List<Route> routes;
+    private final double ewmaAlpha;
+    private final boolean hedgeEnabled;
+    private final double hedgePercentile;
+    private final Duration hedgeMinDelay;
+    private final int hedgeMinSamples;
+    private final MeterRegistry meterRegistry;
+    
+    /**
+     * @param providers candidate providers by name, in preference order
+     */
+    public RoutingLlmProvider(LinkedHashMap<String, LlmProvider> providers, double ewmaAlpha, int failureThreshold,
+                              Duration openDuration, boolean hedgeEnabled, double hedgePercentile,
+                              Duration hedgeMinDelay, int hedgeMinSamples, MeterRegistry meterRegistry) {
+        if (providers.isEmpty()) {
+            throw new IllegalArgumentException("At least one provider is required for routing");
+        }
+        
+        this.ewmaAlpha = ewmaAlpha;
+        this.hedgeEnabled = hedgeEnabled;
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeMinDelay = hedgeMinDelay;
+        this.hedgeMinSamples = hedgeMinSamples;
+        this.meterRegistry = meterRegistry;
+        
+        this.routes = new ArrayList<>();
+        providers.forEach((name, provider) -> {
+            Route route = new Route(name, provider, new CircuitBreaker(failureThreshold, openDuration), routes.size());
+            routes.add(route);
+            meterRegistry.gauge("llm.route.latency", Tags.of("provider", name, "kind", "first_token"), route,
+                    r -> r.firstToken.getEwmaMillis());
+            meterRegistry.gauge("llm.route.latency", Tags.of("provider", name, "kind", "completion"), route,
+                    r -> r.completion.getEwmaMillis());
+            meterRegistry.gauge("llm.route.error.rate", Tags.of("provider", name), route, Route::getErrorRate);
+        });
+    }
+    
+    @Override
+    public Mono<Flux<String>> chatStream(ChatPrompt prompt) {
+        return Mono.just(Flux.defer(() -> streamFrom(rank(true), 0, prompt)));
+    }
+    
+    @Override
+    public Mono<String> chat(ChatPrompt prompt) {
+        return Mono.defer(() -> chatFrom(rank(false), 0, prompt));
+    }
+    
+    private Mono<String> chatFrom(List<Route> ranked, int from, ChatPrompt prompt) {
+        Route route = ranked.get(from);
+        Mono<String> attempt = callChat(route, prompt);
+        
+        int next = from + 1;
+        Duration hedgeDelay = next < ranked.size() ? hedgeDelay(route.completion) : null;
+        if (hedgeDelay != null) {
+            Route hedge = ranked.get(next);
+            Sinks.One<Throwable> failed = Sinks.one();
+            attempt = Mono.firstWithValue(attempt.doOnError(failed::tryEmitValue),
+                    hedgeTrigger(hedgeDelay, failed, route, hedge).then(Mono.defer(() -> callChat(hedge, prompt))));
+            next++;
+        }
+        
+        if (next >= ranked.size()) {
+            return attempt;
+        }
+        int remaining = next;
+        return attempt.onErrorResume(error -> {
+            failover(route, ranked.get(remaining), error);
+            return chatFrom(ranked, remaining, prompt);
+        });
+    }
+    
+    private Flux<String> streamFrom(List<Route> ranked, int from, ChatPrompt prompt) {
+        Route route = ranked.get(from);
+        AtomicBoolean emitted = new AtomicBoolean(false);
+        Flux<String> attempt = callStream(route, prompt);
+        
+        int next = from + 1;
+        Duration hedgeDelay = next < ranked.size() ? hedgeDelay(route.firstToken) : null;
+        if (hedgeDelay != null) {
+            Route hedge = ranked.get(next);
+            Sinks.One<Throwable> failed = Sinks.one();
+            attempt = Flux.firstWithValue(attempt.doOnError(failed::tryEmitValue),
+                    hedgeTrigger(hedgeDelay, failed, route, hedge).thenMany(Flux.defer(() -> callStream(hedge, prompt))));
+            next++;
+        }
+        attempt = attempt.doOnNext(token -> emitted.set(true));
+        
+        if (next >= ranked.size()) {
+            return attempt;
+        }
+        int remaining = next;
+        return attempt.onErrorResume(error -> {
+            // Tokens already sent cannot be taken back, so only a stream that failed before its first one moves on
+            if (emitted.get()) {
+                return Flux.error(error);
+            }
+            failover(route, ranked.get(remaining), error);
+            return streamFrom(ranked, remaining, prompt);
+        });
+    }
+    
+    private Mono<String> callChat(Route route, ChatPrompt prompt) {
+        return call(route, provider -> provider.chat(prompt).flux(), route.completion).last();
+    }
+    
+    private Flux<String> callStream(Route route, ChatPrompt prompt) {
+        return call(route, provider -> provider.chatStream(prompt).flatMapMany(tokens -> tokens), route.firstToken);
+    }
+    
+    /**
+     * Runs the call on the route, recording the latency to its first element and the outcome.
+     */
+    private Flux<String> call(Route route, Function<LlmProvider, Flux<String>> call, LatencyStats latency) {
+        return Flux.defer(() -> {
+            if (!route.circuitBreaker.tryAcquire()) {
+                return Flux.error(new IllegalStateException("Provider " + route.name + " is unavailable"));
+            }
+            
+            long start = System.nanoTime();
+            AtomicBoolean first = new AtomicBoolean(true);
+            return call.apply(route.provider)
+                    .doOnNext(value -> {
+                        if (first.compareAndSet(true, false)) {
+                            latency.record(System.nanoTime() - start, ewmaAlpha);
+                        }
+                    })
+                    .doOnComplete(() -> {
+                        route.recordOutcome(true, ewmaAlpha);
+                        count(route, "success");
+                    })
+                    .doOnError(error -> {
+                        route.recordOutcome(false, ewmaAlpha);
+                        count(route, "failure");
+                    })
+                    .doOnCancel(() -> {
+                        // Lost a hedge race or the caller went away; says nothing about the provider
+                        route.circuitBreaker.release();
+                        count(route, "cancelled");
+                    });
+        });
+    }
+    
+    /**
+     * Providers by expected latency: unsampled ones first, then latency over success rate, with those
+     * whose circuit rejects calls last. Ties keep the configured order.
+     */
+    private List<Route> rank(boolean streaming) {
+        List<Route> ranked = new ArrayList<>(routes);
+        ranked.sort(Comparator
+                .comparing((Route route) -> !route.circuitBreaker.isCallPermitted())
+                .thenComparingDouble(route -> route.score(streaming ? route.firstToken : route.completion))
+                .thenComparingInt(route -> route.order));
+        return ranked;
+    }
+    
+    private Duration hedgeDelay(LatencyStats latency) {
+        if (!hedgeEnabled || latency.getSamples() < hedgeMinSamples) {
+            return null;
+        }
+        long percentileNanos = latency.percentileNanos(hedgePercentile);
+        return Duration.ofNanos(Math.max(percentileNanos, hedgeMinDelay.toNanos()));
+    }
+    
+    /**
+     * Completes when the hedge should start: after the delay, or as soon as the call fails.
+     */
+    private Mono<Void> hedgeTrigger(Duration hedgeDelay, Sinks.One<Throwable> failed, Route route, Route hedge) {
+        return Mono.firstWithSignal(
+                Mono.delay(hedgeDelay).doOnNext(tick -> hedged(route, hedge)).then(),
+                failed.asMono().doOnNext(error -> failover(route, hedge, error)).then());
+    }
+    
+    private void hedged(Route route, Route hedge) {
+        log.debug("Hedging slow call to {} with {}", route.name, hedge.name);
+        meterRegistry.counter("llm.route.hedges", "provider", route.name, "hedge", hedge.name).increment();
+    }
+    
+    private void failover(Route route, Route next, Throwable error) {
+        log.warn("Provider {} failed ({}), failing over to {}", route.name, error.getMessage(), next.name);
+        meterRegistry.counter("llm.route.failovers", "provider", route.name).increment();
+    }
+    
+    private void count(Route route, String result) {
+        meterRegistry.counter("llm.route.calls", "provider", route.name, "result", result).increment();
+    }
+    
+    private LlmProvider primary() {
+        return routes.get(0).provider;
+    }
+    
+    @Override
+    public Mono<float[]> embed(String text) {
+        return primary().embed(text);
+    }
+    
+    @Override
+    public Mono<List<float[]>> embed(List<String> texts) {
+        return primary().embed(texts);
+    }
+    
+    @Override
+    public Mono<List<float[]>> embedForIngestion(List<String> texts) {
+        return primary().embedForIngestion(texts);
+    }
+    
+    @Override
+    public String getModelName() {
+        return primary().getModelName();
+    }
+    
+    @Override
+    public String getEmbeddingModelName() {
+        return primary().getEmbeddingModelName();
+    }
+    
+    @Override
+    public int getContextWindow() {
+        return routes.stream()
+                .mapToInt(route -> route.provider.getContextWindow())
+                .min()
+                .orElse(primary().getContextWindow());
+    }
+    
+    @Override
+    public double getTemperature() {
+        return primary().getTemperature();
+    }
+    
+    @Override
+    public Mono<Boolean> isAvailable() {
+        return Flux.fromIterable(routes)
+                .flatMap(route -> route.provider.isAvailable().onErrorReturn(false))
+                .any(available -> available);
+    }
+    
+    private static class Route {
+        
+        private final String name;
+        private final LlmProvider provider;
+        private final CircuitBreaker circuitBreaker;
+        private final int order;
+        private final LatencyStats firstToken = new LatencyStats();
+        private final LatencyStats completion = new LatencyStats();
+        private volatile double errorRate = 0.0;
+        
+        private Route(String name, LlmProvider provider, CircuitBreaker circuitBreaker, int order) {
+            this.name = name;
+            this.provider = provider;
+            this.circuitBreaker = circuitBreaker;
+            this.order = order;
+        }
+        
+        private synchronized void recordOutcome(boolean success, double alpha) {
+            errorRate = alpha * (success ? 0.0 : 1.0) + (1 - alpha) * errorRate;
+            if (success) {
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.onFailure();
+            }
+        }
+        
+        private double score(LatencyStats latency) {
+            if (latency.getSamples() == 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return latency.getEwmaMillis() / Math.max(0.05, 1.0 - errorRate);
+        }
+        
+        public double getErrorRate() {
+            return errorRate;
+        }
+    }
+    
+    /**
+     * EWMA of latency plus the most recent samples for percentiles.
+     */
+    private static class LatencyStats {
+        
+        private final long[] window = new long[LATENCY_WINDOW];
+        private long samples = 0;
+        private double ewmaNanos = 0.0;
+        
+        private synchronized void record(long nanos, double alpha) {
+            ewmaNanos = samples == 0 ? nanos : alpha * nanos + (1 - alpha) * ewmaNanos;
+            window[(int) (samples % LATENCY_WINDOW)] = nanos;
+            samples++;
+        }
+        
+        private synchronized long percentileNanos(double percentile) {
+            int size = (int) Math.min(samples, LATENCY_WINDOW);
+            long[] sorted = Arrays.copyOf(window, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * size) - 1;
+            return sorted[Math.max(0, Math.min(index, size - 1))];
+        }
+        
+        private synchronized long getSamples() {
+            return samples;
+        }
+        
+        public synchronized double getEwmaMillis() {
+            return ewmaNanos / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.llm.llm;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Sends every call of the wrapped provider through its RequestScheduler. Ingestion embeddings are
+ * background, everything else, including batch embeddings requested through the API, is
+ * interactive. A call's tokens are estimated as the provider counts them against the limit: prompt
+ * plus max_tokens for chat, the input texts for embeddings.
+ */
+public class ScheduledLlmProvider implements LlmProvider {
+    
+    // Chat format overhead per message, as counted for OpenAI chat models
+    private static final int TOKENS_PER_MESSAGE = 4;
+    
+    private final LlmProvider delegate;
+    private final RequestScheduler scheduler;
+    private final Tokenizer tokenizer;
+    private final int defaultMaxTokens;
+    
+    public ScheduledLlmProvider(LlmProvider delegate, RequestScheduler scheduler, Tokenizer tokenizer, int defaultMaxTokens) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+        this.tokenizer = tokenizer;
+        this.defaultMaxTokens = defaultMaxTokens;
+    }
+    
+    @Override
+    public Mono<Flux<String>> chatStream(ChatPrompt prompt) {
+        return Mono.defer(() -> scheduler.acquire(RequestScheduler.Priority.INTERACTIVE, estimate(prompt)))
+                .then(Mono.defer(() -> delegate.chatStream(prompt)));
+    }
+    
+    @Override
+    public Mono<String> chat(ChatPrompt prompt) {
+        return Mono.defer(() -> scheduler.acquire(RequestScheduler.Priority.INTERACTIVE, estimate(prompt)))
+                .then(Mono.defer(() -> delegate.chat(prompt)));
+    }
+    
+    @Override
+    public Mono<float[]> embed(String text) {
+        return Mono.defer(() -> scheduler.acquire(RequestScheduler.Priority.INTERACTIVE, tokenizer.countTokens(text)))
+                .then(Mono.defer(() -> delegate.embed(text)));
+    }
+    
+    @Override
+    public Mono<List<float[]>> embed(List<String> texts) {
+        return embed(texts, RequestScheduler.Priority.INTERACTIVE);
+    }
+    
+    @Override
+    public Mono<List<float[]>> embedForIngestion(List<String> texts) {
+        return embed(texts, RequestScheduler.Priority.BACKGROUND);
+    }
+    
+    private Mono<List<float[]>> embed(List<String> texts, RequestScheduler.Priority priority) {
+        return Mono.defer(() -> {
+                    int tokens = 0;
+                    for (String text : texts) {
+                        tokens += tokenizer.countTokens(text);
+                    }
+                    return scheduler.acquire(priority, tokens);
+                })
+                .then(Mono.defer(() -> delegate.embed(texts)));
+    }
+    
+    private int estimate(ChatPrompt prompt) {
+        int tokens = TOKENS_PER_MESSAGE + tokenizer.countTokens(prompt.systemMessageWithContext());
+        if (prompt.getHistory() != null) {
+            for (ChatMessage message : prompt.getHistory()) {
+                tokens += TOKENS_PER_MESSAGE + (message.getContent() != null ? tokenizer.countTokens(message.getContent()) : 0);
+            }
+        }
+        if (prompt.getUserMessage() != null) {
+            tokens += TOKENS_PER_MESSAGE + tokenizer.countTokens(prompt.getUserMessage());
+        }
+        return tokens + (prompt.getMaxTokens() != null ? prompt.getMaxTokens() : defaultMaxTokens);
+    }
+    
+    @Override
+    public String getModelName() {
+        return delegate.getModelName();
+    }
+    
+    @Override
+    public String getEmbeddingModelName() {
+        return delegate.getEmbeddingModelName();
+    }
+    
+    @Override
+    public int getContextWindow() {
+        return delegate.getContextWindow();
+    }
+    
+    @Override
+    public double getTemperature() {
+        return delegate.getTemperature();
+    }
+    
+    @Override
+    public Mono<Boolean> isAvailable() {
+        return delegate.isAvailable();
+    }
+}
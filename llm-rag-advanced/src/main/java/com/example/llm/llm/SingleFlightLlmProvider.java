@@ -0,0 +1,92 @@
+package com.example.llm.llm;
+
+import com.example.llm.util.HashingUtils;
+import com.example.llm.util.SingleFlight;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Coalesces identical concurrent non-streaming chat calls. Only prompts sampled at temperature 0
+ * are merged, since callers of a sampled prompt expect independent completions. Everything else
+ * is passed through to the wrapped provider.
+ */
+public class SingleFlightLlmProvider implements LlmProvider {
+    
+    private final LlmProvider delegate;
+    private final ObjectMapper objectMapper;
+    private final SingleFlight<String, String> chatFlights;
+    
+    public SingleFlightLlmProvider(LlmProvider delegate, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.objectMapper = objectMapper;
+        this.chatFlights = new SingleFlight<>("llm.chat", meterRegistry);
+    }
+    
+    @Override
+    public Mono<Flux<String>> chatStream(ChatPrompt prompt) {
+        return delegate.chatStream(prompt);
+    }
+    
+    @Override
+    public Mono<String> chat(ChatPrompt prompt) {
+        double temperature = prompt.getTemperature() != null ? prompt.getTemperature() : delegate.getTemperature();
+        if (temperature != 0.0) {
+            return delegate.chat(prompt);
+        }
+        
+        String key;
+        try {
+            key = delegate.getModelName() + ":" + HashingUtils.calculateSHA256(
+                    objectMapper.writeValueAsString(prompt).getBytes(StandardCharsets.UTF_8));
+        } catch (JsonProcessingException e) {
+            return delegate.chat(prompt);
+        }
+        return chatFlights.execute(key, () -> delegate.chat(prompt));
+    }
+    
+    @Override
+    public Mono<float[]> embed(String text) {
+        return delegate.embed(text);
+    }
+    
+    @Override
+    public Mono<List<float[]>> embed(List<String> texts) {
+        return delegate.embed(texts);
+    }
+    
+    @Override
+    public Mono<List<float[]>> embedForIngestion(List<String> texts) {
+        return delegate.embedForIngestion(texts);
+    }
+    
+    @Override
+    public String getModelName() {
+        return delegate.getModelName();
+    }
+    
+    @Override
+    public String getEmbeddingModelName() {
+        return delegate.getEmbeddingModelName();
+    }
+    
+    @Override
+    public int getContextWindow() {
+        return delegate.getContextWindow();
+    }
+    
+    @Override
+    public double getTemperature() {
+        return delegate.getTemperature();
+    }
+    
+    @Override
+    public Mono<Boolean> isAvailable() {
+        return delegate.isAvailable();
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.llm.llm;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental line decoder for SSE and NDJSON response bodies.
+ * Lines are emitted as soon as their newline arrives; bytes of an unfinished line are carried
+ * over to the next buffer so multi-byte UTF-8 characters split across buffers decode correctly.
+ */
+public final class StreamLineDecoder {
+    
+    private StreamLineDecoder() {
+    }
+    
+    public static Flux<String> decodeLines(Flux<DataBuffer> buffers) {
+        return Flux.defer(() -> {
+            ByteArrayOutputStream partial = new ByteArrayOutputStream();
+            
+            return buffers
+                    .concatMapIterable(buffer -> {
+                        try {
+                            return readLines(buffer, partial);
+                        } finally {
+                            DataBufferUtils.release(buffer);
+                        }
+                    })
+                    .concatWith(Mono.fromCallable(() -> partial.size() > 0 ? toLine(partial) : null));
+        });
+    }
+    
+    /**
+     * Returns the payload of an SSE "data:" line, or null for comments, event names and blank lines.
+     */
+    public static String sseData(String line) {
+        if (!line.startsWith("data:")) {
+            return null;
+        }
+        String data = line.substring(5);
+        return data.startsWith(" ") ? data.substring(1) : data;
+    }
+    
+    private static List<String> readLines(DataBuffer buffer, ByteArrayOutputStream partial) {
+        List<String> lines = new ArrayList<>();
+        
+        int newline;
+        while ((newline = buffer.indexOf(b -> b == '\n', buffer.readPosition())) != -1) {
+            byte[] bytes = new byte[newline - buffer.readPosition()];
+            buffer.read(bytes);
+            buffer.read(); // consume '\n'
+            
+            partial.write(bytes, 0, bytes.length);
+            lines.add(toLine(partial));
+        }
+        
+        int remaining = buffer.readableByteCount();
+        if (remaining > 0) {
+            byte[] bytes = new byte[remaining];
+            buffer.read(bytes);
+            partial.write(bytes, 0, bytes.length);
+        }
+        
+        return lines;
+    }
+    
+    private static String toLine(ByteArrayOutputStream partial) {
+        String line = partial.toString(StandardCharsets.UTF_8);
+        partial.reset();
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.llm.llm;
+
+public interface Tokenizer {
+    
+    /**
+     * Name of the encoding, e.g. cl100k_base
+     */
+    String getName();
+    
+    /**
+     * Count the tokens the text encodes to
+     */
+    int countTokens(CharSequence text);
+    
+    /**
+     * Longest prefix of the text that encodes to at most maxTokens tokens
+     */
+    String truncate(String text, int maxTokens);
+}
@@ -57,6 +57,97 @@ public class ToolCallParser {
         return toolCalls;
     }
     
+    public StreamingDetector streamingDetector() {
+        return new StreamingDetector();
+    }
+    
+    /**
+     * Detects tool calls while tokens are still arriving. Text outside tool call tags is released
+     * for display immediately; tool call markup is held back and parsed as soon as its closing tag arrives.
+     */
+    public class StreamingDetector {
+        
+        private static final String OPEN_TAG = "<tool_call>";
+        private static final String CLOSE_TAG = "</tool_call>";
+        
+        private final StringBuilder pending = new StringBuilder();
+        private final List<ToolCall> toolCalls = new ArrayList<>();
+        private boolean insideToolCall = false;
+        
+        /**
+         * Accepts the next token and returns the text that is safe to show to the user.
+         */
+        public String accept(String token) {
+            pending.append(token);
+            StringBuilder visible = new StringBuilder();
+            
+            while (true) {
+                if (insideToolCall) {
+                    int end = indexOfIgnoreCase(pending, CLOSE_TAG);
+                    if (end < 0) {
+                        return visible.toString();
+                    }
+                    
+                    int blockEnd = end + CLOSE_TAG.length();
+                    toolCalls.addAll(parseToolCalls(OPEN_TAG + pending.substring(0, blockEnd)));
+                    pending.delete(0, blockEnd);
+                    insideToolCall = false;
+                } else {
+                    int start = indexOfIgnoreCase(pending, OPEN_TAG);
+                    if (start >= 0) {
+                        visible.append(pending, 0, start);
+                        pending.delete(0, start + OPEN_TAG.length());
+                        insideToolCall = true;
+                    } else {
+                        // Hold back a trailing "<tool_c" that may become a tag with the next token
+                        int release = pending.length() - partialTagLength(pending);
+                        visible.append(pending, 0, release);
+                        pending.delete(0, release);
+                        return visible.toString();
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Returns any held back text once the stream has completed.
+         */
+        public String flush() {
+            String remaining = insideToolCall ? OPEN_TAG + pending : pending.toString();
+            pending.setLength(0);
+            insideToolCall = false;
+            return remaining;
+        }
+        
+        /**
+         * Tool calls parsed from the tokens accepted so far, in order.
+         */
+        public List<ToolCall> getToolCalls() {
+            return toolCalls;
+        }
+        
+        private int indexOfIgnoreCase(CharSequence text, String tag) {
+            String value = text.toString();
+            for (int i = 0; i + tag.length() <= value.length(); i++) {
+                if (value.regionMatches(true, i, tag, 0, tag.length())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        private int partialTagLength(CharSequence text) {
+            String value = text.toString();
+            int max = Math.min(OPEN_TAG.length() - 1, value.length());
+            for (int length = max; length > 0; length--) {
+                if (value.regionMatches(true, value.length() - length, OPEN_TAG, 0, length)) {
+                    return length;
+                }
+            }
+            return 0;
+        }
+    }
+    
     public static class ToolCall {
         private final String name;
         private final String args;
@@ -0,0 +1,129 @@
+package com.example.llm.rag;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedding pipeline shared by all ingest workers. Texts from concurrent callers are coalesced into
+ * full provider batches, so many small documents cost as few requests as one large one, and the
+ * number of requests in flight is bounded once for the whole process instead of per document.
+ * A partial batch is sent after lingerMillis if no more texts arrive.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class EmbeddingBatcher {
+    
+    private final EmbeddingService embeddingService;
+    
+    @Value("${app.rag.embedding.lingerMillis:20}")
+    private long lingerMillis;
+    
+    private final Sinks.Many<List<PendingText>> batches = Sinks.many().unicast().onBackpressureBuffer();
+    private List<PendingText> pending = new ArrayList<>();
+    private Disposable lingerTask;
+    private Disposable subscription;
+    
+    @PostConstruct
+    public void start() {
+        subscription = batches.asFlux()
+                .flatMap(this::dispatch, embeddingService.getConcurrency())
+                .subscribe();
+    }
+    
+    @PreDestroy
+    public void stop() {
+        subscription.dispose();
+    }
+    
+    /**
+     * Embeds the texts, returning the vectors in input order once every batch they were put in has completed.
+     */
+    public Mono<List<float[]>> embed(List<String> texts) {
+        if (texts.isEmpty()) {
+            return Mono.just(new ArrayList<>());
+        }
+        
+        List<CompletableFuture<float[]>> futures = new ArrayList<>(texts.size());
+        int batchSize = embeddingService.getBatchSize();
+        
+        synchronized (this) {
+            for (String text : texts) {
+                PendingText pendingText = new PendingText(text);
+                futures.add(pendingText.result);
+                pending.add(pendingText);
+                if (pending.size() >= batchSize) {
+                    emitPending();
+                }
+            }
+            if (!pending.isEmpty() && lingerTask == null) {
+                lingerTask = Schedulers.parallel().schedule(this::flushLingering, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        return Mono.fromFuture(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])))
+                .then(Mono.fromCallable(() -> futures.stream()
+                        .map(CompletableFuture::join)
+                        .collect(java.util.stream.Collectors.toList())));
+    }
+    
+    private synchronized void flushLingering() {
+        lingerTask = null;
+        if (!pending.isEmpty()) {
+            emitPending();
+        }
+    }
+    
+    // Called with the lock held, which also keeps emissions into the unicast sink serialized
+    private void emitPending() {
+        List<PendingText> batch = pending;
+        pending = new ArrayList<>();
+        Sinks.EmitResult result = batches.tryEmitNext(batch);
+        if (result.isFailure()) {
+            IllegalStateException error = new IllegalStateException("Embedding pipeline is not accepting batches: " + result);
+            batch.forEach(pendingText -> pendingText.result.completeExceptionally(error));
+        }
+    }
+    
+    private Mono<Void> dispatch(List<PendingText> batch) {
+        List<String> texts = batch.stream()
+                .map(pendingText -> pendingText.text)
+                .collect(java.util.stream.Collectors.toList());
+        
+        return embeddingService.embedBatch(texts)
+                .doOnNext(embeddings -> {
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).result.complete(embeddings.get(i));
+                    }
+                })
+                .doOnError(error -> {
+                    log.error("Embedding batch of {} texts failed", batch.size(), error);
+                    batch.forEach(pendingText -> pendingText.result.completeExceptionally(error));
+                })
+                .onErrorResume(error -> Mono.empty())
+                .then();
+    }
+    
+    private static class PendingText {
+        
+        private final String text;
+        private final CompletableFuture<float[]> result = new CompletableFuture<>();
+        
+        private PendingText(String text) {
+            this.text = text;
+        }
+    }
+}
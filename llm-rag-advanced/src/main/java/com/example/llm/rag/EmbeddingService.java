@@ -1,12 +1,18 @@
 package com.example.llm.rag;
 
 import com.example.llm.llm.LlmProvider;
+import com.example.llm.util.SingleFlight;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
+import java.time.Duration;
 import java.util.List;
 
 @Service
@@ -15,10 +21,39 @@ import java.util.List;
 public class EmbeddingService {
     
     private final LlmProvider llmProvider;
+    private final QueryEmbeddingCache queryEmbeddingCache;
+    private final MeterRegistry meterRegistry;
     
     @Value("${app.rag.topK:6}")
     private int defaultTopK;
     
+    @Value("${app.rag.embedding.batchSize:64}")
+    private int batchSize;
+    
+    @Value("${app.rag.embedding.concurrency:4}")
+    private int concurrency;
+    
+    @Value("${app.rag.embedding.maxRetries:5}")
+    private int maxRetries;
+    
+    @Value("${app.rag.embedding.initialBackoffMillis:500}")
+    private long initialBackoffMillis;
+    
+    private SingleFlight<String, float[]> queryFlights;
+    
+    @PostConstruct
+    public void init() {
+        queryFlights = new SingleFlight<>("rag.embedding.query", meterRegistry);
+    }
+    
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    public int getConcurrency() {
+        return concurrency;
+    }
+    
     public Mono<float[]> embedText(String text) {
         log.debug("Generating embedding for text length: {}", text.length());
         
@@ -35,45 +70,45 @@ public class EmbeddingService {
                 .doOnError(error -> log.error("Failed to generate batch embeddings", error));
     }
     
-    public String vectorToString(float[] vector) {
-        if (vector == null || vector.length == 0) {
-            return "[]";
-        }
-        
-        StringBuilder sb = new StringBuilder();
-        sb.append("[");
-        for (int i = 0; i < vector.length; i++) {
-            if (i > 0) {
-                sb.append(",");
-            }
-            sb.append(String.format("%.6f", vector[i]));
-        }
-        sb.append("]");
-        return sb.toString();
+    /**
+     * Embeds one batch of ingested chunks at ingestion priority, retrying rate limited and transient
+     * server errors with exponential backoff.
+     */
+    Mono<List<float[]>> embedBatch(List<String> batch) {
+        return Mono.defer(() -> llmProvider.embedForIngestion(batch))
+                .flatMap(embeddings -> embeddings.size() == batch.size()
+                        ? Mono.just(embeddings)
+                        : Mono.error(new IllegalStateException(
+                                "Expected " + batch.size() + " embeddings but got " + embeddings.size())))
+                .retryWhen(Retry.backoff(maxRetries, Duration.ofMillis(initialBackoffMillis))
+                        .filter(this::isRetryable)
+                        .doBeforeRetry(signal -> log.warn("Embedding batch failed with {}, retry {} of {}",
+                                signal.failure().getMessage(), signal.totalRetries() + 1, maxRetries)));
     }
     
-    public float[] stringToVector(String vectorString) {
-        if (vectorString == null || vectorString.isEmpty() || vectorString.equals("[]")) {
-            return new float[0];
-        }
-        
-        try {
-            // Remove brackets and split by comma
-            String cleanString = vectorString.replaceAll("[\\[\\]]", "");
-            String[] parts = cleanString.split(",");
-            
-            float[] vector = new float[parts.length];
-            for (int i = 0; i < parts.length; i++) {
-                vector[i] = Float.parseFloat(parts[i].trim());
-            }
-            return vector;
-        } catch (Exception e) {
-            log.error("Failed to parse vector string: {}", vectorString, e);
-            return new float[0];
+    private boolean isRetryable(Throwable error) {
+        if (error instanceof WebClientResponseException responseException) {
+            int status = responseException.getStatusCode().value();
+            return status == 429 || status >= 500;
         }
+        return false;
     }
     
+    /**
+     * Embeds a search query through the two-tier query embedding cache. The normalized text is
+     * embedded so every variant sharing a cache key gets the same vector. Concurrent requests for
+     * the same key share one cache lookup and provider call.
+     */
     public Mono<float[]> embedQuery(String query) {
-        return embedText(query);
+        if (!queryEmbeddingCache.isEnabled()) {
+            return queryFlights.execute(llmProvider.getEmbeddingModelName() + ":" + query, () -> embedText(query));
+        }
+        
+        String normalized = QueryEmbeddingCache.normalize(query);
+        String key = queryEmbeddingCache.key(llmProvider.getEmbeddingModelName(), normalized);
+        
+        return queryFlights.execute(key, () -> queryEmbeddingCache.get(key)
+                .switchIfEmpty(Mono.defer(() -> embedText(normalized)
+                        .doOnNext(embedding -> queryEmbeddingCache.put(key, embedding)))));
     }
 }
@@ -0,0 +1,426 @@
+package com.example.llm.rag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory Hierarchical Navigable Small World graph for approximate nearest neighbour search.
+ * Vectors are L2-normalized on insert so cosine similarity reduces to a dot product.
+ * Deletes are tombstones: deleted nodes still route searches but are never returned. Since they
+ * take up candidate slots, a search widens ef by the share of tombstones and keeps widening until it
+ * has k live results or has covered the whole graph.
+ *
+ * With quantization the nodes are stored as float16 or int8 instead of float32, so scores are
+ * approximate; callers that need exact scores over-fetch and rescore against the original vectors.
+ */
+public class HnswIndex {
+    
+    public enum Quantization { NONE, FLOAT16, INT8 }
+    
+    private final int dimension;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final Quantization quantization;
+    private final double levelMultiplier;
+    private final Random random;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    // Node storage, indexed by internal node id
+    private final VectorStorage vectors;
+    private UUID[] ids;
+    private int[][][] links; // node -> level -> [count, neighbour...]
+    private final BitSet deleted = new BitSet();
+    private final Map<UUID, Integer> nodeById = new HashMap<>();
+    
+    private int size;
+    private int deletedCount;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    
+    public HnswIndex(int dimension, int m, int efConstruction) {
+        this(dimension, m, efConstruction, Quantization.NONE);
+    }
+    
+    public HnswIndex(int dimension, int m, int efConstruction, Quantization quantization) {
+        this.dimension = dimension;
+        this.m = Math.max(2, m);
+        this.maxM0 = this.m * 2;
+        this.efConstruction = Math.max(efConstruction, this.m);
+        this.levelMultiplier = 1.0 / Math.log(this.m);
+        this.random = new Random(42);
+        this.quantization = quantization;
+        this.vectors = VectorStorage.create(quantization, dimension, 1024);
+        this.ids = new UUID[1024];
+        this.links = new int[1024][][];
+    }
+    
+    public void add(UUID id, float[] vector) {
+        if (vector == null || vector.length != dimension) {
+            throw new IllegalArgumentException("Expected vector of dimension " + dimension);
+        }
+        
+        float[] normalized = normalize(vector);
+        
+        lock.writeLock().lock();
+        try {
+            // Re-adding an id replaces the previous vector
+            Integer existing = nodeById.remove(id);
+            if (existing != null && !deleted.get(existing)) {
+                deleted.set(existing);
+                deletedCount++;
+            }
+            
+            int node = size++;
+            ensureCapacity(size);
+            int level = randomLevel();
+            
+            vectors.set(node, normalized);
+            ids[node] = id;
+            links[node] = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                links[node][l] = new int[(l == 0 ? maxM0 : m) + 1];
+            }
+            nodeById.put(id, node);
+            
+            if (entryPoint < 0) {
+                entryPoint = node;
+                maxLevel = level;
+                return;
+            }
+            
+            // Greedy descent through the levels above the new node
+            int current = entryPoint;
+            for (int l = maxLevel; l > level; l--) {
+                current = greedyClosest(normalized, current, l);
+            }
+            
+            // Connect the node on every level it participates in
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                List<Candidate> candidates = searchLayer(normalized, current, efConstruction, l);
+                int maxConnections = l == 0 ? maxM0 : m;
+                List<Candidate> selected = selectNeighbours(candidates, m);
+                
+                for (Candidate neighbour : selected) {
+                    addLink(node, neighbour.node, l);
+                    addLinkWithPruning(neighbour.node, node, l, maxConnections);
+                }
+                current = candidates.get(0).node;
+            }
+            
+            if (level > maxLevel) {
+                maxLevel = level;
+                entryPoint = node;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public boolean remove(UUID id) {
+        lock.writeLock().lock();
+        try {
+            Integer node = nodeById.remove(id);
+            if (node == null || deleted.get(node)) {
+                return false;
+            }
+            deleted.set(node);
+            deletedCount++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public List<SearchResult> search(float[] query, int k, int ef) {
+        if (query == null || query.length != dimension) {
+            throw new IllegalArgumentException("Expected query of dimension " + dimension);
+        }
+        
+        float[] normalized = normalize(query);
+        
+        lock.readLock().lock();
+        try {
+            int live = size - deletedCount;
+            if (entryPoint < 0 || live == 0) {
+                return new ArrayList<>();
+            }
+            
+            int current = entryPoint;
+            for (int l = maxLevel; l > 0; l--) {
+                current = greedyClosest(normalized, current, l);
+            }
+            
+            // Scale ef so that about ef of the candidates are live
+            int width = (int) Math.min(size, Math.ceil((double) Math.max(ef, k) * size / live));
+            List<SearchResult> results = liveResults(searchLayer(normalized, current, width, 0), k);
+            while (results.size() < Math.min(k, live) && width < size) {
+                width = (int) Math.min(size, 2L * width);
+                results = liveResults(searchLayer(normalized, current, width, 0), k);
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Called under the read lock
+    private List<SearchResult> liveResults(List<Candidate> candidates, int k) {
+        List<SearchResult> results = new ArrayList<>(k);
+        for (Candidate candidate : candidates) {
+            if (deleted.get(candidate.node)) continue;
+            results.add(new SearchResult(ids[candidate.node], 1.0f - candidate.distance, vectors.decode(candidate.node)));
+            if (results.size() >= k) break;
+        }
+        return results;
+    }
+    
+    public int size() {
+        return size - deletedCount;
+    }
+    
+    public int deletedCount() {
+        return deletedCount;
+    }
+    
+    public int dimension() {
+        return dimension;
+    }
+    
+    public Quantization quantization() {
+        return quantization;
+    }
+    
+    /**
+     * Approximate heap held by node vectors, tombstones included.
+     */
+    public long vectorBytes() {
+        lock.readLock().lock();
+        try {
+            return size * vectors.bytesPerVector();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        float currentDistance = distance(query, current);
+        boolean changed = true;
+        
+        while (changed) {
+            changed = false;
+            int[] neighbours = links[current][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int candidate = neighbours[i];
+                float d = distance(query, candidate);
+                if (d < currentDistance) {
+                    currentDistance = d;
+                    current = candidate;
+                    changed = true;
+                }
+            }
+        }
+        
+        return current;
+    }
+    
+    /**
+     * Beam search on one layer. Returns up to {@code ef} candidates sorted by ascending distance.
+     */
+    private List<Candidate> searchLayer(float[] query, int entry, int ef, int level) {
+        BitSet visited = new BitSet(size);
+        PriorityQueue<Candidate> toVisit = new PriorityQueue<>(Comparator.comparingDouble(c -> c.distance));
+        PriorityQueue<Candidate> nearest = new PriorityQueue<>(Comparator.comparingDouble((Candidate c) -> c.distance).reversed());
+        
+        Candidate start = new Candidate(entry, distance(query, entry));
+        visited.set(entry);
+        toVisit.add(start);
+        nearest.add(start);
+        
+        while (!toVisit.isEmpty()) {
+            Candidate closest = toVisit.poll();
+            if (closest.distance > nearest.peek().distance && nearest.size() >= ef) {
+                break;
+            }
+            
+            int[][] nodeLinks = links[closest.node];
+            if (level >= nodeLinks.length) continue;
+            int[] neighbours = nodeLinks[level];
+            
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int neighbour = neighbours[i];
+                if (visited.get(neighbour)) continue;
+                visited.set(neighbour);
+                
+                float d = distance(query, neighbour);
+                if (nearest.size() < ef || d < nearest.peek().distance) {
+                    Candidate candidate = new Candidate(neighbour, d);
+                    toVisit.add(candidate);
+                    nearest.add(candidate);
+                    if (nearest.size() > ef) {
+                        nearest.poll();
+                    }
+                }
+            }
+        }
+        
+        List<Candidate> result = new ArrayList<>(nearest);
+        result.sort(Comparator.comparingDouble(c -> c.distance));
+        return result;
+    }
+    
+    /**
+     * Neighbour selection heuristic from the HNSW paper: prefer candidates that are closer to the
+     * new node than to any already selected neighbour, which keeps the graph navigable across clusters.
+     */
+    private List<Candidate> selectNeighbours(List<Candidate> candidates, int maxConnections) {
+        List<Candidate> selected = new ArrayList<>(maxConnections);
+        
+        for (Candidate candidate : candidates) {
+            if (selected.size() >= maxConnections) break;
+            
+            boolean keep = true;
+            for (Candidate chosen : selected) {
+                if (distance(candidate.node, chosen.node) < candidate.distance) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected.add(candidate);
+            }
+        }
+        
+        // Fill up with the closest remaining candidates if the heuristic was too strict
+        for (Candidate candidate : candidates) {
+            if (selected.size() >= maxConnections) break;
+            if (!selected.contains(candidate)) {
+                selected.add(candidate);
+            }
+        }
+        
+        return selected;
+    }
+    
+    private void addLink(int from, int to, int level) {
+        int[] neighbours = links[from][level];
+        if (neighbours[0] < neighbours.length - 1) {
+            neighbours[++neighbours[0]] = to;
+        }
+    }
+    
+    private void addLinkWithPruning(int from, int to, int level, int maxConnections) {
+        int[] neighbours = links[from][level];
+        if (neighbours[0] < maxConnections) {
+            neighbours[++neighbours[0]] = to;
+            return;
+        }
+        
+        // Full: re-select the best neighbours among existing links plus the new one
+        List<Candidate> candidates = new ArrayList<>(neighbours[0] + 1);
+        for (int i = 1; i <= neighbours[0]; i++) {
+            candidates.add(new Candidate(neighbours[i], distance(from, neighbours[i])));
+        }
+        candidates.add(new Candidate(to, distance(from, to)));
+        candidates.sort(Comparator.comparingDouble(c -> c.distance));
+        
+        List<Candidate> selected = selectNeighbours(candidates, maxConnections);
+        neighbours[0] = selected.size();
+        for (int i = 0; i < selected.size(); i++) {
+            neighbours[i + 1] = selected.get(i).node;
+        }
+    }
+    
+    private int randomLevel() {
+        double r = random.nextDouble();
+        return (int) Math.floor(-Math.log(Math.max(r, Double.MIN_VALUE)) * levelMultiplier);
+    }
+    
+    private void ensureCapacity(int required) {
+        if (required <= ids.length) {
+            return;
+        }
+        int newCapacity = Math.max(required, ids.length * 2);
+        vectors.grow(newCapacity);
+        ids = Arrays.copyOf(ids, newCapacity);
+        links = Arrays.copyOf(links, newCapacity);
+    }
+    
+    private float distance(float[] query, int node) {
+        return 1.0f - vectors.dot(query, node);
+    }
+    
+    private float distance(int a, int b) {
+        return 1.0f - vectors.dot(a, b);
+    }
+    
+    private float[] normalize(float[] vector) {
+        double norm = 0.0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        
+        float[] result = new float[vector.length];
+        if (norm == 0.0) {
+            return result;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = (float) (vector[i] / norm);
+        }
+        return result;
+    }
+    
+    private static final class Candidate {
+        private final int node;
+        private final float distance;
+        
+        private Candidate(int node, float distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+    
+    public static class SearchResult {
+        private final UUID id;
+        private final float score;
+        private final float[] vector;
+        
+        public SearchResult(UUID id, float score, float[] vector) {
+            this.id = id;
+            this.score = score;
+            this.vector = vector;
+        }
+        
+        public UUID getId() {
+            return id;
+        }
+        
+        public float getScore() {
+            return score;
+        }
+        
+        /**
+         * The normalized vector held by the index, decoded when it is quantized; shared, so callers
+         * must not modify it.
+         */
+        public float[] getVector() {
+            return vector;
+        }
+        
+        @Override
+        public String toString() {
+            return "SearchResult{id=" + id + ", score=" + score + "}";
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.example.llm.rag;
 import com.example.llm.dto.ChatMessageDTO;
 import com.example.llm.llm.ChatMessage;
 import com.example.llm.llm.ChatPrompt;
+import com.example.llm.llm.LlmProvider;
+import com.example.llm.llm.Tokenizer;
 import com.example.llm.llm.ToolDefinition;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -17,6 +19,15 @@ import java.util.List;
 @Slf4j
 public class PromptBuilder {
     
+    // Chat format overhead per message and for priming the reply, as counted for OpenAI chat models
+    private static final int TOKENS_PER_MESSAGE = 3;
+    private static final int REPLY_PRIMING_TOKENS = 3;
+    private static final String CONTEXT_HEADER = "Relevant information from the knowledge base:\n\n";
+    private static final String SUMMARY_HEADER = "Summary of the earlier conversation:\n";
+    
+    private final Tokenizer tokenizer;
+    private final LlmProvider llmProvider;
+    
     @Value("${app.rag.systemPrompt}")
     private String systemPrompt;
     
@@ -26,13 +37,71 @@ public class PromptBuilder {
     @Value("${app.openai.maxTokens:2000}")
     private Integer defaultMaxTokens;
     
-    public ChatPrompt buildPrompt(String userMessage, List<RetrieverService.ContextSnippet> contextSnippets, 
-                                 List<ChatMessageDTO> history, List<ToolDefinition> tools) {
-        log.debug("Building prompt with {} context snippets and {} history messages", 
-                 contextSnippets.size(), history.size());
+    /**
+     * Builds the prompt from the retrieved context and the conversation so far, given as a summary of
+     * the older messages (may be null) and the messages after it.
+     */
+    public ChatPrompt buildPrompt(String userMessage, List<RetrieverService.ContextSnippet> contextSnippets,
+                                 String summary, List<ChatMessageDTO> history, List<ToolDefinition> tools) {
+        log.debug("Building prompt with {} context snippets, {} history messages and {}", 
+                 contextSnippets.size(), history.size(), summary != null ? "a summary" : "no summary");
         
-        String context = buildContext(contextSnippets);
-        List<ChatMessage> chatHistory = convertHistory(history);
+        // The prompt gets whatever the completion leaves of the context window
+        int remainingTokens = llmProvider.getContextWindow() - defaultMaxTokens - REPLY_PRIMING_TOKENS
+                - messageTokens("system", systemPrompt) - messageTokens("user", userMessage) - toolTokens(tools);
+        
+        // Retrieved context first, in rank order
+        List<RetrieverService.ContextSnippet> packedSnippets = new ArrayList<>();
+        int contextOverhead = tokenizer.countTokens("\n\nContext:\n" + CONTEXT_HEADER);
+        remainingTokens -= contextOverhead;
+        for (RetrieverService.ContextSnippet snippet : contextSnippets) {
+            int tokens = tokenizer.countTokens(snippet.toPromptText());
+            if (tokens > remainingTokens) {
+                break;
+            }
+            packedSnippets.add(snippet);
+            remainingTokens -= tokens;
+        }
+        if (packedSnippets.isEmpty()) {
+            remainingTokens += contextOverhead;
+        }
+        
+        // Then the summary of the earlier conversation
+        ChatMessage summaryMessage = null;
+        if (summary != null && !summary.isEmpty()) {
+            String content = SUMMARY_HEADER + summary;
+            int tokens = messageTokens("system", content);
+            if (tokens <= remainingTokens) {
+                summaryMessage = new ChatMessage("system", content, null);
+                remainingTokens -= tokens;
+            }
+        }
+        
+        // Then as much of the most recent history as still fits
+        int firstMessage = history.size();
+        while (firstMessage > 0) {
+            ChatMessageDTO message = history.get(firstMessage - 1);
+            int tokens = messageTokens(message.getRole(), message.getContent());
+            if (tokens > remainingTokens) {
+                break;
+            }
+            remainingTokens -= tokens;
+            firstMessage--;
+        }
+        
+        if (remainingTokens < 0) {
+            log.warn("Prompt exceeds the {} token context window by {} tokens", llmProvider.getContextWindow(), -remainingTokens);
+        } else if (packedSnippets.size() < contextSnippets.size() || firstMessage > 0) {
+            log.debug("Dropped {} context snippets and {} history messages to fit the token budget",
+                    contextSnippets.size() - packedSnippets.size(), firstMessage);
+        }
+        
+        String context = buildContext(packedSnippets);
+        List<ChatMessage> chatHistory = new ArrayList<>();
+        if (summaryMessage != null) {
+            chatHistory.add(summaryMessage);
+        }
+        chatHistory.addAll(convertHistory(history.subList(firstMessage, history.size())));
         
         return new ChatPrompt(
                 systemPrompt,
@@ -45,6 +114,11 @@ public class PromptBuilder {
         );
     }
     
+    public ChatPrompt buildPrompt(String userMessage, List<RetrieverService.ContextSnippet> contextSnippets,
+                                 List<ChatMessageDTO> history, List<ToolDefinition> tools) {
+        return buildPrompt(userMessage, contextSnippets, null, history, tools);
+    }
+    
     public ChatPrompt buildPrompt(String userMessage, List<RetrieverService.ContextSnippet> contextSnippets) {
         return buildPrompt(userMessage, contextSnippets, new ArrayList<>(), new ArrayList<>());
     }
@@ -63,13 +137,10 @@ public class PromptBuilder {
         }
         
         StringBuilder context = new StringBuilder();
-        context.append("Relevant information from the knowledge base:\n\n");
+        context.append(CONTEXT_HEADER);
         
         for (RetrieverService.ContextSnippet snippet : contextSnippets) {
-            context.append(snippet.getSourceReference())
-                   .append(" ")
-                   .append(snippet.getText())
-                   .append("\n\n");
+            context.append(snippet.toPromptText());
         }
         
         return context.toString();
@@ -90,6 +161,42 @@ public class PromptBuilder {
         return chatHistory;
     }
     
+    /**
+     * Tokens the prompt takes up as sent to the model, including the chat format overhead.
+     * Tool definitions are estimated, since providers do not document how they render them.
+     */
+    public int countPromptTokens(ChatPrompt prompt) {
+        int tokens = REPLY_PRIMING_TOKENS + toolTokens(prompt.getTools());
+        
+        String systemMessage = prompt.systemMessageWithContext();
+        if (!systemMessage.isEmpty()) {
+            tokens += messageTokens("system", systemMessage);
+        }
+        if (prompt.getHistory() != null) {
+            for (ChatMessage message : prompt.getHistory()) {
+                tokens += messageTokens(message.getRole(), message.getContent());
+                if (message.getName() != null) {
+                    tokens += tokenizer.countTokens(message.getName()) + 1;
+                }
+            }
+        }
+        return tokens + messageTokens("user", prompt.getUserMessage());
+    }
+    
+    private int messageTokens(String role, String content) {
+        return TOKENS_PER_MESSAGE + tokenizer.countTokens(role) + (content != null ? tokenizer.countTokens(content) : 0);
+    }
+    
+    private int toolTokens(List<ToolDefinition> tools) {
+        int tokens = 0;
+        if (tools != null) {
+            for (ToolDefinition tool : tools) {
+                tokens += tokenizer.countTokens(tool.getName() + " " + tool.getDescription() + " " + tool.getParameters());
+            }
+        }
+        return tokens;
+    }
+    
     public String buildSystemPrompt() {
         return systemPrompt;
     }
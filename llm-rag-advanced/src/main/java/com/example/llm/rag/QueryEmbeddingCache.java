@@ -0,0 +1,142 @@
+package com.example.llm.rag;
+
+import com.example.llm.util.HashingUtils;
+import com.example.llm.util.VectorCodec;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Two-tier cache of query embeddings: a size-bounded Caffeine (W-TinyLFU) cache in front of Redis.
+ * Keys are the embedding model name plus the SHA-256 of the normalized query, so whitespace and
+ * case variants of a question share one entry and switching models never returns stale vectors.
+ * Redis failures are logged and treated as misses. Only vectors of the configured dimension are
+ * cached, so a malformed provider response cannot poison later queries.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class QueryEmbeddingCache {
+    
+    private static final String KEY_PREFIX = "embedding:query:";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    
+    private final RedisTemplate<String, byte[]> binaryRedisTemplate;
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${app.rag.embedding.cache.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${app.rag.embedding.cache.localMaxEntries:5000}")
+    private long localMaxEntries;
+    
+    @Value("${app.rag.embedding.cache.redisEnabled:true}")
+    private boolean redisEnabled;
+    
+    @Value("${app.rag.embedding.cache.redisTtlMinutes:1440}")
+    private long redisTtlMinutes;
+    
+    @Value("${app.rag.index.dimension:1536}")
+    private int dimension;
+    
+    private Cache<String, float[]> localCache;
+    private Counter localHits;
+    private Counter redisHits;
+    private Counter misses;
+    
+    @PostConstruct
+    public void init() {
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaxEntries)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, localCache, "queryEmbeddings");
+        
+        localHits = meterRegistry.counter("rag.embedding.cache", "tier", "local", "result", "hit");
+        redisHits = meterRegistry.counter("rag.embedding.cache", "tier", "redis", "result", "hit");
+        misses = meterRegistry.counter("rag.embedding.cache", "tier", "all", "result", "miss");
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Unicode NFKC, lower case, trimmed, with runs of whitespace collapsed to a single space.
+     */
+    public static String normalize(String query) {
+        String normalized = Normalizer.normalize(query, Normalizer.Form.NFKC);
+        return WHITESPACE.matcher(normalized.trim()).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+    
+    public String key(String model, String normalizedQuery) {
+        return KEY_PREFIX + model + ":" + HashingUtils.calculateSHA256(normalizedQuery.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Looks the key up locally, then in Redis; a Redis hit is promoted to the local tier. Empty on miss.
+     */
+    public Mono<float[]> get(String key) {
+        float[] local = localCache.getIfPresent(key);
+        if (local != null) {
+            localHits.increment();
+            return Mono.just(local);
+        }
+        
+        if (!redisEnabled) {
+            misses.increment();
+            return Mono.empty();
+        }
+        
+        return Mono.fromCallable(() -> binaryRedisTemplate.opsForValue().get(key))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(VectorCodec::fromBinary)
+                .filter(this::isValid)
+                .doOnNext(vector -> {
+                    redisHits.increment();
+                    localCache.put(key, vector);
+                })
+                .onErrorResume(error -> {
+                    log.warn("Redis embedding cache lookup failed: {}", error.getMessage());
+                    return Mono.empty();
+                })
+                .switchIfEmpty(Mono.fromRunnable(misses::increment));
+    }
+    
+    public void put(String key, float[] vector) {
+        if (!isValid(vector)) {
+            log.warn("Not caching query embedding of dimension {}, expected {}", vector != null ? vector.length : 0, dimension);
+            return;
+        }
+        localCache.put(key, vector);
+        
+        if (!redisEnabled) {
+            return;
+        }
+        
+        Mono.fromRunnable(() -> binaryRedisTemplate.opsForValue()
+                        .set(key, VectorCodec.toBinary(vector), Duration.ofMinutes(redisTtlMinutes)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe(null, error -> log.warn("Redis embedding cache write failed: {}", error.getMessage()));
+    }
+    
+    private boolean isValid(float[] vector) {
+        return vector != null && vector.length == dimension;
+    }
+}
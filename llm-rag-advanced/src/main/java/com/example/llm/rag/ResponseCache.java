@@ -0,0 +1,226 @@
+package com.example.llm.rag;
+
+import com.example.llm.llm.ChatPrompt;
+import com.example.llm.llm.LlmProvider;
+import com.example.llm.util.HashingUtils;
+import com.example.llm.util.VectorCodec;
+import com.example.llm.util.VectorMath;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Opt-in Redis cache of chat answers for deterministic prompts.
+ *
+ * Everything in the prompt except the user message must match exactly: model, temperature, the
+ * retrieved chunk ids and context, history, system prompt and tools are hashed into a bucket. Within
+ * a bucket the user message matches by meaning, i.e. when the cosine similarity of the query
+ * embeddings reaches the threshold, so rephrasings of an FAQ that retrieve the same chunks share an
+ * answer. Entries expire after the TTL and the least recently used are dropped beyond maxEntries.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ResponseCache {
+    
+    private static final String ENTRY_PREFIX = "response:entry:";
+    private static final String BUCKET_PREFIX = "response:bucket:";
+    private static final String LRU_KEY = "response:lru";
+    
+    private final RedisTemplate<String, String> redisTemplate;
+    private final EmbeddingService embeddingService;
+    private final LlmProvider llmProvider;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${app.rag.responseCache.enabled:false}")
+    private boolean enabled;
+    
+    @Value("${app.rag.responseCache.similarityThreshold:0.95}")
+    private double similarityThreshold;
+    
+    @Value("${app.rag.responseCache.maxTemperature:0.0}")
+    private double maxTemperature;
+    
+    @Value("${app.rag.responseCache.ttlMinutes:1440}")
+    private long ttlMinutes;
+    
+    @Value("${app.rag.responseCache.maxEntries:10000}")
+    private long maxEntries;
+    
+    /**
+     * The cache key for the prompt, empty when caching is disabled or the prompt is sampled above the
+     * temperature limit.
+     */
+    public Mono<CacheKey> key(String userMessage, List<RetrieverService.ContextSnippet> snippets, ChatPrompt prompt) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        
+        double temperature = prompt.getTemperature() != null ? prompt.getTemperature() : llmProvider.getTemperature();
+        if (temperature > maxTemperature) {
+            return Mono.empty();
+        }
+        
+        String bucket;
+        try {
+            // The prompt without the user message, which is matched by similarity instead
+            ChatPrompt rest = new ChatPrompt(prompt.getSystemPrompt(), null, prompt.getContext(), prompt.getHistory(),
+                    prompt.getTools(), prompt.getTemperature(), prompt.getMaxTokens());
+            StringBuilder content = new StringBuilder()
+                    .append(llmProvider.getModelName()).append('\n')
+                    .append(temperature).append('\n');
+            snippets.forEach(snippet -> content.append(snippet.getId()).append(','));
+            content.append('\n').append(objectMapper.writeValueAsString(rest));
+            bucket = BUCKET_PREFIX + HashingUtils.calculateSHA256(content.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            log.warn("Response cache key failed: {}", e.getMessage());
+            return Mono.empty();
+        }
+        
+        // Usually a query embedding cache hit, retrieval has just embedded the same message
+        return embeddingService.embedQuery(userMessage)
+                .map(queryVector -> {
+                    float[] normalized = new float[queryVector.length];
+                    VectorMath.normalizeInto(queryVector, normalized, 0);
+                    return new CacheKey(bucket, normalized);
+                })
+                .onErrorResume(error -> {
+                    log.warn("Response cache key failed: {}", error.getMessage());
+                    return Mono.empty();
+                });
+    }
+    
+    /**
+     * The cached answer closest to the key's query within its bucket, or null on miss.
+     */
+    public String get(CacheKey key) {
+        if (key == null) {
+            return null;
+        }
+        
+        try {
+            Set<String> entryKeys = redisTemplate.opsForSet().members(key.getBucket());
+            if (entryKeys == null || entryKeys.isEmpty()) {
+                meterRegistry.counter("rag.response.cache", "result", "miss").increment();
+                return null;
+            }
+            
+            List<String> keyList = new ArrayList<>(entryKeys);
+            List<String> values = redisTemplate.opsForValue().multiGet(keyList);
+            List<String> expired = new ArrayList<>();
+            String bestKey = null;
+            Entry best = null;
+            double bestScore = similarityThreshold;
+            
+            for (int i = 0; i < keyList.size(); i++) {
+                String json = values != null ? values.get(i) : null;
+                if (json == null) {
+                    expired.add(keyList.get(i));
+                    continue;
+                }
+                
+                Entry entry = objectMapper.readValue(json, Entry.class);
+                float[] vector = VectorCodec.fromBinary(entry.getQueryVector());
+                if (vector.length != key.getQueryVector().length) {
+                    continue;
+                }
+                double score = VectorMath.dot(key.getQueryVector(), vector);
+                if (score >= bestScore) {
+                    bestScore = score;
+                    bestKey = keyList.get(i);
+                    best = entry;
+                }
+            }
+            
+            if (!expired.isEmpty()) {
+                redisTemplate.opsForSet().remove(key.getBucket(), expired.toArray());
+                redisTemplate.opsForZSet().remove(LRU_KEY, expired.toArray());
+            }
+            if (best == null) {
+                meterRegistry.counter("rag.response.cache", "result", "miss").increment();
+                return null;
+            }
+            
+            redisTemplate.opsForZSet().add(LRU_KEY, bestKey, System.currentTimeMillis());
+            meterRegistry.counter("rag.response.cache", "result", "hit").increment();
+            log.debug("Response cache hit with similarity {}", bestScore);
+            return best.getAnswer();
+        } catch (Exception e) {
+            log.warn("Response cache lookup failed: {}", e.getMessage());
+            return null;
+        }
+    }
+    
+    public void put(CacheKey key, String answer) {
+        if (key == null || answer == null || answer.isEmpty()) {
+            return;
+        }
+        
+        Duration ttl = Duration.ofMinutes(ttlMinutes);
+        String entryKey = ENTRY_PREFIX + UUID.randomUUID();
+        
+        try {
+            String json = objectMapper.writeValueAsString(new Entry(VectorCodec.toBinary(key.getQueryVector()), answer));
+            redisTemplate.opsForValue().set(entryKey, json, ttl);
+            redisTemplate.opsForSet().add(key.getBucket(), entryKey);
+            redisTemplate.expire(key.getBucket(), ttl);
+            redisTemplate.opsForZSet().add(LRU_KEY, entryKey, System.currentTimeMillis());
+            
+            // Drop the least recently used entries beyond the bound; their bucket references go on the next lookup
+            Long size = redisTemplate.opsForZSet().zCard(LRU_KEY);
+            if (size != null && size > maxEntries) {
+                Set<ZSetOperations.TypedTuple<String>> evicted = redisTemplate.opsForZSet().popMin(LRU_KEY, size - maxEntries);
+                if (evicted != null && !evicted.isEmpty()) {
+                    List<String> evictedKeys = new ArrayList<>(evicted.size());
+                    evicted.forEach(tuple -> evictedKeys.add(tuple.getValue()));
+                    redisTemplate.delete(evictedKeys);
+                    meterRegistry.counter("rag.response.cache.evictions").increment(evictedKeys.size());
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Response cache write failed: {}", e.getMessage());
+        }
+    }
+    
+    public static class CacheKey {
+        private final String bucket;
+        private final float[] queryVector;
+        
+        public CacheKey(String bucket, float[] queryVector) {
+            this.bucket = bucket;
+            this.queryVector = queryVector;
+        }
+        
+        public String getBucket() { return bucket; }
+        public float[] getQueryVector() { return queryVector; }
+    }
+    
+    public static class Entry {
+        private byte[] queryVector;
+        private String answer;
+        
+        public Entry() {
+        }
+        
+        public Entry(byte[] queryVector, String answer) {
+            this.queryVector = queryVector;
+            this.answer = answer;
+        }
+        
+        public byte[] getQueryVector() { return queryVector; }
+        public void setQueryVector(byte[] queryVector) { this.queryVector = queryVector; }
+        public String getAnswer() { return answer; }
+        public void setAnswer(String answer) { this.answer = answer; }
+    }
+}
@@ -0,0 +1,421 @@
+package com.example.llm.rag;
+
+import com.example.llm.util.HashingUtils;
+import com.example.llm.util.VectorCodec;
+import com.example.llm.util.VectorMath;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Redis cache of retrieval results with document-scoped invalidation.
+ *
+ * Every entry records the documents its snippets came from, so deleting a document only evicts the
+ * entries that cite it. Adding a document cannot be handled that way since it may outrank anything
+ * cached, so entries also keep their query vector and lowest candidate score: a new chunk only evicts
+ * an entry when it scores above the entry's weakest retrieval candidate for that query, or when it
+ * contains one of the identifier-like terms of the query (error codes, snake_case or camelCase names),
+ * which full-text search would rank highly on the hybrid side. Common words are left to the vector
+ * check, since nearly every upload contains them.
+ *
+ * Every change to the corpus bumps a generation counter. A retrieval reads it before it starts and
+ * its result is only cached if the generation has not moved, so a result computed from the corpus
+ * before an ingest or delete can never be written after that change's eviction has run.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class RetrievalCache {
+    
+    private static final String ENTRY_PREFIX = "retrieval:entry:";
+    private static final String VECTOR_PREFIX = "retrieval:vector:";
+    private static final String DOCUMENT_PREFIX = "retrieval:doc:";
+    private static final String TERM_PREFIX = "retrieval:term:";
+    private static final String ENTRIES_KEY = "retrieval:entry-generations";
+    private static final String GENERATION_KEY = "retrieval:generation";
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}_]+");
+    
+    // KEYS[1] generation, KEYS[2] entry, KEYS[3] vector, KEYS[4] entries, KEYS[5..] document and term sets.
+    // ARGV: generation read before the retrieval, entry json, vector, ttl in milliseconds.
+    // Writes nothing and returns 0 when the corpus changed since the retrieval started.
+    private static final RedisScript<Long> PUT_SCRIPT = new DefaultRedisScript<>("""
+        if (redis.call('GET', KEYS[1]) or '0') ~= ARGV[1] then
+            return 0
+        end
+        local ttl = tonumber(ARGV[4])
+        redis.call('SET', KEYS[2], ARGV[2], 'PX', ttl)
+        redis.call('SET', KEYS[3], ARGV[3], 'PX', ttl)
+        redis.call('ZADD', KEYS[4], ARGV[1], KEYS[2])
+        for i = 5, #KEYS do
+            redis.call('SADD', KEYS[i], KEYS[2])
+            redis.call('PEXPIRE', KEYS[i], ttl)
+        end
+        return 1
+        """, Long.class);
+    
+    private final RedisTemplate<String, String> redisTemplate;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${app.rag.retrievalCache.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${app.rag.retrievalCache.ttlMinutes:60}")
+    private long ttlMinutes;
+    
+    @Value("${app.rag.retrievalCache.maxAddCheckComparisons:20000000}")
+    private long maxAddCheckComparisons;
+    
+    @Value("${app.rag.retrievalCache.localMaxEntries:10000}")
+    private long localMaxEntries;
+    
+    // Decoded query vectors of cached entries, so an upload only fetches the ones written since
+    private Cache<String, QueryVector> queryVectors;
+    
+    @PostConstruct
+    public void init() {
+        queryVectors = Caffeine.newBuilder()
+                .maximumSize(localMaxEntries)
+                .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+                .build();
+    }
+    
+    public String key(String query, int topK) {
+        String normalized = QueryEmbeddingCache.normalize(query);
+        return ENTRY_PREFIX + HashingUtils.calculateSHA256(normalized.getBytes(StandardCharsets.UTF_8)) + ":" + topK;
+    }
+    
+    /**
+     * The current corpus generation, to be passed to {@link #put} by a retrieval that reads it before
+     * it starts. Negative when it cannot be read, in which case the result is not cached.
+     */
+    public long generation() {
+        if (!enabled) {
+            return -1;
+        }
+        try {
+            String value = redisTemplate.opsForValue().get(GENERATION_KEY);
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (Exception e) {
+            log.warn("Retrieval cache generation lookup failed: {}", e.getMessage());
+            return -1;
+        }
+    }
+    
+    public List<RetrieverService.ContextSnippet> get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        
+        try {
+            String json = redisTemplate.opsForValue().get(key);
+            if (json == null) {
+                meterRegistry.counter("rag.retrieval.cache", "result", "miss").increment();
+                return null;
+            }
+            meterRegistry.counter("rag.retrieval.cache", "result", "hit").increment();
+            return objectMapper.readValue(json, Entry.class).getSnippets();
+        } catch (Exception e) {
+            log.warn("Retrieval cache lookup failed: {}", e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * @param minScore   lowest similarity among the retrieval candidates, or negative infinity when the
+     *                   corpus returned fewer candidates than requested
+     * @param generation {@link #generation()} as read before the retrieval started
+     */
+    public void put(String key, String query, float[] queryVector, List<RetrieverService.ContextSnippet> snippets,
+                    double minScore, long generation) {
+        if (!enabled || generation < 0) {
+            return;
+        }
+        
+        try {
+            List<String> keys = new ArrayList<>();
+            keys.add(GENERATION_KEY);
+            keys.add(key);
+            keys.add(vectorKey(key));
+            keys.add(ENTRIES_KEY);
+            
+            Set<UUID> documentIds = new HashSet<>();
+            snippets.forEach(snippet -> documentIds.add(snippet.getDocumentId()));
+            documentIds.forEach(documentId -> keys.add(DOCUMENT_PREFIX + documentId));
+            identifierTerms(query).forEach(term -> keys.add(TERM_PREFIX + term));
+            
+            String json = objectMapper.writeValueAsString(new Entry(snippets));
+            String vector = minScore + ":" + Base64.getEncoder().encodeToString(VectorCodec.toBinary(queryVector));
+            Long written = redisTemplate.execute(PUT_SCRIPT, keys, String.valueOf(generation), json, vector,
+                    String.valueOf(Duration.ofMinutes(ttlMinutes).toMillis()));
+            
+            if (written == null || written == 0) {
+                meterRegistry.counter("rag.retrieval.cache.stale").increment();
+                log.debug("Not caching retrieval computed before a corpus change");
+            }
+        } catch (Exception e) {
+            log.warn("Retrieval cache write failed: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Evicts the entries that cite the document. Call after the delete (or replacement) has committed.
+     */
+    public void evictDocument(UUID documentId) {
+        if (!enabled) {
+            return;
+        }
+        
+        try {
+            nextGeneration();
+            
+            String documentKey = DOCUMENT_PREFIX + documentId;
+            Set<String> keys = redisTemplate.opsForSet().members(documentKey);
+            redisTemplate.delete(documentKey);
+            if (keys == null || keys.isEmpty()) {
+                return;
+            }
+            
+            evict(keys, "document");
+            log.debug("Evicted {} cached retrievals citing document {}", keys.size(), documentId);
+        } catch (Exception e) {
+            log.warn("Retrieval cache eviction failed for document {}: {}", documentId, e.getMessage());
+        }
+    }
+    
+    /**
+     * Evicts the entries whose results the new chunks could enter, i.e. where some chunk is more
+     * similar to the cached query than the weakest retrieval candidate or contains one of its
+     * identifier-like terms. Call after the insert has committed.
+     */
+    public void onChunksAdded(List<float[]> chunkVectors, List<String> chunkTexts) {
+        if (!enabled || chunkVectors.isEmpty()) {
+            return;
+        }
+        
+        try {
+            nextGeneration();
+            
+            Set<ZSetOperations.TypedTuple<String>> entries = redisTemplate.opsForZSet().rangeWithScores(ENTRIES_KEY, 0, -1);
+            if (entries == null || entries.isEmpty()) {
+                return;
+            }
+            
+            // Comparing a very large upload against every entry costs more than refilling the cache
+            long comparisons = (long) entries.size() * chunkVectors.size();
+            if (comparisons > maxAddCheckComparisons) {
+                List<String> keys = new ArrayList<>(entries.size());
+                entries.forEach(entry -> keys.add(entry.getValue()));
+                evict(keys, "overflow");
+                log.info("Evicted all {} cached retrievals, {} new chunks exceed the relevance check budget",
+                        keys.size(), chunkVectors.size());
+                return;
+            }
+            
+            Set<String> affected = new LinkedHashSet<>();
+            
+            // Entries sharing an identifier-like term with a new chunk, from the term index
+            Set<String> chunkTerms = new HashSet<>();
+            chunkTexts.forEach(text -> chunkTerms.addAll(identifierTerms(text)));
+            if (!chunkTerms.isEmpty()) {
+                List<String> termKeys = new ArrayList<>(chunkTerms.size());
+                chunkTerms.forEach(term -> termKeys.add(TERM_PREFIX + term));
+                Set<String> matched = redisTemplate.opsForSet().union(termKeys);
+                if (matched != null) {
+                    affected.addAll(matched);
+                }
+            }
+            
+            List<float[]> normalizedChunks = new ArrayList<>(chunkVectors.size());
+            for (float[] vector : chunkVectors) {
+                float[] normalized = new float[vector.length];
+                VectorMath.normalizeInto(vector, normalized, 0);
+                normalizedChunks.add(normalized);
+            }
+            
+            Map<String, QueryVector> vectors = queryVectors(entries);
+            List<String> expired = new ArrayList<>();
+            for (ZSetOperations.TypedTuple<String> entry : entries) {
+                String key = entry.getValue();
+                if (affected.contains(key)) {
+                    continue;
+                }
+                QueryVector query = vectors.get(key);
+                if (query == null) {
+                    expired.add(key);
+                    continue;
+                }
+                for (float[] chunk : normalizedChunks) {
+                    if (query.vector.length == chunk.length && VectorMath.dot(query.vector, chunk) > query.minScore) {
+                        affected.add(key);
+                        break;
+                    }
+                }
+            }
+            
+            // Term sets may still name entries that expired or were evicted
+            List<String> live = new ArrayList<>(affected.size());
+            for (ZSetOperations.TypedTuple<String> entry : entries) {
+                if (affected.contains(entry.getValue())) {
+                    live.add(entry.getValue());
+                }
+            }
+            
+            if (!expired.isEmpty()) {
+                evict(expired, "expired");
+            }
+            if (!live.isEmpty()) {
+                evict(live, "relevance");
+            }
+            log.debug("Evicted {} of {} cached retrievals for {} new chunks", live.size(),
+                    entries.size() - expired.size(), chunkVectors.size());
+        } catch (Exception e) {
+            log.warn("Retrieval cache relevance check failed, evicting all entries: {}", e.getMessage());
+            evictAll();
+        }
+    }
+    
+    public void evictAll() {
+        try {
+            nextGeneration();
+            Set<String> keys = redisTemplate.opsForZSet().range(ENTRIES_KEY, 0, -1);
+            if (keys != null && !keys.isEmpty()) {
+                evict(keys, "all");
+            }
+        } catch (Exception e) {
+            log.warn("Retrieval cache flush failed: {}", e.getMessage());
+        }
+    }
+    
+    private void nextGeneration() {
+        redisTemplate.opsForValue().increment(GENERATION_KEY);
+    }
+    
+    /**
+     * Query vectors of the entries, from the local cache when it holds the entry's current generation
+     * and from Redis otherwise. Entries whose vector is gone are missing from the result.
+     */
+    private Map<String, QueryVector> queryVectors(Set<ZSetOperations.TypedTuple<String>> entries) {
+        Map<String, QueryVector> vectors = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        Map<String, Long> generations = new HashMap<>();
+        
+        for (ZSetOperations.TypedTuple<String> entry : entries) {
+            long generation = entry.getScore() != null ? entry.getScore().longValue() : -1;
+            QueryVector cached = queryVectors.getIfPresent(entry.getValue());
+            if (cached != null && cached.generation == generation) {
+                vectors.put(entry.getValue(), cached);
+            } else {
+                missing.add(entry.getValue());
+                generations.put(entry.getValue(), generation);
+            }
+        }
+        if (missing.isEmpty()) {
+            return vectors;
+        }
+        
+        List<String> vectorKeys = new ArrayList<>(missing.size());
+        missing.forEach(key -> vectorKeys.add(vectorKey(key)));
+        List<String> values = redisTemplate.opsForValue().multiGet(vectorKeys);
+        for (int i = 0; i < missing.size(); i++) {
+            String value = values != null ? values.get(i) : null;
+            if (value == null) {
+                continue;
+            }
+            int separator = value.indexOf(':');
+            float[] vector = VectorCodec.fromBinary(Base64.getDecoder().decode(value.substring(separator + 1)));
+            float[] normalized = new float[vector.length];
+            VectorMath.normalizeInto(vector, normalized, 0);
+            
+            String key = missing.get(i);
+            QueryVector query = new QueryVector(generations.get(key), normalized, Double.parseDouble(value.substring(0, separator)));
+            queryVectors.put(key, query);
+            vectors.put(key, query);
+        }
+        return vectors;
+    }
+    
+    private void evict(Collection<String> keys, String reason) {
+        List<String> redisKeys = new ArrayList<>(keys.size() * 2);
+        for (String key : keys) {
+            redisKeys.add(key);
+            redisKeys.add(vectorKey(key));
+        }
+        redisTemplate.delete(redisKeys);
+        redisTemplate.opsForZSet().remove(ENTRIES_KEY, keys.toArray());
+        queryVectors.invalidateAll(keys);
+        meterRegistry.counter("rag.retrieval.cache.evictions", "reason", reason).increment(keys.size());
+    }
+    
+    private static String vectorKey(String entryKey) {
+        return VECTOR_PREFIX + entryKey.substring(ENTRY_PREFIX.length());
+    }
+    
+    /**
+     * Lower-cased word tokens that look like identifiers rather than prose: ones containing a digit
+     * or an underscore, or an upper-case letter after the first character (camelCase, acronyms).
+     */
+    static Set<String> identifierTerms(String text) {
+        Set<String> terms = new HashSet<>();
+        Matcher matcher = WORD.matcher(text);
+        while (matcher.find()) {
+            String token = matcher.group();
+            if (token.length() >= 3 && isIdentifierLike(token)) {
+                terms.add(token.toLowerCase(Locale.ROOT));
+            }
+        }
+        return terms;
+    }
+    
+    private static boolean isIdentifierLike(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (Character.isDigit(c) || c == '_' || (i > 0 && Character.isUpperCase(c))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static final class QueryVector {
+        private final long generation;
+        private final float[] vector;
+        private final double minScore;
+        
+        private QueryVector(long generation, float[] vector, double minScore) {
+            this.generation = generation;
+            this.vector = vector;
+            this.minScore = minScore;
+        }
+    }
+    
+    public static class Entry {
+        private List<RetrieverService.ContextSnippet> snippets;
+        
+        public Entry() {
+        }
+        
+        public Entry(List<RetrieverService.ContextSnippet> snippets) {
+            this.snippets = snippets;
+        }
+        
+        public List<RetrieverService.ContextSnippet> getSnippets() { return snippets; }
+        public void setSnippets(List<RetrieverService.ContextSnippet> snippets) { this.snippets = snippets; }
+    }
+}
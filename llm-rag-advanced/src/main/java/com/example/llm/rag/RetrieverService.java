@@ -2,14 +2,22 @@ package com.example.llm.rag;
 
 import com.example.llm.dto.ChunkDTO;
 import com.example.llm.entity.Chunk;
-import com.example.llm.entity.Document;
+import com.example.llm.llm.Tokenizer;
 import com.example.llm.repository.ChunkRepository;
-import com.example.llm.repository.DocumentRepository;
+import com.example.llm.util.SingleFlight;
+import com.example.llm.util.VectorCodec;
+import com.example.llm.util.VectorMath;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -19,63 +27,160 @@ import java.util.stream.Collectors;
 @Slf4j
 public class RetrieverService {
     
+    private static final int MIN_TRUNCATED_SNIPPET_TOKENS = 25;
+    
     private final ChunkRepository chunkRepository;
-    private final DocumentRepository documentRepository;
     private final EmbeddingService embeddingService;
+    private final VectorIndexService vectorIndexService;
+    private final RetrievalCache retrievalCache;
+    private final Tokenizer tokenizer;
+    private final MeterRegistry meterRegistry;
     
     @Value("${app.rag.topK:6}")
     private int defaultTopK;
     
-    @Value("${app.rag.maxContextChars:10000}")
-    private int maxContextChars;
+    @Value("${app.rag.maxContextTokens:2500}")
+    private int maxContextTokens;
+    
+    @Value("${app.rag.mmr.lambda:0.7}")
+    private double mmrLambda;
+    
+    @Value("${app.rag.mmr.fetchMultiplier:4}")
+    private int mmrFetchMultiplier;
+    
+    @Value("${app.rag.hybrid.enabled:true}")
+    private boolean hybridEnabled;
+    
+    @Value("${app.rag.hybrid.rrfK:60}")
+    private int rrfK;
+    
+    private SingleFlight<String, List<ContextSnippet>> retrievalFlights;
+    
+    @PostConstruct
+    public void init() {
+        retrievalFlights = new SingleFlight<>("rag.retrieval", meterRegistry);
+    }
     
-    @Cacheable(value = "searchResults", key = "#query + '_' + #topK")
-    public List<ContextSnippet> retrieveContext(String query, Integer topK) {
+    /**
+     * Retrieves the context for the query. Cache lookups, searches and reranking run on the bounded
+     * elastic scheduler, never on the thread that completes the query embedding.
+     */
+    public Mono<List<ContextSnippet>> retrieveContext(String query, Integer topK) {
         log.debug("Retrieving context for query: {} with topK: {}", query, topK);
         
         int k = topK != null ? topK : defaultTopK;
+        String cacheKey = retrievalCache.key(query, k);
         
+        return Mono.fromCallable(() -> retrievalCache.get(cacheKey))
+                .subscribeOn(Schedulers.boundedElastic())
+                .switchIfEmpty(Mono.defer(() -> search(query, k, cacheKey)));
+    }
+    
+    private Mono<List<ContextSnippet>> search(String query, int k, String cacheKey) {
+        // Identical concurrent queries share one embedding, search and rerank. The cache generation is
+        // read before anything else, so the result is not cached if the corpus changes meanwhile.
+        return retrievalFlights.execute(cacheKey, () -> Mono.fromCallable(retrievalCache::generation)
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(generation -> retrieve(query, k, cacheKey, generation)))
+                .<List<ContextSnippet>>map(ArrayList::new); // each caller gets its own list
+    }
+    
+    private Mono<List<ContextSnippet>> retrieve(String query, int k, String cacheKey, long generation) {
         return embeddingService.embedQuery(query)
+                .publishOn(Schedulers.boundedElastic())
                 .map(embedding -> {
-                    String vectorString = embeddingService.vectorToString(embedding);
+                    // Get similar chunks from the HNSW index, or from pgvector until it is built. Either is
+                    // one statement, and the keyword search below is the only other one.
+                    int candidateCount = k * mmrFetchMultiplier; // Over-fetch for diversity reranking
+                    List<Object[]> vectorResults = vectorIndexService.isReady()
+                            ? vectorIndexService.findSimilarChunks(embedding, candidateCount)
+                            : chunkRepository.findSimilarChunks(embedding, candidateCount);
                     
-                    // Get similar chunks from database
-                    List<Object[]> results = chunkRepository.findSimilarChunks(vectorString, k * 2); // Get more for reranking
+                    // Fuse with full-text matches so exact identifiers and error codes are found too
+                    List<Object[]> results = hybridEnabled
+                            ? fuseByReciprocalRank(vectorResults, chunkRepository.findKeywordMatches(query, candidateCount), candidateCount)
+                            : vectorResults;
                     
-                    // Convert to ContextSnippet objects
-                    List<ContextSnippet> snippets = results.stream()
-                            .map(this::convertToContextSnippet)
-                            .filter(Objects::nonNull)
-                            .collect(Collectors.toList());
+                    // Convert to ContextSnippet objects, keeping candidate vectors in one normalized row-major matrix
+                    int dimension = embedding.length;
+                    List<ContextSnippet> snippets = new ArrayList<>(results.size());
+                    float[] vectors = new float[results.size() * dimension];
+                    for (Object[] row : results) {
+                        ContextSnippet snippet = convertToContextSnippet(row);
+                        if (snippet == null) {
+                            continue;
+                        }
+                        float[] vector = candidateVector(row);
+                        if (vector != null && vector.length == dimension) {
+                            VectorMath.normalizeInto(vector, vectors, snippets.size() * dimension);
+                        }
+                        snippets.add(snippet);
+                    }
                     
                     // Apply MMR reranking
-                    List<ContextSnippet> rerankedSnippets = applyMMRReranking(snippets, k);
+                    List<ContextSnippet> rerankedSnippets = applyMMRReranking(snippets, vectors, dimension, k);
                     
                     // Limit context size
-                    return limitContextSize(rerankedSnippets);
-                })
-                .block(); // Convert Mono to blocking call for now
+                    List<ContextSnippet> context = limitContextSize(rerankedSnippets);
+                    
+                    // Any chunk more similar than the weakest vector candidate could change this result
+                    double minScore = vectorResults.size() < candidateCount
+                            ? Double.NEGATIVE_INFINITY
+                            : vectorResults.stream().mapToDouble(row -> ((Number) row[5]).doubleValue()).min().orElse(Double.NEGATIVE_INFINITY);
+                    retrievalCache.put(cacheKey, query, embedding, context, minScore, generation);
+                    
+                    return context;
+                });
     }
     
-    public List<ContextSnippet> retrieveContextByDocument(String query, UUID documentId, Integer topK) {
+    public Mono<List<ContextSnippet>> retrieveContextByDocument(String query, UUID documentId, Integer topK) {
         log.debug("Retrieving context for query: {} in document: {} with topK: {}", query, documentId, topK);
         
         int k = topK != null ? topK : defaultTopK;
         
         return embeddingService.embedQuery(query)
+                .publishOn(Schedulers.boundedElastic())
                 .map(embedding -> {
-                    String vectorString = embeddingService.vectorToString(embedding);
-                    
                     // Get similar chunks from specific document
-                    List<Object[]> results = chunkRepository.findSimilarChunksByDocument(vectorString, documentId, k);
+                    List<Object[]> results = chunkRepository.findSimilarChunksByDocument(embedding, documentId, k);
                     
                     // Convert to ContextSnippet objects
                     return results.stream()
                             .map(this::convertToContextSnippet)
                             .filter(Objects::nonNull)
                             .collect(Collectors.toList());
+                });
+    }
+    
+    /**
+     * Reciprocal-rank fusion: each list contributes 1 / (rrfK + rank) per chunk, so chunks ranked well
+     * by both searches win without having to calibrate cosine similarity against text rank. Fused
+     * scores are scaled to [0, 1] where 1 means first in both lists.
+     */
+    private List<Object[]> fuseByReciprocalRank(List<Object[]> vectorResults, List<Object[]> keywordResults, int limit) {
+        Map<UUID, Object[]> rowsById = new LinkedHashMap<>();
+        Map<UUID, Double> fusedScores = new HashMap<>();
+        
+        List<List<Object[]>> rankings = List.of(vectorResults, keywordResults);
+        for (List<Object[]> ranking : rankings) {
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                Object[] row = ranking.get(rank);
+                UUID id = (UUID) row[0];
+                rowsById.putIfAbsent(id, row);
+                fusedScores.merge(id, 1.0 / (rrfK + rank + 1), Double::sum);
+            }
+        }
+        
+        double maxScore = rankings.size() / (rrfK + 1.0);
+        return rowsById.entrySet().stream()
+                .sorted((a, b) -> Double.compare(fusedScores.get(b.getKey()), fusedScores.get(a.getKey())))
+                .limit(limit)
+                .map(entry -> {
+                    Object[] result = entry.getValue().clone();
+                    result[5] = fusedScores.get(entry.getKey()) / maxScore;
+                    return result;
                 })
-                .block();
+                .collect(Collectors.toList());
     }
     
     private ContextSnippet convertToContextSnippet(Object[] result) {
@@ -86,10 +191,7 @@ public class RetrieverService {
             String text = (String) result[3];
             String metadata = (String) result[4];
             Double score = ((Number) result[5]).doubleValue();
-            
-            // Get document info
-            Document document = documentRepository.findById(documentId).orElse(null);
-            String documentName = document != null ? document.getFilename() : "Unknown";
+            String documentName = result[6] != null ? (String) result[6] : "Unknown";
             
             return new ContextSnippet(id, documentId, documentName, chunkIndex, text, metadata, score);
         } catch (Exception e) {
@@ -98,101 +200,80 @@ public class RetrieverService {
         }
     }
     
-    private List<ContextSnippet> applyMMRReranking(List<ContextSnippet> snippets, int k) {
-        if (snippets.size() <= k) {
+    /**
+     * Vector stored with a candidate row: the index's float[] or pgvector binary from the SQL searches.
+     */
+    private float[] candidateVector(Object[] row) {
+        if (row.length < 8 || row[7] == null) {
+            return null;
+        }
+        return row[7] instanceof float[] vector ? vector : VectorCodec.fromBinary((byte[]) row[7]);
+    }
+    
+    /**
+     * Maximal marginal relevance: repeatedly picks the candidate maximizing
+     * lambda * relevance - (1 - lambda) * max cosine similarity to the already selected ones.
+     * {@code vectors} holds the normalized candidate embeddings row by row. Only the similarities to the
+     * latest pick are computed each round, so selection costs O(k * n) dot products.
+     */
+    private List<ContextSnippet> applyMMRReranking(List<ContextSnippet> snippets, float[] vectors, int dimension, int k) {
+        int n = snippets.size();
+        if (n <= k) {
             return snippets;
         }
         
-        List<ContextSnippet> selected = new ArrayList<>();
-        List<ContextSnippet> remaining = new ArrayList<>(snippets);
+        List<ContextSnippet> selected = new ArrayList<>(k);
+        boolean[] taken = new boolean[n];
+        float[] maxSimilarity = new float[n];
+        Arrays.fill(maxSimilarity, Float.NEGATIVE_INFINITY);
+        int last = -1;
         
-        // Select first snippet (highest similarity)
-        if (!remaining.isEmpty()) {
-            selected.add(remaining.remove(0));
-        }
-        
-        // Apply MMR for remaining slots
-        while (selected.size() < k && !remaining.isEmpty()) {
-            ContextSnippet bestSnippet = null;
-            double bestScore = -1;
-            int bestIndex = -1;
+        while (selected.size() < k) {
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
             
-            for (int i = 0; i < remaining.size(); i++) {
-                ContextSnippet snippet = remaining.get(i);
+            for (int i = 0; i < n; i++) {
+                if (taken[i]) continue;
                 
-                // Calculate MMR score: λ * similarity - (1-λ) * max_relevance_to_selected
-                double maxRelevance = calculateMaxRelevance(snippet, selected);
-                double mmrScore = 0.7 * snippet.getScore() - 0.3 * maxRelevance;
+                if (last >= 0) {
+                    float similarity = VectorMath.dot(vectors, last * dimension, vectors, i * dimension, dimension);
+                    maxSimilarity[i] = Math.max(maxSimilarity[i], similarity);
+                }
                 
+                double mmrScore = mmrLambda * snippets.get(i).getScore() - (1 - mmrLambda) * (last >= 0 ? maxSimilarity[i] : 0.0);
                 if (mmrScore > bestScore) {
                     bestScore = mmrScore;
-                    bestSnippet = snippet;
-                    bestIndex = i;
+                    best = i;
                 }
             }
             
-            if (bestSnippet != null) {
-                selected.add(bestSnippet);
-                remaining.remove(bestIndex);
-            } else {
-                break;
-            }
+            taken[best] = true;
+            selected.add(snippets.get(best));
+            last = best;
         }
         
         return selected;
     }
     
-    private double calculateMaxRelevance(ContextSnippet snippet, List<ContextSnippet> selected) {
-        if (selected.isEmpty()) {
-            return 0.0;
-        }
-        
-        double maxRelevance = 0.0;
-        for (ContextSnippet selectedSnippet : selected) {
-            // Simple relevance based on document and chunk proximity
-            double relevance = 0.0;
-            
-            if (snippet.getDocumentId().equals(selectedSnippet.getDocumentId())) {
-                relevance += 0.5; // Same document
-                
-                // Chunk proximity
-                int chunkDiff = Math.abs(snippet.getChunkIndex() - selectedSnippet.getChunkIndex());
-                if (chunkDiff <= 2) {
-                    relevance += 0.3;
-                } else if (chunkDiff <= 5) {
-                    relevance += 0.1;
-                }
-            }
-            
-            maxRelevance = Math.max(maxRelevance, relevance);
-        }
-        
-        return maxRelevance;
-    }
-    
+    /**
+     * Packs snippets, in rank order, into maxContextTokens as they are rendered in the prompt. The
+     * first snippet that does not fit is cut at a token boundary if enough of it remains to be useful.
+     */
     private List<ContextSnippet> limitContextSize(List<ContextSnippet> snippets) {
         List<ContextSnippet> limitedSnippets = new ArrayList<>();
-        int currentSize = 0;
+        int remainingTokens = maxContextTokens;
         
         for (ContextSnippet snippet : snippets) {
-            if (currentSize + snippet.getText().length() <= maxContextChars) {
+            int tokens = tokenizer.countTokens(snippet.toPromptText());
+            if (tokens <= remainingTokens) {
                 limitedSnippets.add(snippet);
-                currentSize += snippet.getText().length();
+                remainingTokens -= tokens;
             } else {
-                // Truncate the last snippet if needed
-                int remainingChars = maxContextChars - currentSize;
-                if (remainingChars > 100) { // Only add if we have meaningful content
-                    String truncatedText = snippet.getText().substring(0, remainingChars) + "...";
-                    ContextSnippet truncatedSnippet = new ContextSnippet(
-                            snippet.getId(),
-                            snippet.getDocumentId(),
-                            snippet.getDocumentName(),
-                            snippet.getChunkIndex(),
-                            truncatedText,
-                            snippet.getMetadata(),
-                            snippet.getScore()
-                    );
-                    limitedSnippets.add(truncatedSnippet);
+                // Truncate the last snippet if needed, leaving room for the reference and the ellipsis
+                int textTokens = remainingTokens - tokenizer.countTokens(snippet.withText("...").toPromptText());
+                if (textTokens >= MIN_TRUNCATED_SNIPPET_TOKENS) {
+                    String truncatedText = tokenizer.truncate(snippet.getText(), textTokens) + "...";
+                    limitedSnippets.add(snippet.withText(truncatedText));
                 }
                 break;
             }
@@ -201,6 +282,7 @@ public class RetrieverService {
         return limitedSnippets;
     }
     
+    @JsonIgnoreProperties(ignoreUnknown = true)
     public static class ContextSnippet {
         private final UUID id;
         private final UUID documentId;
@@ -210,8 +292,14 @@ public class RetrieverService {
         private final String metadata;
         private final Double score;
         
-        public ContextSnippet(UUID id, UUID documentId, String documentName, Integer chunkIndex, 
-                            String text, String metadata, Double score) {
+        @JsonCreator
+        public ContextSnippet(@JsonProperty("id") UUID id,
+                              @JsonProperty("documentId") UUID documentId,
+                              @JsonProperty("documentName") String documentName,
+                              @JsonProperty("chunkIndex") Integer chunkIndex,
+                              @JsonProperty("text") String text,
+                              @JsonProperty("metadata") String metadata,
+                              @JsonProperty("score") Double score) {
             this.id = id;
             this.documentId = documentId;
             this.documentName = documentName;
@@ -233,6 +321,17 @@ public class RetrieverService {
             return String.format("[Source: %s#%d]", documentName, chunkIndex);
         }
         
+        /**
+         * The snippet as it appears in the prompt context, including the separator that follows it.
+         */
+        public String toPromptText() {
+            return getSourceReference() + " " + text + "\n\n";
+        }
+        
+        public ContextSnippet withText(String text) {
+            return new ContextSnippet(id, documentId, documentName, chunkIndex, text, metadata, score);
+        }
+        
         @Override
         public String toString() {
             return "ContextSnippet{document=" + documentName + ", chunk=" + chunkIndex + ", score=" + score + "}";
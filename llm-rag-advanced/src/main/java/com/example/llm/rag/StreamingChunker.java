@@ -0,0 +1,263 @@
+package com.example.llm.rag;
+
+import com.example.llm.llm.Tokenizer;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Incremental chunker: text is appended piece by piece and chunks are handed to the consumer as soon
+ * as they are complete, so memory stays bounded by one chunk regardless of document size.
+ *
+ * Sizes are in tokens. Each word is counted with its leading separator as it completes, and a chunk
+ * never exceeds chunkTokens. Whitespace runs are collapsed (keeping paragraph breaks). A chunk is cut
+ * at the last paragraph break in its second half, else the last sentence end, else before the word
+ * that does not fit. Each chunk after the first starts with the last words of the previous one, up
+ * to chunkOverlap tokens.
+ */
+public class StreamingChunker {
+    
+    // Longer runs without whitespace (base64, minified code) are counted in slices
+    private static final int MAX_WORD_CHARS = 256;
+    
+    private final Tokenizer tokenizer;
+    private final int chunkTokens;
+    private final int overlapTokens;
+    private final Consumer<TextSplitter.TextChunk> consumer;
+    
+    private final StringBuilder buffer = new StringBuilder();
+    private final StringBuilder word = new StringBuilder();
+    private final StringBuilder segment = new StringBuilder();
+    
+    // Per word in the buffer: start and end offsets, cumulative tokens, whether a paragraph break follows
+    private int[] wordStarts = new int[256];
+    private int[] wordEnds = new int[256];
+    private int[] tokenEnds = new int[256];
+    private boolean[] paragraphEnds = new boolean[256];
+    private int words = 0;
+    private int carried = 0; // leading words repeated from the previous chunk
+    
+    private int nextIndex = 0;
+    private int pendingNewlines = 0;
+    private boolean pendingSpace = false;
+    
+    public StreamingChunker(Tokenizer tokenizer, int chunkTokens, int chunkOverlap,
+                            Consumer<TextSplitter.TextChunk> consumer) {
+        this.tokenizer = tokenizer;
+        this.chunkTokens = Math.max(chunkTokens, 2);
+        this.overlapTokens = Math.max(0, Math.min(chunkOverlap, this.chunkTokens / 4));
+        this.consumer = consumer;
+    }
+    
+    public void append(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            append(text.charAt(i));
+        }
+    }
+    
+    public void append(char[] text, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            append(text[i]);
+        }
+    }
+    
+    /**
+     * Marks the end of a block element (paragraph, heading, list item, page).
+     */
+    public void paragraphBreak() {
+        completeWord();
+        pendingNewlines = Math.max(pendingNewlines, 2);
+    }
+    
+    /**
+     * Emits the remaining text. Returns the number of chunks emitted in total.
+     */
+    public int finish() {
+        completeWord();
+        if (words > carried) {
+            emit(words);
+        }
+        clear();
+        pendingNewlines = 0;
+        pendingSpace = false;
+        return nextIndex;
+    }
+    
+    private void append(char c) {
+        if (c == '\n') {
+            completeWord();
+            pendingNewlines++;
+        } else if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+            completeWord();
+            pendingSpace = true;
+        } else {
+            // Do not split a surrogate pair across slices
+            if (word.length() >= MAX_WORD_CHARS && !Character.isLowSurrogate(c)) {
+                completeWord();
+            }
+            word.append(c);
+        }
+    }
+    
+    private void completeWord() {
+        if (word.length() == 0) {
+            return;
+        }
+        
+        String separator = pendingNewlines >= 2 ? "\n\n" : pendingNewlines == 1 ? "\n" : pendingSpace ? " " : "";
+        pendingNewlines = 0;
+        pendingSpace = false;
+        
+        segment.setLength(0);
+        segment.append(separator).append(word);
+        int tokens = tokenizer.countTokens(segment);
+        
+        if (tokens > chunkTokens) {
+            emitOversizedWord();
+            return;
+        }
+        
+        // Make room, dropping the carried overlap if even that does not leave enough
+        while (words > 0 && tokenEnds[words - 1] + tokens > chunkTokens) {
+            if (words > carried) {
+                cut();
+            } else {
+                clear();
+            }
+        }
+        
+        if (words == 0) {
+            // A chunk's first word is emitted without its separator, and can take more tokens bare
+            if (!separator.isEmpty()) {
+                tokens = tokenizer.countTokens(word);
+                if (tokens > chunkTokens) {
+                    emitOversizedWord();
+                    return;
+                }
+            }
+            separator = "";
+        } else if (separator.equals("\n\n")) {
+            paragraphEnds[words - 1] = true;
+        }
+        buffer.append(separator);
+        addWord(buffer.length(), tokens);
+        word.setLength(0);
+    }
+    
+    private void addWord(int start, int tokens) {
+        if (words == wordStarts.length) {
+            int capacity = words * 2;
+            wordStarts = Arrays.copyOf(wordStarts, capacity);
+            wordEnds = Arrays.copyOf(wordEnds, capacity);
+            tokenEnds = Arrays.copyOf(tokenEnds, capacity);
+            paragraphEnds = Arrays.copyOf(paragraphEnds, capacity);
+        }
+        buffer.append(word);
+        wordStarts[words] = start;
+        wordEnds[words] = buffer.length();
+        tokenEnds[words] = (words > 0 ? tokenEnds[words - 1] : 0) + tokens;
+        paragraphEnds[words] = false;
+        words++;
+    }
+    
+    /**
+     * Emits the words before the best cut point and keeps the rest, prefixed with the overlap.
+     */
+    private void cut() {
+        int min = chunkTokens / 2;
+        int end = words;
+        
+        for (int i = words - 1; i >= carried && tokenEnds[i] >= min; i--) {
+            if (paragraphEnds[i]) {
+                end = i + 1;
+                break;
+            }
+        }
+        if (end == words) {
+            for (int i = words - 1; i >= carried && tokenEnds[i] >= min; i--) {
+                if (endsSentence(i)) {
+                    end = i + 1;
+                    break;
+                }
+            }
+        }
+        
+        emit(end);
+        
+        // Start the next chunk with the last words of this one
+        int start = end;
+        while (start > 1 && tokenEnds[end - 1] - tokenEnds[start - 2] <= overlapTokens) {
+            start--;
+        }
+        shift(start);
+        carried = end - start;
+    }
+    
+    private void emit(int end) {
+        String text = buffer.substring(0, wordEnds[end - 1]);
+        consumer.accept(new TextSplitter.TextChunk(text, nextIndex++));
+    }
+    
+    /**
+     * Drops the first words from the buffer. The new first word loses its separator and is counted
+     * again, since a word can take more tokens bare than with a leading space.
+     */
+    private void shift(int first) {
+        if (first >= words) {
+            clear();
+            return;
+        }
+        
+        int offset = wordStarts[first];
+        int tokenOffset = first > 0 ? tokenEnds[first - 1] : 0;
+        buffer.delete(0, offset);
+        for (int i = first; i < words; i++) {
+            wordStarts[i - first] = wordStarts[i] - offset;
+            wordEnds[i - first] = wordEnds[i] - offset;
+            tokenEnds[i - first] = tokenEnds[i] - tokenOffset;
+            paragraphEnds[i - first] = paragraphEnds[i];
+        }
+        words -= first;
+        
+        int delta = tokenizer.countTokens(buffer.subSequence(0, wordEnds[0])) - tokenEnds[0];
+        for (int i = 0; i < words; i++) {
+            tokenEnds[i] += delta;
+        }
+    }
+    
+    private void clear() {
+        buffer.setLength(0);
+        words = 0;
+        carried = 0;
+    }
+    
+    /**
+     * A single word longer than a whole chunk is emitted on its own, split at token boundaries.
+     */
+    private void emitOversizedWord() {
+        if (words > carried) {
+            emit(words);
+        }
+        clear();
+        
+        String rest = word.toString();
+        word.setLength(0);
+        while (!rest.isEmpty()) {
+            String part = tokenizer.truncate(rest, chunkTokens);
+            if (part.isEmpty()) {
+                part = rest.substring(0, Character.charCount(rest.codePointAt(0)));
+            }
+            consumer.accept(new TextSplitter.TextChunk(part, nextIndex++));
+            rest = rest.substring(part.length());
+        }
+    }
+    
+    private boolean endsSentence(int index) {
+        int end = wordEnds[index] - 1;
+        char last = buffer.charAt(end);
+        if ((last == '"' || last == '\'' || last == ')') && end > wordStarts[index]) {
+            last = buffer.charAt(end - 1);
+        }
+        return last == '.' || last == '!' || last == '?';
+    }
+}
@@ -1,17 +1,25 @@
 package com.example.llm.rag;
 
+import com.example.llm.llm.Tokenizer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.tika.Tika;
 import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.function.Consumer;
 
 @Component
 @RequiredArgsConstructor
@@ -19,178 +27,89 @@ import java.util.regex.Pattern;
 public class TextSplitter {
     
     private final Tika tika;
+    private final Tokenizer tokenizer;
     
-    @Value("${app.rag.chunkSize:3000}")
-    private int chunkSize;
+    @Value("${app.rag.chunkTokens:700}")
+    private int chunkTokens;
     
-    @Value("${app.rag.chunkOverlap:200}")
-    private int chunkOverlap;
+    @Value("${app.rag.chunkOverlapTokens:50}")
+    private int chunkOverlapTokens;
     
-    private static final Pattern SENTENCE_PATTERN = Pattern.compile(
-            "[.!?]+\\s+", Pattern.MULTILINE
+    private static final Set<String> BLOCK_ELEMENTS = Set.of(
+            "p", "div", "h1", "h2", "h3", "h4", "h5", "h6", "li", "tr", "table", "pre", "blockquote"
     );
     
-    private static final Pattern PARAGRAPH_PATTERN = Pattern.compile(
-            "\\n\\s*\\n", Pattern.MULTILINE
-    );
-    
-    public String extractTextFromFile(byte[] fileContent, String contentType) {
+    /**
+     * Parses the stream with Tika's SAX interface and hands chunks to the consumer as they complete,
+     * so neither the file nor its extracted text is held in memory as a whole. The consumer runs on
+     * the parsing thread. Returns the number of chunks emitted.
+     */
+    public int streamChunks(InputStream input, String contentType, Consumer<TextChunk> consumer) {
+        StreamingChunker chunker = new StreamingChunker(tokenizer, chunkTokens, chunkOverlapTokens, consumer);
+        
+        Metadata metadata = new Metadata();
+        if (contentType != null) {
+            metadata.set(Metadata.CONTENT_TYPE, contentType);
+        }
+        ParseContext context = new ParseContext();
+        context.set(Parser.class, tika.getParser());
+        
         try {
-            return tika.parseToString(new ByteArrayInputStream(fileContent));
-        } catch (IOException | TikaException e) {
+            // Unlike parseToString there is no write limit, so long documents are no longer cut at 100k characters
+            tika.getParser().parse(input, new BodyContentHandler(new ChunkingContentHandler(chunker)), metadata, context);
+        } catch (IOException | SAXException | TikaException e) {
             log.error("Failed to extract text from file", e);
             throw new RuntimeException("Failed to extract text from file", e);
         }
+        
+        int chunkCount = chunker.finish();
+        log.debug("Streamed {} chunks from {}", chunkCount, contentType);
+        return chunkCount;
     }
     
     public List<TextChunk> splitText(String text) {
-        log.debug("Splitting text of length: {} into chunks", text.length());
-        
         List<TextChunk> chunks = new ArrayList<>();
         
         if (text == null || text.isEmpty()) {
             return chunks;
         }
         
-        // First try to split by paragraphs
-        String[] paragraphs = PARAGRAPH_PATTERN.split(text);
-        
-        for (String paragraph : paragraphs) {
-            paragraph = paragraph.trim();
-            if (paragraph.isEmpty()) continue;
-            
-            if (paragraph.length() <= chunkSize) {
-                chunks.add(new TextChunk(paragraph, 0));
-            } else {
-                // Split long paragraphs by sentences
-                chunks.addAll(splitBySentences(paragraph));
-            }
-        }
-        
-        // If no paragraphs found, split the entire text
-        if (chunks.isEmpty()) {
-            chunks.addAll(splitBySentences(text));
-        }
-        
-        // Merge small chunks and handle overlap
-        chunks = mergeAndOverlapChunks(chunks);
+        log.debug("Splitting text of length: {} into chunks", text.length());
+        StreamingChunker chunker = new StreamingChunker(tokenizer, chunkTokens, chunkOverlapTokens, chunks::add);
+        chunker.append(text);
+        chunker.finish();
         
         log.debug("Created {} chunks from text", chunks.size());
         return chunks;
     }
     
-    private List<TextChunk> splitBySentences(String text) {
-        List<TextChunk> chunks = new ArrayList<>();
-        String[] sentences = SENTENCE_PATTERN.split(text);
-        
-        StringBuilder currentChunk = new StringBuilder();
-        int chunkIndex = 0;
-        
-        for (String sentence : sentences) {
-            sentence = sentence.trim();
-            if (sentence.isEmpty()) continue;
-            
-            if (currentChunk.length() + sentence.length() + 1 <= chunkSize) {
-                if (currentChunk.length() > 0) {
-                    currentChunk.append(" ");
-                }
-                currentChunk.append(sentence);
-            } else {
-                if (currentChunk.length() > 0) {
-                    chunks.add(new TextChunk(currentChunk.toString(), chunkIndex++));
-                    currentChunk = new StringBuilder();
-                }
-                
-                // If single sentence is too long, split it by words
-                if (sentence.length() > chunkSize) {
-                    chunks.addAll(splitByWords(sentence, chunkIndex++));
-                } else {
-                    currentChunk.append(sentence);
-                }
-            }
-        }
-        
-        if (currentChunk.length() > 0) {
-            chunks.add(new TextChunk(currentChunk.toString(), chunkIndex));
-        }
-        
-        return chunks;
-    }
-    
-    private List<TextChunk> splitByWords(String text, int startIndex) {
-        List<TextChunk> chunks = new ArrayList<>();
-        String[] words = text.split("\\s+");
+    /**
+     * Forwards body text to the chunker and turns the end of block elements into paragraph breaks.
+     */
+    private static class ChunkingContentHandler extends DefaultHandler {
         
-        StringBuilder currentChunk = new StringBuilder();
-        int chunkIndex = startIndex;
+        private final StreamingChunker chunker;
         
-        for (String word : words) {
-            if (currentChunk.length() + word.length() + 1 <= chunkSize) {
-                if (currentChunk.length() > 0) {
-                    currentChunk.append(" ");
-                }
-                currentChunk.append(word);
-            } else {
-                if (currentChunk.length() > 0) {
-                    chunks.add(new TextChunk(currentChunk.toString(), chunkIndex++));
-                    currentChunk = new StringBuilder(word);
-                } else {
-                    // Single word is too long, truncate it
-                    chunks.add(new TextChunk(word.substring(0, Math.min(word.length(), chunkSize)), chunkIndex++));
-                }
-            }
+        ChunkingContentHandler(StreamingChunker chunker) {
+            this.chunker = chunker;
         }
         
-        if (currentChunk.length() > 0) {
-            chunks.add(new TextChunk(currentChunk.toString(), chunkIndex));
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            chunker.append(ch, start, length);
         }
         
-        return chunks;
-    }
-    
-    private List<TextChunk> mergeAndOverlapChunks(List<TextChunk> chunks) {
-        List<TextChunk> mergedChunks = new ArrayList<>();
-        
-        for (int i = 0; i < chunks.size(); i++) {
-            TextChunk chunk = chunks.get(i);
-            
-            // If chunk is too small and not the last one, try to merge with next
-            if (chunk.getText().length() < chunkSize / 2 && i < chunks.size() - 1) {
-                TextChunk nextChunk = chunks.get(i + 1);
-                String mergedText = chunk.getText() + " " + nextChunk.getText();
-                
-                if (mergedText.length() <= chunkSize) {
-                    mergedChunks.add(new TextChunk(mergedText, chunk.getIndex()));
-                    i++; // Skip next chunk as it's been merged
-                    continue;
-                }
-            }
-            
-            mergedChunks.add(chunk);
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            chunker.append(ch, start, length);
         }
         
-        // Add overlap between chunks
-        List<TextChunk> overlappedChunks = new ArrayList<>();
-        for (int i = 0; i < mergedChunks.size(); i++) {
-            TextChunk chunk = mergedChunks.get(i);
-            
-            if (i > 0 && chunkOverlap > 0) {
-                TextChunk prevChunk = mergedChunks.get(i - 1);
-                String prevText = prevChunk.getText();
-                
-                if (prevText.length() > chunkOverlap) {
-                    String overlapText = prevText.substring(prevText.length() - chunkOverlap);
-                    String overlappedText = overlapText + " " + chunk.getText();
-                    overlappedChunks.add(new TextChunk(overlappedText, chunk.getIndex()));
-                } else {
-                    overlappedChunks.add(chunk);
-                }
-            } else {
-                overlappedChunks.add(chunk);
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (BLOCK_ELEMENTS.contains(localName)) {
+                chunker.paragraphBreak();
             }
         }
-        
-        return overlappedChunks;
     }
     
     public static class TextChunk {
@@ -0,0 +1,391 @@
+package com.example.llm.rag;
+
+import com.example.llm.repository.ChunkRepository;
+import com.example.llm.util.VectorCodec;
+import com.example.llm.util.VectorMath;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class VectorIndexService {
+    
+    private static final UUID MIN_UUID = new UUID(0L, 0L);
+    
+    private final ChunkRepository chunkRepository;
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${app.rag.index.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${app.rag.index.dimension:1536}")
+    private int dimension;
+    
+    @Value("${app.rag.index.m:16}")
+    private int m;
+    
+    @Value("${app.rag.index.efConstruction:200}")
+    private int efConstruction;
+    
+    @Value("${app.rag.index.efSearch:64}")
+    private int efSearch;
+    
+    @Value("${app.rag.index.loadPageSize:1000}")
+    private int loadPageSize;
+    
+    @Value("${app.rag.index.rebuildDeletedRatio:0.3}")
+    private double rebuildDeletedRatio;
+    
+    @Value("${app.rag.index.quantization:none}")
+    private String quantization;
+    
+    @Value("${app.rag.index.rescoreMultiplier:4}")
+    private int rescoreMultiplier;
+    
+    private HnswIndex.Quantization quantizationMode;
+    private ExecutorService rebuildExecutor;
+    private volatile HnswIndex index;
+    private volatile HnswIndex buildingIndex;
+    private volatile boolean ready = false;
+    private final AtomicBoolean building = new AtomicBoolean(false);
+    private volatile Map<UUID, Set<UUID>> chunksByDocument = new ConcurrentHashMap<>();
+    private volatile Map<UUID, Set<UUID>> buildingChunksByDocument;
+    // Removals the load of a rebuild may have read back in, replayed before it is swapped in
+    private final Set<UUID> removedWhileBuilding = ConcurrentHashMap.newKeySet();
+    // Updates hold the read lock so that they apply to both indexes or land after the swap, never in between
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    
+    @PostConstruct
+    public void init() {
+        try {
+            quantizationMode = HnswIndex.Quantization.valueOf(quantization.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Unknown app.rag.index.quantization '" + quantization + "', expected none, float16 or int8");
+        }
+        // One rebuild at a time plus at most one queued behind it; further requests are covered by that one
+        rebuildExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1),
+                new CustomizableThreadFactory("vector-index-rebuild-"), new ThreadPoolExecutor.DiscardPolicy());
+        meterRegistry.gauge("rag.index.vector.bytes", this, service -> {
+            HnswIndex current = service.index;
+            return current != null ? current.vectorBytes() : 0;
+        });
+    }
+    
+    @PreDestroy
+    public void stop() {
+        rebuildExecutor.shutdownNow();
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildOnStartup() {
+        if (!enabled) {
+            log.info("HNSW vector index disabled, retrieval will use pgvector");
+            return;
+        }
+        // Build in the background; retrieval falls back to pgvector until the index is ready
+        rebuildInBackground(this::rebuild);
+    }
+    
+    public void rebuild() {
+        if (!building.compareAndSet(false, true)) {
+            log.debug("HNSW index build already in progress");
+            return;
+        }
+        
+        try {
+            long startTime = System.currentTimeMillis();
+            HnswIndex newIndex = new HnswIndex(dimension, m, efConstruction, quantizationMode);
+            Map<UUID, Set<UUID>> newChunksByDocument = new ConcurrentHashMap<>();
+            
+            // Incremental updates also go to the new index while it is being loaded. Chunks are added
+            // after their rows commit, so a row the load pages past has its add arrive here instead.
+            swapLock.writeLock().lock();
+            try {
+                buildingIndex = newIndex;
+                buildingChunksByDocument = newChunksByDocument;
+                removedWhileBuilding.clear();
+                if (index == null) {
+                    index = newIndex;
+                    chunksByDocument = newChunksByDocument;
+                }
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            
+            UUID lastId = MIN_UUID;
+            int loaded = 0;
+            while (true) {
+                List<Object[]> page = chunkRepository.findVectorsAfter(lastId, loadPageSize);
+                if (page.isEmpty()) {
+                    break;
+                }
+                
+                for (Object[] row : page) {
+                    UUID chunkId = (UUID) row[0];
+                    UUID documentId = (UUID) row[1];
+                    float[] vector = VectorCodec.fromBinary((byte[]) row[2]);
+                    lastId = chunkId;
+                    
+                    if (vector.length != dimension) {
+                        log.warn("Skipping chunk {} with vector dimension {}", chunkId, vector.length);
+                        continue;
+                    }
+                    
+                    newIndex.add(chunkId, vector);
+                    track(newChunksByDocument, documentId, chunkId);
+                    loaded++;
+                }
+            }
+            
+            swapLock.writeLock().lock();
+            try {
+                for (UUID chunkId : removedWhileBuilding) {
+                    newIndex.remove(chunkId);
+                }
+                newChunksByDocument.values().forEach(chunkIds -> chunkIds.removeAll(removedWhileBuilding));
+                newChunksByDocument.values().removeIf(Set::isEmpty);
+                
+                index = newIndex;
+                chunksByDocument = newChunksByDocument;
+                ready = true;
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            
+            log.info("Built HNSW vector index with {} {} vectors ({} MB) in {} ms", loaded, quantizationMode.name().toLowerCase(),
+                    newIndex.vectorBytes() / (1024 * 1024), System.currentTimeMillis() - startTime);
+        } finally {
+            swapLock.writeLock().lock();
+            try {
+                buildingIndex = null;
+                buildingChunksByDocument = null;
+                removedWhileBuilding.clear();
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            building.set(false);
+        }
+    }
+    
+    public boolean isReady() {
+        return enabled && ready;
+    }
+    
+    public void add(UUID chunkId, UUID documentId, float[] vector) {
+        if (!enabled || index == null) {
+            return;
+        }
+        
+        if (vector == null || vector.length != dimension) {
+            log.warn("Not indexing chunk {} with vector dimension {}", chunkId, vector != null ? vector.length : 0);
+            return;
+        }
+        
+        swapLock.readLock().lock();
+        try {
+            HnswIndex current = index;
+            current.add(chunkId, vector);
+            track(chunksByDocument, documentId, chunkId);
+            
+            HnswIndex pending = buildingIndex;
+            if (pending != null && pending != current) {
+                pending.add(chunkId, vector);
+                track(buildingChunksByDocument, documentId, chunkId);
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+    
+    public void removeDocument(UUID documentId) {
+        HnswIndex current;
+        Set<UUID> chunkIds = new HashSet<>();
+        
+        swapLock.readLock().lock();
+        try {
+            current = index;
+            Set<UUID> indexed = chunksByDocument.remove(documentId);
+            if (indexed != null) {
+                chunkIds.addAll(indexed);
+            }
+            Map<UUID, Set<UUID>> loading = buildingChunksByDocument;
+            Set<UUID> loaded = loading != null ? loading.remove(documentId) : null;
+            if (loaded != null) {
+                chunkIds.addAll(loaded);
+            }
+            if (current == null || chunkIds.isEmpty()) {
+                return;
+            }
+            remove(current, chunkIds);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        
+        log.debug("Removed {} chunks of document {} from HNSW index", chunkIds.size(), documentId);
+        rebuildIfFragmented(current);
+    }
+    
+    /**
+     * Removes single chunks of a document, e.g. the ones dropped when it was re-ingested.
+     */
+    public void removeChunks(UUID documentId, Collection<UUID> chunkIds) {
+        HnswIndex current;
+        
+        swapLock.readLock().lock();
+        try {
+            current = index;
+            if (current == null || chunkIds.isEmpty()) {
+                return;
+            }
+            remove(current, chunkIds);
+            untrack(chunksByDocument, documentId, chunkIds);
+            Map<UUID, Set<UUID>> loading = buildingChunksByDocument;
+            if (loading != null) {
+                untrack(loading, documentId, chunkIds);
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        
+        log.debug("Removed {} chunks of document {} from HNSW index", chunkIds.size(), documentId);
+        rebuildIfFragmented(current);
+    }
+    
+    // Called under the read lock
+    private void remove(HnswIndex current, Collection<UUID> chunkIds) {
+        chunkIds.forEach(current::remove);
+        HnswIndex pending = buildingIndex;
+        if (pending != null) {
+            if (pending != current) {
+                chunkIds.forEach(pending::remove);
+            }
+            removedWhileBuilding.addAll(chunkIds);
+        }
+    }
+    
+    private static void track(Map<UUID, Set<UUID>> chunks, UUID documentId, UUID chunkId) {
+        chunks.computeIfAbsent(documentId, id -> ConcurrentHashMap.newKeySet()).add(chunkId);
+    }
+    
+    private static void untrack(Map<UUID, Set<UUID>> chunks, UUID documentId, Collection<UUID> chunkIds) {
+        Set<UUID> documentChunks = chunks.get(documentId);
+        if (documentChunks != null) {
+            documentChunks.removeAll(chunkIds);
+        }
+    }
+    
+    // Tombstones still cost traversal time, rebuild once they make up a large share of the graph
+    private void rebuildIfFragmented(HnswIndex current) {
+        if (isFragmented(current)) {
+            log.info("HNSW index has {} deleted of {} nodes, rebuilding", current.deletedCount(),
+                    current.size() + current.deletedCount());
+            // A rebuild queued behind a running one may find the index rebuilt already
+            rebuildInBackground(() -> {
+                if (isFragmented(index)) {
+                    rebuild();
+                }
+            });
+        }
+    }
+    
+    private boolean isFragmented(HnswIndex current) {
+        int total = current.size() + current.deletedCount();
+        return total > 0 && (double) current.deletedCount() / total > rebuildDeletedRatio;
+    }
+    
+    private void rebuildInBackground(Runnable build) {
+        rebuildExecutor.execute(() -> {
+            try {
+                build.run();
+            } catch (RuntimeException e) {
+                log.error("Failed to build HNSW vector index", e);
+            }
+        });
+    }
+    
+    /**
+     * Searches the index and loads the rows of the hits in one query, laid out like
+     * ChunkRepository.findSimilarChunks: score at [5], filename at [6], normalized vector at [7]. A
+     * quantized index over-fetches and re-ranks the candidates by the full-precision vectors that come
+     * with the rows; candidates without a stored vector keep their approximate score. An unquantized
+     * index loads the rows without vectors and returns its own.
+     */
+    public List<Object[]> findSimilarChunks(float[] query, int k) {
+        HnswIndex current = index;
+        if (current == null) {
+            return new ArrayList<>();
+        }
+        return findSimilarChunks(current, query, k);
+    }
+    
+    private List<Object[]> findSimilarChunks(HnswIndex current, float[] query, int k) {
+        boolean rescore = rescores(current);
+        int candidates = rescore ? k * rescoreMultiplier : k;
+        List<HnswIndex.SearchResult> hits = current.search(query, candidates, Math.max(efSearch, candidates));
+        if (hits.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        List<UUID> ids = hits.stream()
+                .map(HnswIndex.SearchResult::getId)
+                .collect(java.util.stream.Collectors.toList());
+        // Only rescoring needs the stored vectors, which at several KB each dominate the row size
+        List<Object[]> rows = rescore ? chunkRepository.findChunksWithVectorsByIds(ids) : chunkRepository.findChunksByIds(ids);
+        Map<UUID, Object[]> rowsById = new HashMap<>();
+        for (Object[] row : rows) {
+            rowsById.put((UUID) row[0], row);
+        }
+        
+        float[] normalizedQuery = new float[query.length];
+        VectorMath.normalizeInto(query, normalizedQuery, 0);
+        
+        // Keep index order; the rescored order is restored by the sort below
+        List<Object[]> results = new ArrayList<>(hits.size());
+        for (HnswIndex.SearchResult hit : hits) {
+            Object[] row = rowsById.get(hit.getId());
+            if (row == null) {
+                continue; // Chunk was deleted or its transaction rolled back
+            }
+            Object[] result = Arrays.copyOf(row, 8);
+            result[5] = (double) hit.getScore();
+            result[6] = row[5];
+            result[7] = hit.getVector();
+            
+            float[] exact = rescore && row[6] != null ? VectorCodec.fromBinary((byte[]) row[6]) : null;
+            if (exact != null && exact.length == query.length) {
+                float[] normalized = new float[exact.length];
+                VectorMath.normalizeInto(exact, normalized, 0);
+                result[5] = (double) VectorMath.dot(normalizedQuery, normalized);
+                result[7] = normalized;
+            }
+            results.add(result);
+        }
+        
+        if (rescore) {
+            results.sort((a, b) -> Double.compare(((Number) b[5]).doubleValue(), ((Number) a[5]).doubleValue()));
+        }
+        return new ArrayList<>(results.subList(0, Math.min(k, results.size())));
+    }
+    
+    private boolean rescores(HnswIndex current) {
+        return current.quantization() != HnswIndex.Quantization.NONE && rescoreMultiplier >= 1;
+    }
+}
@@ -0,0 +1,303 @@
+package com.example.llm.rag;
+
+import com.example.llm.util.VectorMath;
+
+import java.util.Arrays;
+
+/**
+ * Node vectors of an HnswIndex, stored at full precision or quantized. Vectors are L2-normalized
+ * before they are stored, so every component lies in [-1, 1]. Queries stay at full precision and are
+ * compared against the stored representation directly, without decoding it first.
+ */
+abstract class VectorStorage {
+    
+    // Array header of a primitive array on a 64-bit JVM with compressed oops
+    private static final int ARRAY_HEADER_BYTES = 16;
+    
+    protected final int dimension;
+    
+    protected VectorStorage(int dimension) {
+        this.dimension = dimension;
+    }
+    
+    static VectorStorage create(HnswIndex.Quantization quantization, int dimension, int capacity) {
+        return switch (quantization) {
+            case FLOAT16 -> new Float16(dimension, capacity);
+            case INT8 -> new Int8(dimension, capacity);
+            default -> new Float32(dimension, capacity);
+        };
+    }
+    
+    abstract void set(int node, float[] normalized);
+    
+    /**
+     * Dot product of a full-precision normalized query with a stored vector.
+     */
+    abstract float dot(float[] query, int node);
+    
+    abstract float dot(int a, int b);
+    
+    abstract float[] decode(int node);
+    
+    abstract void grow(int capacity);
+    
+    abstract long bytesPerVector();
+    
+    static final class Float32 extends VectorStorage {
+        
+        private float[][] vectors;
+        
+        private Float32(int dimension, int capacity) {
+            super(dimension);
+            this.vectors = new float[capacity][];
+        }
+        
+        @Override
+        void set(int node, float[] normalized) {
+            vectors[node] = normalized;
+        }
+        
+        @Override
+        float dot(float[] query, int node) {
+            return VectorMath.dot(query, vectors[node]);
+        }
+        
+        @Override
+        float dot(int a, int b) {
+            return VectorMath.dot(vectors[a], vectors[b]);
+        }
+        
+        /**
+         * The stored vector itself; shared, so callers must not modify it.
+         */
+        @Override
+        float[] decode(int node) {
+            return vectors[node];
+        }
+        
+        @Override
+        void grow(int capacity) {
+            vectors = Arrays.copyOf(vectors, capacity);
+        }
+        
+        @Override
+        long bytesPerVector() {
+            return ARRAY_HEADER_BYTES + (long) dimension * Float.BYTES;
+        }
+    }
+    
+    /**
+     * IEEE 754 half precision: half the memory, about three significant decimal digits, which is
+     * below the noise of embedding similarity for normalized vectors.
+     */
+    static final class Float16 extends VectorStorage {
+        
+        private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+        
+        static {
+            for (int i = 0; i < HALF_TO_FLOAT.length; i++) {
+                HALF_TO_FLOAT[i] = toFloat((short) i);
+            }
+        }
+        
+        private short[][] vectors;
+        
+        private Float16(int dimension, int capacity) {
+            super(dimension);
+            this.vectors = new short[capacity][];
+        }
+        
+        @Override
+        void set(int node, float[] normalized) {
+            short[] halves = new short[dimension];
+            for (int i = 0; i < dimension; i++) {
+                halves[i] = toHalf(normalized[i]);
+            }
+            vectors[node] = halves;
+        }
+        
+        @Override
+        float dot(float[] query, int node) {
+            short[] halves = vectors[node];
+            float s0 = 0f, s1 = 0f;
+            int i = 0;
+            for (; i + 1 < dimension; i += 2) {
+                s0 += query[i] * HALF_TO_FLOAT[halves[i] & 0xFFFF];
+                s1 += query[i + 1] * HALF_TO_FLOAT[halves[i + 1] & 0xFFFF];
+            }
+            if (i < dimension) {
+                s0 += query[i] * HALF_TO_FLOAT[halves[i] & 0xFFFF];
+            }
+            return s0 + s1;
+        }
+        
+        @Override
+        float dot(int a, int b) {
+            short[] x = vectors[a];
+            short[] y = vectors[b];
+            float sum = 0f;
+            for (int i = 0; i < dimension; i++) {
+                sum += HALF_TO_FLOAT[x[i] & 0xFFFF] * HALF_TO_FLOAT[y[i] & 0xFFFF];
+            }
+            return sum;
+        }
+        
+        @Override
+        float[] decode(int node) {
+            short[] halves = vectors[node];
+            float[] vector = new float[dimension];
+            for (int i = 0; i < dimension; i++) {
+                vector[i] = HALF_TO_FLOAT[halves[i] & 0xFFFF];
+            }
+            return vector;
+        }
+        
+        @Override
+        void grow(int capacity) {
+            vectors = Arrays.copyOf(vectors, capacity);
+        }
+        
+        @Override
+        long bytesPerVector() {
+            return ARRAY_HEADER_BYTES + (long) dimension * Short.BYTES;
+        }
+        
+        /**
+         * Rounds to the nearest half, ties to even; values below the smallest subnormal become zero.
+         */
+        static short toHalf(float value) {
+            int bits = Float.floatToRawIntBits(value);
+            int sign = (bits >>> 16) & 0x8000;
+            int floatExponent = (bits >>> 23) & 0xFF;
+            int mantissa = bits & 0x7FFFFF;
+            
+            if (floatExponent == 0xFF) {
+                return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+            }
+            
+            int exponent = floatExponent - 127 + 15;
+            if (exponent >= 0x1F) {
+                return (short) (sign | 0x7C00);
+            }
+            
+            if (exponent <= 0) {
+                if (exponent < -10) {
+                    return (short) sign;
+                }
+                mantissa |= 0x800000;
+                int shift = 14 - exponent;
+                int half = mantissa >> shift;
+                int rest = mantissa & ((1 << shift) - 1);
+                int halfway = 1 << (shift - 1);
+                if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+                    half++;
+                }
+                return (short) (sign | half);
+            }
+            
+            // A carry out of the mantissa correctly moves on to the next exponent
+            int half = (exponent << 10) | (mantissa >> 13);
+            int rest = mantissa & 0x1FFF;
+            if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        
+        static float toFloat(short half) {
+            int bits = half & 0xFFFF;
+            int sign = (bits & 0x8000) << 16;
+            int exponent = (bits >>> 10) & 0x1F;
+            int mantissa = bits & 0x3FF;
+            
+            if (exponent == 0x1F) {
+                return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+            }
+            if (exponent == 0) {
+                float value = mantissa * 0x1p-24f;
+                return sign != 0 ? -value : value;
+            }
+            return Float.intBitsToFloat(sign | ((exponent + 127 - 15) << 23) | (mantissa << 13));
+        }
+    }
+    
+    /**
+     * Symmetric scalar quantization to int8 with one scale per vector (its largest magnitude / 127),
+     * a quarter of the memory. Node-to-node products are accumulated in integers.
+     */
+    static final class Int8 extends VectorStorage {
+        
+        private byte[][] codes;
+        private float[] scales;
+        
+        private Int8(int dimension, int capacity) {
+            super(dimension);
+            this.codes = new byte[capacity][];
+            this.scales = new float[capacity];
+        }
+        
+        @Override
+        void set(int node, float[] normalized) {
+            float maxAbs = 0f;
+            for (float v : normalized) {
+                maxAbs = Math.max(maxAbs, Math.abs(v));
+            }
+            float scale = maxAbs > 0f ? maxAbs / 127f : 1f;
+            
+            byte[] code = new byte[dimension];
+            for (int i = 0; i < dimension; i++) {
+                code[i] = (byte) Math.max(-127, Math.min(127, Math.round(normalized[i] / scale)));
+            }
+            codes[node] = code;
+            scales[node] = scale;
+        }
+        
+        @Override
+        float dot(float[] query, int node) {
+            byte[] code = codes[node];
+            float s0 = 0f, s1 = 0f;
+            int i = 0;
+            for (; i + 1 < dimension; i += 2) {
+                s0 += query[i] * code[i];
+                s1 += query[i + 1] * code[i + 1];
+            }
+            if (i < dimension) {
+                s0 += query[i] * code[i];
+            }
+            return (s0 + s1) * scales[node];
+        }
+        
+        @Override
+        float dot(int a, int b) {
+            byte[] x = codes[a];
+            byte[] y = codes[b];
+            int sum = 0;
+            for (int i = 0; i < dimension; i++) {
+                sum += x[i] * y[i];
+            }
+            return sum * scales[a] * scales[b];
+        }
+        
+        @Override
+        float[] decode(int node) {
+            byte[] code = codes[node];
+            float scale = scales[node];
+            float[] vector = new float[dimension];
+            for (int i = 0; i < dimension; i++) {
+                vector[i] = code[i] * scale;
+            }
+            return vector;
+        }
+        
+        @Override
+        void grow(int capacity) {
+            codes = Arrays.copyOf(codes, capacity);
+            scales = Arrays.copyOf(scales, capacity);
+        }
+        
+        @Override
+        long bytesPerVector() {
+            return ARRAY_HEADER_BYTES + dimension + Float.BYTES;
+        }
+    }
+}
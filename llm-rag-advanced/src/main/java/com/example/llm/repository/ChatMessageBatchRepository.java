@@ -0,0 +1,47 @@
+package com.example.llm.repository;
+
+import com.example.llm.entity.ChatMessage;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+@RequiredArgsConstructor
+@Slf4j
+public class ChatMessageBatchRepository {
+    
+    private static final String INSERT_SQL = """
+        INSERT INTO chat_messages (id, session_id, role, content, tokens_in, tokens_out, created_at)
+        VALUES (?, ?, ?, ?, ?, ?, ?)
+        """;
+    
+    private final JdbcTemplate jdbcTemplate;
+    
+    @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:100}")
+    private int batchSize;
+    
+    /**
+     * Inserts message rows using JDBC batches. Ids and creation times must be assigned by the caller.
+     */
+    public void insertAll(List<ChatMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        
+        jdbcTemplate.batchUpdate(INSERT_SQL, messages, batchSize, (ps, message) -> {
+            ps.setObject(1, message.getId());
+            ps.setObject(2, message.getSessionId());
+            ps.setString(3, message.getRole());
+            ps.setString(4, message.getContent());
+            ps.setInt(5, message.getTokensIn() != null ? message.getTokensIn() : 0);
+            ps.setInt(6, message.getTokensOut() != null ? message.getTokensOut() : 0);
+            ps.setObject(7, message.getCreatedAt());
+        });
+        
+        log.debug("Batch inserted {} chat messages", messages.size());
+    }
+}
@@ -6,6 +6,7 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.UUID;
 
@@ -14,6 +15,8 @@ public interface ChatMessageRepository extends JpaRepository<ChatMessage, UUID>
     
     List<ChatMessage> findBySessionIdOrderByCreatedAtAsc(UUID sessionId);
     
+    List<ChatMessage> findBySessionIdAndCreatedAtAfterOrderByCreatedAtAsc(UUID sessionId, OffsetDateTime createdAt);
+    
     @Query("SELECT cm FROM ChatMessage cm WHERE cm.sessionId = :sessionId AND cm.role = :role ORDER BY cm.createdAt ASC")
     List<ChatMessage> findBySessionIdAndRoleOrderByCreatedAtAsc(@Param("sessionId") UUID sessionId, @Param("role") String role);
     
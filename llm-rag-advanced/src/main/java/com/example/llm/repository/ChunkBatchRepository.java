@@ -0,0 +1,122 @@
+package com.example.llm.repository;
+
+import com.example.llm.entity.Chunk;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Types;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+@Repository
+@RequiredArgsConstructor
+@Slf4j
+public class ChunkBatchRepository {
+    
+    private static final String INSERT_SQL = """
+        INSERT INTO chunks (id, document_id, chunk_index, text, content_hash, vector, metadata)
+        VALUES (?, ?, ?, ?, ?, CAST(? AS vector), CAST(? AS jsonb))
+        """;
+    
+    private static final String SELECT_STORED_SQL = """
+        SELECT id, chunk_index, content_hash
+        FROM chunks
+        WHERE document_id = ?
+        """;
+    
+    private static final String UPDATE_INDEX_SQL = "UPDATE chunks SET chunk_index = ? WHERE id = ?";
+    
+    private static final String DELETE_SQL = "DELETE FROM chunks WHERE id = ?";
+    
+    private final JdbcTemplate jdbcTemplate;
+    
+    @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:100}")
+    private int batchSize;
+    
+    /**
+     * Inserts chunk rows together with their vectors using JDBC batches.
+     * Chunk ids must be assigned by the caller.
+     */
+    public void insertAll(List<Chunk> chunks) {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        
+        jdbcTemplate.batchUpdate(INSERT_SQL, chunks, batchSize, (ps, chunk) -> {
+            ps.setObject(1, chunk.getId());
+            ps.setObject(2, chunk.getDocumentId());
+            ps.setInt(3, chunk.getChunkIndex());
+            ps.setString(4, chunk.getText());
+            ps.setString(5, chunk.getContentHash());
+            if (chunk.getVector() != null) {
+                ps.setObject(6, chunk.getVector());
+            } else {
+                ps.setNull(6, Types.OTHER);
+            }
+            ps.setString(7, chunk.getMetadata() != null ? chunk.getMetadata() : "{}");
+        });
+        
+        log.debug("Batch inserted {} chunks", chunks.size());
+    }
+    
+    /**
+     * Ids, positions and content hashes of a document's chunks, without text or vectors.
+     */
+    public List<StoredChunk> findStoredChunks(UUID documentId) {
+        return jdbcTemplate.query(SELECT_STORED_SQL, (rs, rowNum) -> new StoredChunk(
+                rs.getObject(1, UUID.class),
+                rs.getInt(2),
+                rs.getString(3)
+        ), documentId);
+    }
+    
+    public void updateIndexes(Map<UUID, Integer> chunkIndexes) {
+        if (chunkIndexes.isEmpty()) {
+            return;
+        }
+        
+        jdbcTemplate.batchUpdate(UPDATE_INDEX_SQL, chunkIndexes.entrySet(), batchSize, (ps, entry) -> {
+            ps.setInt(1, entry.getValue());
+            ps.setObject(2, entry.getKey());
+        });
+    }
+    
+    public void deleteAll(Collection<UUID> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return;
+        }
+        
+        jdbcTemplate.batchUpdate(DELETE_SQL, chunkIds, batchSize, (ps, chunkId) -> ps.setObject(1, chunkId));
+        log.debug("Batch deleted {} chunks", chunkIds.size());
+    }
+    
+    public static class StoredChunk {
+        
+        private final UUID id;
+        private final int chunkIndex;
+        private final String contentHash;
+        
+        public StoredChunk(UUID id, int chunkIndex, String contentHash) {
+            this.id = id;
+            this.chunkIndex = chunkIndex;
+            this.contentHash = contentHash;
+        }
+        
+        public UUID getId() {
+            return id;
+        }
+        
+        public int getChunkIndex() {
+            return chunkIndex;
+        }
+        
+        public String getContentHash() {
+            return contentHash;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -16,25 +17,78 @@ public interface ChunkRepository extends JpaRepository<Chunk, UUID> {
     
     @Query(value = """
         SELECT c.id, c.document_id, c.chunk_index, c.text, c.metadata,
-               1 - (c.vector <=> :queryVector::vector) AS score
+               1 - (c.vector <=> CAST(:queryVector AS vector)) AS score,
+               d.filename, vector_send(c.vector) AS vector
         FROM chunks c
-        ORDER BY c.vector <-> :queryVector::vector
+        JOIN documents d ON d.id = c.document_id
+        ORDER BY c.vector <-> CAST(:queryVector AS vector)
         LIMIT :limit
         """, nativeQuery = true)
-    List<Object[]> findSimilarChunks(@Param("queryVector") String queryVector, @Param("limit") int limit);
+    List<Object[]> findSimilarChunks(@Param("queryVector") float[] queryVector, @Param("limit") int limit);
     
     @Query(value = """
         SELECT c.id, c.document_id, c.chunk_index, c.text, c.metadata,
-               1 - (c.vector <=> :queryVector::vector) AS score
+               1 - (c.vector <=> CAST(:queryVector AS vector)) AS score,
+               d.filename, vector_send(c.vector) AS vector
         FROM chunks c
+        JOIN documents d ON d.id = c.document_id
         WHERE c.document_id = :documentId
-        ORDER BY c.vector <-> :queryVector::vector
+        ORDER BY c.vector <-> CAST(:queryVector AS vector)
         LIMIT :limit
         """, nativeQuery = true)
-    List<Object[]> findSimilarChunksByDocument(@Param("queryVector") String queryVector, 
+    List<Object[]> findSimilarChunksByDocument(@Param("queryVector") float[] queryVector, 
                                                @Param("documentId") UUID documentId, 
                                                @Param("limit") int limit);
     
-    @Query("SELECT c FROM Chunk c WHERE c.text LIKE %:text%")
-    List<Chunk> findByTextContaining(@Param("text") String text);
+    /**
+     * Rows of HNSW hits. An unquantized index already holds the exact vectors, so they are not read.
+     */
+    @Query(value = """
+        SELECT c.id, c.document_id, c.chunk_index, c.text, c.metadata, d.filename
+        FROM chunks c
+        JOIN documents d ON d.id = c.document_id
+        WHERE c.id IN (:ids)
+        """, nativeQuery = true)
+    List<Object[]> findChunksByIds(@Param("ids") Collection<UUID> ids);
+    
+    /**
+     * Rows of HNSW hits like findChunksByIds, plus the full-precision vector so a quantized index can
+     * rescore them without a second round trip.
+     */
+    @Query(value = """
+        SELECT c.id, c.document_id, c.chunk_index, c.text, c.metadata, d.filename,
+               vector_send(c.vector) AS vector
+        FROM chunks c
+        JOIN documents d ON d.id = c.document_id
+        WHERE c.id IN (:ids)
+        """, nativeQuery = true)
+    List<Object[]> findChunksWithVectorsByIds(@Param("ids") Collection<UUID> ids);
+    
+    @Query(value = """
+        SELECT c.id, c.document_id, vector_send(c.vector)
+        FROM chunks c
+        WHERE c.vector IS NOT NULL AND c.id > :afterId
+        ORDER BY c.id
+        LIMIT :limit
+        """, nativeQuery = true)
+    List<Object[]> findVectorsAfter(@Param("afterId") UUID afterId, @Param("limit") int limit);
+    
+    /**
+     * Keyword search over the GIN-indexed text_tsv column. Query terms are OR-ed so long questions
+     * still match, and ts_rank_cd with normalization 1 damps long chunks like BM25 length normalization.
+     */
+    @Query(value = """
+        SELECT c.id, c.document_id, c.chunk_index, c.text, c.metadata,
+               ts_rank_cd(c.text_tsv, q.query, 1) AS score,
+               d.filename, vector_send(c.vector) AS vector
+        FROM chunks c
+        JOIN documents d ON d.id = c.document_id
+        CROSS JOIN (
+            SELECT to_tsquery('english', replace(plainto_tsquery('english', :query)::text, ' & ', ' | ')) AS query
+        ) q
+        WHERE c.text_tsv @@ q.query
+        ORDER BY score DESC
+        LIMIT :limit
+        """, nativeQuery = true)
+    List<Object[]> findKeywordMatches(@Param("query") String query, @Param("limit") int limit);
 }
@@ -6,6 +6,7 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -15,6 +16,8 @@ public interface DocumentRepository extends JpaRepository<Document, UUID> {
     
     Optional<Document> findByChecksum(String checksum);
     
+    List<Document> findByChecksumIn(Collection<String> checksums);
+    
     @Query("SELECT d FROM Document d WHERE d.filename LIKE %:filename%")
     List<Document> findByFilenameContaining(@Param("filename") String filename);
     
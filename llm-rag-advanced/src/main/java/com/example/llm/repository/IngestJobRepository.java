@@ -0,0 +1,24 @@
+package com.example.llm.repository;
+
+import com.example.llm.entity.IngestJob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface IngestJobRepository extends JpaRepository<IngestJob, UUID> {
+    
+    Optional<IngestJob> findByIdAndUserId(UUID id, UUID userId);
+    
+    List<IngestJob> findTop100ByUserIdOrderByCreatedAtDesc(UUID userId);
+    
+    List<IngestJob> findByBatchIdAndUserIdOrderByCreatedAtAsc(UUID batchId, UUID userId);
+    
+    List<IngestJob> findByStatusInOrderByCreatedAtAsc(Collection<IngestJob.Status> statuses);
+    
+    long countByUserIdAndStatusIn(UUID userId, Collection<IngestJob.Status> statuses);
+}
@@ -0,0 +1,416 @@
+package com.example.llm.service;
+
+import com.example.llm.dto.BulkIngestDTO;
+import com.example.llm.dto.BulkIngestFileDTO;
+import com.example.llm.entity.Document;
+import com.example.llm.entity.IngestJob;
+import com.example.llm.entity.User;
+import com.example.llm.repository.DocumentRepository;
+import com.example.llm.util.HashingUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.tika.Tika;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Bulk ingestion from a zip or tar stream or from a directory on the server. Every file is hashed
+ * up front (archive entries while they are staged), duplicates within the batch and against stored
+ * documents are dropped, and the remaining files become ordinary ingest jobs sharing a batch id.
+ * The job workers then extract and chunk them in parallel and feed the shared embedding batcher.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class BulkIngestService {
+    
+    private static final int CHECKSUM_QUERY_SIZE = 1000;
+    private static final int MAX_FILENAME_LENGTH = 255;
+    
+    private final IngestJobService ingestJobService;
+    private final DocumentRepository documentRepository;
+    private final ObjectMapper objectMapper;
+    private final Tika tika = new Tika();
+    
+    @Value("${app.ingest.stagingDir:${java.io.tmpdir}/llm-rag-ingest}")
+    private String stagingDir;
+    
+    @Value("${app.ingest.bulk.maxFiles:10000}")
+    private int maxFiles;
+    
+    @Value("${app.ingest.bulk.maxFileSize:50MB}")
+    private DataSize maxFileSize;
+    
+    @Value("${app.ingest.bulk.maxTotalSize:5GB}")
+    private DataSize maxTotalSize;
+    
+    @Value("${app.ingest.bulk.allowedRoots:}")
+    private List<String> allowedRoots;
+    
+    /**
+     * Reads a zip or tar archive, optionally gzip/bzip2/xz compressed, entry by entry from the stream.
+     */
+    public BulkIngestDTO submitArchive(InputStream body, List<String> tags, User user) throws IOException {
+        int capacity = remainingCapacity(user);
+        Path directory = Paths.get(stagingDir);
+        Files.createDirectories(directory);
+        
+        List<BulkFile> files = new ArrayList<>();
+        int accepted = 0;
+        long totalSize = 0;
+        
+        try (ArchiveInputStream<? extends ArchiveEntry> archive = openArchive(body)) {
+            ArchiveEntry entry;
+            while ((entry = archive.getNextEntry()) != null) {
+                String name = normalizeEntryName(entry.getName());
+                if (entry.isDirectory() || name.isEmpty() || isHidden(name)) {
+                    continue;
+                }
+                
+                BulkFile file = new BulkFile(name);
+                files.add(file);
+                
+                if (!archive.canReadEntryData(entry)) {
+                    file.skip("Entry is encrypted or uses an unsupported compression method");
+                } else if (accepted >= capacity) {
+                    file.skip("File limit of " + maxFiles + " reached");
+                } else if (entry.getSize() > maxFileSize.toBytes()) {
+                    file.skip("File exceeds " + maxFileSize);
+                } else if (totalSize >= maxTotalSize.toBytes()) {
+                    file.skip("Batch exceeds " + maxTotalSize);
+                } else {
+                    long limit = Math.min(maxFileSize.toBytes(), maxTotalSize.toBytes() - totalSize);
+                    stage(archive, directory.resolve(UUID.randomUUID() + ".upload"), file, limit);
+                    if (file.status == null) {
+                        accepted++;
+                        totalSize += file.size;
+                    } else if (limit < maxFileSize.toBytes()) {
+                        file.skip("Batch exceeds " + maxTotalSize);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            files.forEach(this::deleteStagedFile);
+            throw e;
+        }
+        
+        log.info("Staged {} of {} archive entries ({} bytes) for user: {}", accepted, files.size(), totalSize, user.getUsername());
+        return submit(files, tags, user);
+    }
+    
+    /**
+     * Ingests the files below a directory on the server in place. Only directories under one of
+     * the configured allowed roots are accepted; symbolic links and hidden files are skipped.
+     */
+    public BulkIngestDTO submitDirectory(String path, List<String> tags, User user) throws IOException {
+        Path root = resolveAllowedDirectory(path);
+        int capacity = remainingCapacity(user);
+        
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(file -> Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS))
+                    .filter(file -> !isHidden(toEntryName(root.relativize(file))))
+                    .sorted()
+                    .collect(java.util.stream.Collectors.toList());
+        }
+        
+        List<BulkFile> files = new ArrayList<>(paths.size());
+        List<BulkFile> candidates = new ArrayList<>();
+        for (Path source : paths) {
+            BulkFile file = new BulkFile(toEntryName(root.relativize(source)));
+            file.path = source;
+            file.size = Files.size(source);
+            files.add(file);
+            
+            if (candidates.size() >= capacity) {
+                file.skip("File limit of " + maxFiles + " reached");
+            } else if (file.size == 0) {
+                file.skip("File is empty");
+            } else if (file.size > maxFileSize.toBytes()) {
+                file.skip("File exceeds " + maxFileSize);
+            } else {
+                candidates.add(file);
+            }
+        }
+        
+        // Hashing is I/O and CPU bound per file, so spread it across cores
+        candidates.parallelStream().forEach(file -> {
+            try (InputStream input = Files.newInputStream(file.path)) {
+                file.checksum = HashingUtils.calculateSHA256(input);
+            } catch (IOException e) {
+                file.skip("Failed to read file: " + e.getMessage());
+            }
+        });
+        
+        log.info("Found {} files in {} for user: {}", files.size(), root, user.getUsername());
+        return submit(files, tags, user);
+    }
+    
+    private BulkIngestDTO submit(List<BulkFile> files, List<String> tags, User user) throws IOException {
+        UUID batchId = UUID.randomUUID();
+        
+        // The first file with given content wins, later copies in the same batch are duplicates of it
+        Map<String, BulkFile> byChecksum = new LinkedHashMap<>();
+        for (BulkFile file : files) {
+            if (file.status != null) {
+                continue;
+            }
+            BulkFile first = byChecksum.putIfAbsent(file.checksum, file);
+            if (first != null) {
+                file.duplicate(null, "Same content as " + first.filename);
+            }
+        }
+        
+        Map<String, UUID> existingDocuments = findDocumentIds(byChecksum.keySet());
+        String tagsJson = objectMapper.writeValueAsString(tags != null ? tags : List.of());
+        List<BulkFile> queued = new ArrayList<>();
+        List<IngestJob> jobs = new ArrayList<>();
+        
+        for (BulkFile file : byChecksum.values()) {
+            UUID documentId = existingDocuments.get(file.checksum);
+            if (documentId != null) {
+                file.duplicate(documentId, "Document already exists");
+                continue;
+            }
+            
+            IngestJob job = new IngestJob(user.getId(), file.filename, tika.detect(file.filename), file.size, file.path.toString());
+            job.setBatchId(batchId);
+            job.setDeleteStaged(file.staged);
+            job.setTags(tagsJson);
+            jobs.add(job);
+            queued.add(file);
+        }
+        
+        List<IngestJob> savedJobs = ingestJobService.submitAll(jobs);
+        for (int i = 0; i < queued.size(); i++) {
+            queued.get(i).queue(savedJobs.get(i).getId());
+        }
+        files.stream()
+                .filter(file -> !"QUEUED".equals(file.status))
+                .forEach(this::deleteStagedFile);
+        
+        List<BulkIngestFileDTO> results = files.stream()
+                .map(file -> new BulkIngestFileDTO(file.filename, file.status, file.size, file.jobId, file.documentId, file.reason))
+                .collect(java.util.stream.Collectors.toList());
+        int duplicates = (int) files.stream().filter(file -> "DUPLICATE".equals(file.status)).count();
+        int skipped = files.size() - queued.size() - duplicates;
+        
+        log.info("Bulk ingest {} for user: {} queued {} files, {} duplicates, {} skipped",
+                batchId, user.getUsername(), queued.size(), duplicates, skipped);
+        return new BulkIngestDTO(batchId, queued.size(), duplicates, skipped, results);
+    }
+    
+    private int remainingCapacity(User user) {
+        long active = ingestJobService.countActiveJobs(user);
+        if (active >= maxFiles) {
+            throw new IllegalStateException("Too many ingest jobs in progress for user: " + user.getUsername());
+        }
+        return (int) (maxFiles - active);
+    }
+    
+    private Map<String, UUID> findDocumentIds(Collection<String> checksums) {
+        Map<String, UUID> documentIds = new HashMap<>();
+        List<String> remaining = new ArrayList<>(checksums);
+        for (int start = 0; start < remaining.size(); start += CHECKSUM_QUERY_SIZE) {
+            List<String> slice = remaining.subList(start, Math.min(remaining.size(), start + CHECKSUM_QUERY_SIZE));
+            for (Document document : documentRepository.findByChecksumIn(slice)) {
+                documentIds.putIfAbsent(document.getChecksum(), document.getId());
+            }
+        }
+        return documentIds;
+    }
+    
+    private ArchiveInputStream<? extends ArchiveEntry> openArchive(InputStream body) throws IOException {
+        InputStream input = new BufferedInputStream(body);
+        try {
+            input = new BufferedInputStream(new CompressorStreamFactory().createCompressorInputStream(input));
+        } catch (CompressorException e) {
+            // Not compressed, the stream has been reset
+        }
+        
+        String format;
+        try {
+            format = ArchiveStreamFactory.detect(input);
+        } catch (ArchiveException e) {
+            throw new IllegalArgumentException("Request body is not a zip or tar archive");
+        }
+        
+        if (ArchiveStreamFactory.ZIP.equals(format)) {
+            // Also accept stored entries followed by a data descriptor, as written by some zip tools
+            return new ZipArchiveInputStream(input, "UTF-8", true, true);
+        }
+        if (ArchiveStreamFactory.TAR.equals(format)) {
+            return new TarArchiveInputStream(input);
+        }
+        throw new IllegalArgumentException("Unsupported archive format: " + format);
+    }
+    
+    /**
+     * Copies the current entry to the staging file while hashing it. Entries over the limit are
+     * skipped; the rest of their data is discarded by the archive stream on the next entry.
+     */
+    private void stage(InputStream entryData, Path target, BulkFile file, long limit) throws IOException {
+        file.path = target;
+        file.staged = true;
+        
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 algorithm not available", e);
+        }
+        
+        // The entry stream belongs to the archive and must stay open
+        InputStream input = new DigestInputStream(entryData, digest);
+        long size = 0;
+        try (OutputStream output = Files.newOutputStream(target)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                size += read;
+                if (size > limit) {
+                    file.skip("File exceeds " + maxFileSize);
+                    return;
+                }
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            file.size = size;
+        }
+        
+        if (size == 0) {
+            file.skip("File is empty");
+            return;
+        }
+        file.checksum = HexFormat.of().formatHex(digest.digest());
+    }
+    
+    private Path resolveAllowedDirectory(String path) throws IOException {
+        if (path == null || path.isBlank()) {
+            throw new IllegalArgumentException("Directory path is required");
+        }
+        if (allowedRoots.stream().allMatch(String::isBlank)) {
+            throw new IllegalArgumentException("Directory ingestion is disabled");
+        }
+        
+        // Resolve links and .. before comparing, so nothing outside the roots can be reached
+        Path directory;
+        try {
+            directory = Paths.get(path).toRealPath();
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("Directory not found: " + path);
+        }
+        if (!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException("Not a directory: " + path);
+        }
+        
+        for (String allowedRoot : allowedRoots) {
+            if (allowedRoot.isBlank()) {
+                continue;
+            }
+            try {
+                if (directory.startsWith(Paths.get(allowedRoot.trim()).toRealPath())) {
+                    return directory;
+                }
+            } catch (NoSuchFileException e) {
+                log.warn("Allowed ingest root does not exist: {}", allowedRoot);
+            }
+        }
+        throw new IllegalArgumentException("Directory is outside the allowed roots: " + path);
+    }
+    
+    private void deleteStagedFile(BulkFile file) {
+        if (!file.staged || file.path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file.path);
+        } catch (IOException e) {
+            log.warn("Failed to delete staged upload: {}", file.path, e);
+        }
+    }
+    
+    private static String toEntryName(Path relativePath) {
+        StringJoiner name = new StringJoiner("/");
+        relativePath.forEach(part -> name.add(part.toString()));
+        return name.toString();
+    }
+    
+    // Tar tools commonly prefix entries with ./
+    private static String normalizeEntryName(String entryName) {
+        String name = entryName.replace('\\', '/');
+        while (name.startsWith("./") || name.startsWith("/")) {
+            name = name.substring(name.startsWith("/") ? 1 : 2);
+        }
+        return name;
+    }
+    
+    // Dot files and folders, and the resource forks macOS adds to zip files
+    private static boolean isHidden(String entryName) {
+        for (String part : entryName.split("/")) {
+            if (part.startsWith(".") || part.equals("__MACOSX")) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static class BulkFile {
+        
+        private final String filename;
+        private String status;
+        private Path path;
+        private boolean staged;
+        private long size;
+        private String checksum;
+        private UUID jobId;
+        private UUID documentId;
+        private String reason;
+        
+        private BulkFile(String name) {
+            // Keep the end of long archive paths, it carries the file name and extension
+            this.filename = name.length() > MAX_FILENAME_LENGTH ? name.substring(name.length() - MAX_FILENAME_LENGTH) : name;
+        }
+        
+        void queue(UUID jobId) {
+            this.status = "QUEUED";
+            this.jobId = jobId;
+        }
+        
+        void duplicate(UUID documentId, String reason) {
+            this.status = "DUPLICATE";
+            this.documentId = documentId;
+            this.reason = reason;
+        }
+        
+        void skip(String reason) {
+            this.status = "SKIPPED";
+            this.reason = reason;
+        }
+    }
+}
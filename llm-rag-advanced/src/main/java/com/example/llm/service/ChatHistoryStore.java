@@ -0,0 +1,319 @@
+package com.example.llm.service;
+
+import com.example.llm.dto.ChatMessageDTO;
+import com.example.llm.entity.ChatMessage;
+import com.example.llm.repository.ChatMessageBatchRepository;
+import com.example.llm.repository.ChatMessageRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Recent chat messages per session, kept in memory with write-behind persistence.
+ *
+ * Appended messages go to the session's window and to a pending queue that is written with one JDBC
+ * batch when the turn completes (flush) or on the flush timer, so a turn costs one database write.
+ * Reads are served from the window; only a session not seen recently is loaded from the database.
+ *
+ * With redisEnabled the window lives in a Redis list instead of on the node, so every node sees the
+ * messages appended by the others. Messages are given their id and creation time on append, the times
+ * strictly increasing, so the rows keep the order in which they were appended. Methods block and are
+ * meant to run on the bounded elastic scheduler.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ChatHistoryStore {
+    
+    private static final String KEY_PREFIX = "chat:history:";
+    
+    private final ChatMessageRepository chatMessageRepository;
+    private final ChatMessageBatchRepository chatMessageBatchRepository;
+    private final RedisTemplate<String, String> redisTemplate;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${app.chat.history.windowSize:20}")
+    private int windowSize;
+    
+    @Value("${app.chat.history.maxSessions:10000}")
+    private long maxSessions;
+    
+    @Value("${app.chat.history.idleMinutes:30}")
+    private long idleMinutes;
+    
+    @Value("${app.chat.history.flushIntervalMillis:1000}")
+    private long flushIntervalMillis;
+    
+    @Value("${app.chat.history.redisEnabled:false}")
+    private boolean redisEnabled;
+    
+    @Value("${app.chat.history.redisTtlMinutes:60}")
+    private long redisTtlMinutes;
+    
+    private final Map<UUID, List<ChatMessage>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong lastTimestampMicros = new AtomicLong();
+    private Cache<UUID, SessionWindow> windows;
+    private Disposable flushTask;
+    private Counter localHits;
+    private Counter redisHits;
+    private Counter databaseLoads;
+    
+    @PostConstruct
+    public void init() {
+        windows = Caffeine.newBuilder()
+                .maximumSize(maxSessions)
+                .expireAfterAccess(Duration.ofMinutes(idleMinutes))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, windows, "chatHistory");
+        
+        localHits = meterRegistry.counter("chat.history", "source", "local");
+        redisHits = meterRegistry.counter("chat.history", "source", "redis");
+        databaseLoads = meterRegistry.counter("chat.history", "source", "database");
+        meterRegistry.gaugeMapSize("chat.history.pending.sessions", Tags.empty(), pending);
+        
+        flushTask = Schedulers.boundedElastic().schedulePeriodically(this::flushAll,
+                flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    public void stop() {
+        flushTask.dispose();
+        flushAll();
+    }
+    
+    /**
+     * The session's last messages, oldest first.
+     */
+    public List<ChatMessageDTO> recent(UUID sessionId, int limit) {
+        if (limit <= windowSize) {
+            List<ChatMessageDTO> cached = redisEnabled ? readRedis(sessionId, limit) : readLocal(sessionId, limit);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        
+        // Unflushed messages must be in the database before it is read
+        flush(sessionId);
+        databaseLoads.increment();
+        List<ChatMessageDTO> loaded = chatMessageRepository.findRecentMessagesBySessionId(sessionId, Math.max(limit, windowSize))
+                .stream()
+                .map(ChatHistoryStore::toDto)
+                .collect(java.util.stream.Collectors.toList());
+        Collections.reverse(loaded);
+        
+        if (redisEnabled) {
+            writeRedis(sessionId, loaded);
+        } else {
+            SessionWindow window = new SessionWindow(windowSize);
+            loaded.forEach(window::add);
+            windows.put(sessionId, window);
+        }
+        return loaded.subList(Math.max(0, loaded.size() - limit), loaded.size());
+    }
+    
+    /**
+     * Adds a message to the session's window and queues it for the next flush.
+     */
+    public void append(UUID sessionId, String role, String content, int tokensIn, int tokensOut) {
+        ChatMessage message = new ChatMessage(sessionId, role, content, tokensIn, tokensOut);
+        message.setId(UUID.randomUUID());
+        message.setCreatedAt(nextTimestamp());
+        
+        pending.compute(sessionId, (id, queued) -> {
+            List<ChatMessage> messages = queued != null ? queued : new ArrayList<>();
+            messages.add(message);
+            return messages;
+        });
+        
+        ChatMessageDTO dto = toDto(message);
+        if (redisEnabled) {
+            appendRedis(sessionId, dto);
+        } else {
+            // A session without a window is loaded from the database on its next read
+            SessionWindow window = windows.getIfPresent(sessionId);
+            if (window != null) {
+                window.add(dto);
+            }
+        }
+    }
+    
+    /**
+     * Writes the session's queued messages in one batch.
+     */
+    public void flush(UUID sessionId) {
+        List<ChatMessage> messages = pending.remove(sessionId);
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+        
+        try {
+            chatMessageBatchRepository.insertAll(messages);
+            meterRegistry.counter("chat.history.flushed").increment(messages.size());
+        } catch (DataIntegrityViolationException e) {
+            // The session was deleted meanwhile, retrying cannot succeed
+            log.warn("Dropping {} chat messages of session {}: {}", messages.size(), sessionId, e.getMessage());
+        } catch (Exception e) {
+            // Put them back ahead of anything appended since, the timer retries
+            pending.merge(sessionId, messages, (newer, failed) -> {
+                List<ChatMessage> merged = new ArrayList<>(failed);
+                merged.addAll(newer);
+                return merged;
+            });
+            log.error("Failed to persist {} chat messages of session {}", messages.size(), sessionId, e);
+        }
+    }
+    
+    public void flushAll() {
+        new ArrayList<>(pending.keySet()).forEach(this::flush);
+    }
+    
+    private List<ChatMessageDTO> readLocal(UUID sessionId, int limit) {
+        SessionWindow window = windows.getIfPresent(sessionId);
+        if (window == null) {
+            return null;
+        }
+        localHits.increment();
+        return window.last(limit);
+    }
+    
+    private List<ChatMessageDTO> readRedis(UUID sessionId, int limit) {
+        try {
+            List<String> values = redisTemplate.opsForList().range(KEY_PREFIX + sessionId, -limit, -1);
+            if (values == null || values.isEmpty()) {
+                return null;
+            }
+            
+            List<ChatMessageDTO> messages = new ArrayList<>(values.size());
+            for (String value : values) {
+                messages.add(objectMapper.readValue(value, ChatMessageDTO.class));
+            }
+            redisHits.increment();
+            return messages;
+        } catch (Exception e) {
+            log.warn("Redis chat history lookup failed: {}", e.getMessage());
+            return null;
+        }
+    }
+    
+    private void writeRedis(UUID sessionId, List<ChatMessageDTO> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        
+        try {
+            List<String> values = new ArrayList<>(messages.size());
+            for (ChatMessageDTO message : messages) {
+                values.add(objectMapper.writeValueAsString(message));
+            }
+            String key = KEY_PREFIX + sessionId;
+            pipelined(operations -> {
+                operations.delete(key);
+                operations.opsForList().rightPushAll(key, values);
+                operations.opsForList().trim(key, -windowSize, -1);
+                operations.expire(key, Duration.ofMinutes(redisTtlMinutes));
+            });
+        } catch (Exception e) {
+            log.warn("Redis chat history write failed: {}", e.getMessage());
+        }
+    }
+    
+    private void appendRedis(UUID sessionId, ChatMessageDTO message) {
+        try {
+            String value = objectMapper.writeValueAsString(message);
+            String key = KEY_PREFIX + sessionId;
+            // Only extends a window that exists, an expired one is loaded whole from the database
+            pipelined(operations -> {
+                operations.opsForList().rightPushIfPresent(key, value);
+                operations.opsForList().trim(key, -windowSize, -1);
+                operations.expire(key, Duration.ofMinutes(redisTtlMinutes));
+            });
+        } catch (Exception e) {
+            log.warn("Redis chat history write failed: {}", e.getMessage());
+        }
+    }
+    
+    private void pipelined(Consumer<RedisOperations<String, String>> commands) {
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                commands.accept((RedisOperations<String, String>) operations);
+                return null;
+            }
+        });
+    }
+    
+    private OffsetDateTime nextTimestamp() {
+        Instant now = Instant.now();
+        long nowMicros = TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000;
+        long micros = lastTimestampMicros.accumulateAndGet(nowMicros, (last, current) -> Math.max(last + 1, current));
+        return OffsetDateTime.ofInstant(Instant.EPOCH.plus(micros, ChronoUnit.MICROS), ZoneOffset.UTC);
+    }
+    
+    private static ChatMessageDTO toDto(ChatMessage message) {
+        return new ChatMessageDTO(
+                message.getId(),
+                message.getSessionId(),
+                message.getRole(),
+                message.getContent(),
+                message.getTokensIn(),
+                message.getTokensOut(),
+                message.getCreatedAt()
+        );
+    }
+    
+    /**
+     * Ring buffer of a session's last messages.
+     */
+    private static class SessionWindow {
+        
+        private final ArrayDeque<ChatMessageDTO> messages;
+        private final int capacity;
+        
+        private SessionWindow(int capacity) {
+            this.capacity = capacity;
+            this.messages = new ArrayDeque<>(capacity);
+        }
+        
+        private synchronized void add(ChatMessageDTO message) {
+            if (messages.size() >= capacity) {
+                messages.pollFirst();
+            }
+            messages.addLast(message);
+        }
+        
+        private synchronized List<ChatMessageDTO> last(int limit) {
+            List<ChatMessageDTO> all = new ArrayList<>(messages);
+            return new ArrayList<>(all.subList(Math.max(0, all.size() - limit), all.size()));
+        }
+    }
+}
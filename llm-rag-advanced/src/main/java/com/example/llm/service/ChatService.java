@@ -4,13 +4,12 @@ import com.example.llm.dto.ChatMessageDTO;
 import com.example.llm.dto.ChatRequest;
 import com.example.llm.dto.ChatResponse;
 import com.example.llm.dto.ChatSessionDTO;
-import com.example.llm.entity.ChatMessage;
 import com.example.llm.entity.ChatSession;
 import com.example.llm.entity.User;
 import com.example.llm.llm.*;
 import com.example.llm.rag.PromptBuilder;
+import com.example.llm.rag.ResponseCache;
 import com.example.llm.rag.RetrieverService;
-import com.example.llm.repository.ChatMessageRepository;
 import com.example.llm.repository.ChatSessionRepository;
 import com.example.llm.tools.ToolRegistry;
 import lombok.RequiredArgsConstructor;
@@ -18,43 +17,102 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuples;
 
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class ChatService {
     
+    // Between a whitespace run and the next word, so each delta is a word with its trailing whitespace
+    private static final Pattern REPLAY_DELTA_BOUNDARY = Pattern.compile("(?<=\\s)(?=\\S)");
+    
     private final LlmProvider llmProvider;
     private final RetrieverService retrieverService;
     private final PromptBuilder promptBuilder;
+    private final ResponseCache responseCache;
     private final ToolRegistry toolRegistry;
+    private final ToolCallParser toolCallParser;
+    private final Tokenizer tokenizer;
     private final ChatSessionRepository chatSessionRepository;
-    private final ChatMessageRepository chatMessageRepository;
+    private final ChatHistoryStore chatHistoryStore;
+    private final ConversationSummarizer conversationSummarizer;
     
     @Value("${app.tools.maxToolCalls:3}")
     private int maxToolCalls;
     
+    /**
+     * Streams the answer as delta, tool_call, tool_result and finally done events. Nothing blocks the
+     * subscribing thread: repository and Redis calls run on the bounded elastic scheduler, and provider
+     * and tool calls are chained on their completion.
+     */
     public Flux<ChatResponse> chatStream(ChatRequest request, User user) {
         log.debug("Starting chat stream for user: {} with message: {}", user.getUsername(), request.getMessage());
         
-        return Flux.create(sink -> {
-            try {
-                UUID sessionId = request.getSessionId() != null ? request.getSessionId() : createNewSession(user);
-                
-                // Retrieve context if RAG is enabled
-                List<RetrieverService.ContextSnippet> contextSnippets = new ArrayList<>();
-                if (request.isUseRag()) {
-                    contextSnippets = retrieverService.retrieveContext(request.getMessage(), request.getTopK());
-                }
-                
-                // Get chat history
-                List<ChatMessageDTO> history = getRecentHistory(sessionId, 10);
+        return prepareTurn(request, user)
+                .flatMapMany(turn -> turn.getCachedResponse() != null ? replayResponse(turn) : streamResponse(turn))
+                .onErrorResume(error -> {
+                    log.error("Error in chat stream", error);
+                    return Flux.just(new ChatResponse("error", null, null, null, null, error.getMessage()));
+                });
+    }
+    
+    public Mono<ChatResponse> chatNonStream(ChatRequest request, User user) {
+        log.debug("Starting non-streaming chat for user: {} with message: {}", user.getUsername(), request.getMessage());
+        
+        return prepareTurn(request, user)
+                .flatMap(turn -> {
+                    // Only the final done event is returned, tool events are for streaming clients
+                    if (turn.getCachedResponse() != null) {
+                        // An equivalent prompt was answered before; only answers without tool calls are cached
+                        return completeTurn(turn, turn.getCachedResponse(), List.of()).last();
+                    }
+                    return llmProvider.chat(turn.getPrompt())
+                            .flatMap(answer -> {
+                                List<ToolCallParser.ToolCall> toolCalls = toolCallParser.parseToolCalls(answer);
+                                return cacheResponse(turn, answer, toolCalls)
+                                        .then(completeTurn(turn, answer, toolCalls).last());
+                            });
+                })
+                .onErrorResume(error -> {
+                    log.error("Error in non-streaming chat", error);
+                    return Mono.just(new ChatResponse("error", null, null, null, null, error.getMessage()));
+                });
+    }
+    
+    /**
+     * Resolves the session, loads retrieval context and history concurrently, builds the prompt, saves
+     * the user message and looks the prompt up in the answer cache. History already folded into the
+     * session summary is left out, the summary is sent instead.
+     */
+    private Mono<ChatTurn> prepareTurn(ChatRequest request, User user) {
+        Mono<UUID> session = request.getSessionId() != null
+                ? Mono.just(request.getSessionId())
+                : blockingCall(() -> createNewSession(user));
+        
+        return session.flatMap(sessionId -> {
+            // Retrieve context if RAG is enabled
+            Mono<List<RetrieverService.ContextSnippet>> context = request.isUseRag()
+                    ? retrieverService.retrieveContext(request.getMessage(), request.getTopK())
+                    : Mono.just(new ArrayList<>());
+            
+            // Get chat history and the summary of the messages before it
+            Mono<List<ChatMessageDTO>> history = blockingCall(() -> chatHistoryStore.recent(sessionId, 10));
+            Mono<ConversationSummarizer.SessionSummary> summary = blockingCall(() -> conversationSummarizer.get(sessionId));
+            
+            return Mono.zip(context, history, summary).flatMap(loaded -> {
+                List<RetrieverService.ContextSnippet> contextSnippets = loaded.getT1();
+                List<ChatMessageDTO> recentHistory = loaded.getT3().after(loaded.getT2());
+                conversationSummarizer.summarizeIfNeeded(sessionId, recentHistory);
                 
                 // Build tools list
                 List<ToolDefinition> tools = buildToolsList(request.getTools());
@@ -63,147 +121,151 @@ public class ChatService {
                 ChatPrompt prompt = promptBuilder.buildPrompt(
                         request.getMessage(),
                         contextSnippets,
-                        history,
+                        loaded.getT3().getSummary(),
+                        recentHistory,
                         tools
                 );
                 
-                // Save user message
-                saveMessage(sessionId, "user", request.getMessage(), 0, 0);
-                
-                // Stream response
-                streamResponse(prompt, sessionId, sink, 0);
-                
-            } catch (Exception e) {
-                log.error("Error in chat stream", e);
-                sink.next(new ChatResponse("error", null, null, null, null, e.getMessage()));
-                sink.complete();
-            }
+                // Save user message, then look for the answer to an equivalent prompt
+                return blockingRun(() -> chatHistoryStore.append(sessionId, "user", request.getMessage(), 0, 0))
+                        .then(responseCache.key(request.getMessage(), contextSnippets, prompt)
+                                .flatMap(cacheKey -> blockingCall(() -> responseCache.get(cacheKey))
+                                        .map(cached -> new ChatTurn(sessionId, prompt, cacheKey, cached))
+                                        .defaultIfEmpty(new ChatTurn(sessionId, prompt, cacheKey, null))))
+                        .defaultIfEmpty(new ChatTurn(sessionId, prompt, null, null));
+            });
         });
     }
     
-    public ChatResponse chatNonStream(ChatRequest request, User user) {
-        log.debug("Starting non-streaming chat for user: {} with message: {}", user.getUsername(), request.getMessage());
-        
-        try {
-            UUID sessionId = request.getSessionId() != null ? request.getSessionId() : createNewSession(user);
-            
-            // Retrieve context if RAG is enabled
-            List<RetrieverService.ContextSnippet> contextSnippets = new ArrayList<>();
-            if (request.isUseRag()) {
-                contextSnippets = retrieverService.retrieveContext(request.getMessage(), request.getTopK());
-            }
-            
-            // Get chat history
-            List<ChatMessageDTO> history = getRecentHistory(sessionId, 10);
-            
-            // Build tools list
-            List<ToolDefinition> tools = buildToolsList(request.getTools());
-            
-            // Build prompt
-            ChatPrompt prompt = promptBuilder.buildPrompt(
-                    request.getMessage(),
-                    contextSnippets,
-                    history,
-                    tools
-            );
+    private Flux<ChatResponse> streamResponse(ChatTurn turn) {
+        return Flux.defer(() -> {
+            ToolCallParser.StreamingDetector detector = toolCallParser.streamingDetector();
+            StringBuilder fullResponse = new StringBuilder();
             
-            // Save user message
-            saveMessage(sessionId, "user", request.getMessage(), 0, 0);
+            Flux<ChatResponse> deltas = llmProvider.chatStream(turn.getPrompt())
+                    .flatMapMany(tokens -> tokens)
+                    .<ChatResponse>handle((token, sink) -> {
+                        fullResponse.append(token);
+                        
+                        // Forward text as soon as it arrives, tool call markup is held back by the detector
+                        String visible = detector.accept(token);
+                        if (!visible.isEmpty()) {
+                            sink.next(new ChatResponse("delta", visible, null, null, null, null));
+                        }
+                    });
             
-            // Get complete response
-            String response = llmProvider.chat(prompt).block();
-            
-            // Handle tool calls if any
-            response = handleToolCalls(response, sessionId, prompt);
-            
-            // Save assistant message
-            saveMessage(sessionId, "assistant", response, estimateTokens(prompt), estimateTokens(response));
-            
-            return new ChatResponse("done", null, response, null, null, null);
-            
-        } catch (Exception e) {
-            log.error("Error in non-streaming chat", e);
-            return new ChatResponse("error", null, null, null, null, e.getMessage());
-        }
+            return deltas.concatWith(Flux.defer(() -> {
+                String remaining = detector.flush();
+                String response = fullResponse.toString();
+                Flux<ChatResponse> flushed = remaining.isEmpty()
+                        ? Flux.empty()
+                        : Flux.just(new ChatResponse("delta", remaining, null, null, null, null));
+                
+                // The detector has parsed every tool call by now, so the response is not parsed again
+                List<ToolCallParser.ToolCall> toolCalls = detector.getToolCalls();
+                return flushed.concatWith(cacheResponse(turn, response, toolCalls)
+                        .thenMany(completeTurn(turn, response, toolCalls)));
+            }));
+        });
     }
     
-    private void streamResponse(ChatPrompt prompt, UUID sessionId, reactor.core.publisher.FluxSink<ChatResponse> sink, int toolCallCount) {
-        llmProvider.chatStream(prompt)
-                .flatMapMany(Flux::fromIterable)
-                .doOnNext(token -> sink.next(new ChatResponse("delta", token, null, null, null, null)))
-                .collectList()
-                .map(tokens -> String.join("", tokens))
-                .doOnNext(response -> {
-                    // Handle tool calls
-                    String finalResponse = handleToolCalls(response, sessionId, prompt, sink, toolCallCount);
-                    
-                    // Save assistant message
-                    saveMessage(sessionId, "assistant", finalResponse, estimateTokens(prompt), estimateTokens(finalResponse));
+    /**
+     * Emits a cached answer word by word as delta events, so streaming clients see the same protocol.
+     */
+    private Flux<ChatResponse> replayResponse(ChatTurn turn) {
+        return Flux.fromArray(REPLAY_DELTA_BOUNDARY.split(turn.getCachedResponse()))
+                .map(delta -> new ChatResponse("delta", delta, null, null, null, null))
+                // Only answers without tool calls are cached
+                .concatWith(completeTurn(turn, turn.getCachedResponse(), List.of()));
+    }
+    
+    /**
+     * Runs the tool calls in the response, saves the assistant message and ends with the done event.
+     */
+    private Flux<ChatResponse> completeTurn(ChatTurn turn, String response, List<ToolCallParser.ToolCall> toolCalls) {
+        StringBuilder finalResponse = new StringBuilder(response);
+        
+        return handleToolCalls(response, toolCalls, turn.getSessionId(), turn.getPrompt(), 0, finalResponse)
+                .concatWith(Mono.defer(() -> {
+                    String answer = finalResponse.toString();
                     
-                    sink.next(new ChatResponse("done", null, finalResponse, null, null, null));
-                    sink.complete();
-                })
-                .doOnError(error -> {
-                    log.error("Error in stream response", error);
-                    sink.next(new ChatResponse("error", null, null, null, null, error.getMessage()));
-                    sink.complete();
-                })
-                .subscribe();
+                    // Save assistant message, then write the whole turn in one batch
+                    return blockingRun(() -> {
+                                chatHistoryStore.append(turn.getSessionId(), "assistant", answer,
+                                        promptBuilder.countPromptTokens(turn.getPrompt()), countTokens(answer));
+                                chatHistoryStore.flush(turn.getSessionId());
+                            })
+                            .thenReturn(new ChatResponse("done", null, answer, null, null, null));
+                }));
     }
     
-    private String handleToolCalls(String response, UUID sessionId, ChatPrompt prompt) {
-        return handleToolCalls(response, sessionId, prompt, null, 0);
+    // Answers that called tools depend on the tool results, so only plain answers are cached
+    private Mono<Void> cacheResponse(ChatTurn turn, String response, List<ToolCallParser.ToolCall> toolCalls) {
+        if (turn.getCacheKey() == null || !toolCalls.isEmpty()) {
+            return Mono.empty();
+        }
+        return blockingRun(() -> responseCache.put(turn.getCacheKey(), response));
     }
     
-    private String handleToolCalls(String response, UUID sessionId, ChatPrompt prompt, 
-                                 reactor.core.publisher.FluxSink<ChatResponse> sink, int toolCallCount) {
-        List<ToolCallParser.ToolCall> toolCalls = new ToolCallParser().parseToolCalls(response);
-        
+    /**
+     * Runs all tool calls in the response concurrently, emitting a tool_call event for each and then
+     * their tool_result events in call order, and continues the answer in one turn carrying every
+     * result. The continuation is appended to finalResponse and checked for further tool calls up to
+     * maxToolCalls rounds.
+     */
+    private Flux<ChatResponse> handleToolCalls(String response, List<ToolCallParser.ToolCall> toolCalls, UUID sessionId,
+                                               ChatPrompt prompt, int toolCallCount, StringBuilder finalResponse) {
         if (toolCalls.isEmpty() || toolCallCount >= maxToolCalls) {
-            return response;
+            return Flux.empty();
         }
         
-        StringBuilder finalResponse = new StringBuilder(response);
-        
-        for (ToolCallParser.ToolCall toolCall : toolCalls) {
-            if (sink != null) {
-                sink.next(new ChatResponse("tool_call", null, null, toolCall.getName(), toolCall.getArgs(), null));
-            }
-            
-            CompletableFuture<String> toolResult = toolRegistry.invokeTool(toolCall.getName(), toolCall.getArgs());
-            String result = toolResult.join();
+        return Flux.defer(() -> {
+            StringBuilder continuationPrompt = new StringBuilder(response);
             
-            if (sink != null) {
-                sink.next(new ChatResponse("tool_result", null, result, toolCall.getName(), null, null));
-            }
-            
-            // Save tool call and result
-            saveMessage(sessionId, "tool", toolCall.getName() + ": " + toolCall.getArgs(), 0, 0);
-            saveMessage(sessionId, "tool", result, 0, 0);
+            Flux<ChatResponse> calls = Flux.fromIterable(toolCalls)
+                    .map(toolCall -> new ChatResponse("tool_call", null, null, toolCall.getName(), toolCall.getArgs(), null));
             
-            // Continue generation with tool result
-            String continuationPrompt = response + "\n\nTool result: " + result + "\n\nPlease continue your response:";
-            ChatPrompt continuationPromptObj = new ChatPrompt(
-                    prompt.getSystemPrompt(),
-                    continuationPrompt,
-                    prompt.getContext(),
-                    prompt.getHistory(),
-                    prompt.getTools(),
-                    prompt.getTemperature(),
-                    prompt.getMaxTokens()
-            );
+            // Every invocation is subscribed at once and runs on the tool executor, results keep call order
+            Flux<ChatResponse> results = Flux.fromIterable(toolCalls)
+                    .flatMapSequential(toolCall -> Mono.fromFuture(() -> toolRegistry.invokeTool(toolCall.getName(), toolCall.getArgs()))
+                            .map(result -> Tuples.of(toolCall, result)))
+                    .concatMap(call -> {
+                        ToolCallParser.ToolCall toolCall = call.getT1();
+                        String result = call.getT2();
+                        continuationPrompt.append("\n\nTool result (").append(toolCall.getName()).append("): ").append(result);
+                        
+                        // Save tool call and result
+                        return blockingRun(() -> {
+                            chatHistoryStore.append(sessionId, "tool", toolCall.getName() + ": " + toolCall.getArgs(), 0, 0);
+                            chatHistoryStore.append(sessionId, "tool", result, 0, 0);
+                        }).thenReturn(new ChatResponse("tool_result", null, result, toolCall.getName(), null, null));
+                    });
             
-            String continuation = llmProvider.chat(continuationPromptObj).block();
-            finalResponse.append("\n\n").append(continuation);
+            // Continue generation with all tool results
+            Flux<ChatResponse> continuation = Flux.defer(() -> {
+                continuationPrompt.append("\n\nPlease continue your response:");
+                ChatPrompt continuationPromptObj = new ChatPrompt(
+                        prompt.getSystemPrompt(),
+                        continuationPrompt.toString(),
+                        prompt.getContext(),
+                        prompt.getHistory(),
+                        prompt.getTools(),
+                        prompt.getTemperature(),
+                        prompt.getMaxTokens()
+                );
+                
+                return llmProvider.chat(continuationPromptObj)
+                        .flatMapMany(text -> {
+                            finalResponse.append("\n\n").append(text);
+                            
+                            // Recursively handle more tool calls
+                            return handleToolCalls(text, toolCallParser.parseToolCalls(text), sessionId,
+                                    continuationPromptObj, toolCallCount + 1, finalResponse);
+                        });
+            });
             
-            // Recursively handle more tool calls
-            if (toolCallCount + 1 < maxToolCalls) {
-                continuation = handleToolCalls(continuation, sessionId, continuationPromptObj, sink, toolCallCount + 1);
-                finalResponse.append(continuation);
-            }
-        }
-        
-        return finalResponse.toString();
+            return Flux.concat(calls, results, continuation);
+        });
     }
     
     private UUID createNewSession(User user) {
@@ -213,21 +275,6 @@ public class ChatService {
         return savedSession.getId();
     }
     
-    private List<ChatMessageDTO> getRecentHistory(UUID sessionId, int limit) {
-        List<ChatMessage> messages = chatMessageRepository.findRecentMessagesBySessionId(sessionId, limit);
-        return messages.stream()
-                .map(msg -> new ChatMessageDTO(
-                        msg.getId(),
-                        msg.getSessionId(),
-                        msg.getRole(),
-                        msg.getContent(),
-                        msg.getTokensIn(),
-                        msg.getTokensOut(),
-                        msg.getCreatedAt()
-                ))
-                .collect(java.util.stream.Collectors.toList());
-    }
-    
     private List<ToolDefinition> buildToolsList(List<String> toolNames) {
         if (toolNames == null || toolNames.isEmpty()) {
             return new ArrayList<>();
@@ -244,14 +291,16 @@ public class ChatService {
         return tools;
     }
     
-    private void saveMessage(UUID sessionId, String role, String content, int tokensIn, int tokensOut) {
-        ChatMessage message = new ChatMessage(sessionId, role, content, tokensIn, tokensOut);
-        chatMessageRepository.save(message);
+    private int countTokens(String text) {
+        return text != null ? tokenizer.countTokens(text) : 0;
     }
     
-    private int estimateTokens(String text) {
-        // Simple token estimation: ~4 characters per token
-        return text != null ? text.length() / 4 : 0;
+    private <T> Mono<T> blockingCall(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(Schedulers.boundedElastic());
+    }
+    
+    private Mono<Void> blockingRun(Runnable call) {
+        return Mono.<Void>fromRunnable(call).subscribeOn(Schedulers.boundedElastic());
     }
     
     public List<ChatSessionDTO> getUserSessions(User user) {
@@ -265,4 +314,24 @@ public class ChatService {
                 ))
                 .collect(java.util.stream.Collectors.toList());
     }
+    
+    private static class ChatTurn {
+        
+        private final UUID sessionId;
+        private final ChatPrompt prompt;
+        private final ResponseCache.CacheKey cacheKey;
+        private final String cachedResponse;
+        
+        private ChatTurn(UUID sessionId, ChatPrompt prompt, ResponseCache.CacheKey cacheKey, String cachedResponse) {
+            this.sessionId = sessionId;
+            this.prompt = prompt;
+            this.cacheKey = cacheKey;
+            this.cachedResponse = cachedResponse;
+        }
+        
+        public UUID getSessionId() { return sessionId; }
+        public ChatPrompt getPrompt() { return prompt; }
+        public ResponseCache.CacheKey getCacheKey() { return cacheKey; }
+        public String getCachedResponse() { return cachedResponse; }
+    }
 }
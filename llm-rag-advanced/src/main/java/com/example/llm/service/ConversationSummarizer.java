@@ -0,0 +1,254 @@
+package com.example.llm.service;
+
+import com.example.llm.dto.ChatMessageDTO;
+import com.example.llm.entity.ChatMessage;
+import com.example.llm.entity.ChatSession;
+import com.example.llm.llm.ChatPrompt;
+import com.example.llm.llm.LlmProvider;
+import com.example.llm.llm.Tokenizer;
+import com.example.llm.repository.ChatMessageRepository;
+import com.example.llm.repository.ChatSessionRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuples;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a running summary per chat session so prompts stay bounded however long a session runs.
+ *
+ * Once the messages not yet summarized exceed triggerTokens, the older ones are folded into the
+ * session's summary in the background, all but the last keepMessages, which stay verbatim. Prompts
+ * then carry the summary plus only the messages after it. Each message is cut to maxMessageTokens
+ * before it is summarized and the messages are folded in calls of at most maxInputTokens, so a pasted
+ * document or long tool output costs a bounded amount too.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ConversationSummarizer {
+    
+    private static final String SUMMARY_INSTRUCTIONS = """
+        You maintain the running summary of a conversation between a user and an assistant.
+        Merge the new messages into the current summary. Keep facts, decisions, names, numbers, \
+        user preferences and open questions; leave out pleasantries and verbatim tool output.
+        Reply with the updated summary only.""";
+    
+    private final ChatSessionRepository chatSessionRepository;
+    private final ChatMessageRepository chatMessageRepository;
+    private final ChatHistoryStore chatHistoryStore;
+    private final LlmProvider llmProvider;
+    private final Tokenizer tokenizer;
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${app.chat.summary.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${app.chat.summary.triggerTokens:3000}")
+    private int triggerTokens;
+    
+    @Value("${app.chat.summary.keepMessages:4}")
+    private int keepMessages;
+    
+    @Value("${app.chat.summary.maxTokens:500}")
+    private int maxTokens;
+    
+    @Value("${app.chat.summary.maxInputTokens:6000}")
+    private int maxInputTokens;
+    
+    @Value("${app.chat.summary.maxMessageTokens:1500}")
+    private int maxMessageTokens;
+    
+    @Value("${app.chat.history.maxSessions:10000}")
+    private long maxSessions;
+    
+    @Value("${app.chat.history.idleMinutes:30}")
+    private long idleMinutes;
+    
+    private final Set<UUID> running = ConcurrentHashMap.newKeySet();
+    private Cache<UUID, SessionSummary> summaries;
+    
+    @PostConstruct
+    public void init() {
+        summaries = Caffeine.newBuilder()
+                .maximumSize(maxSessions)
+                .expireAfterAccess(Duration.ofMinutes(idleMinutes))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, summaries, "chatSummaries");
+    }
+    
+    /**
+     * The session's current summary, empty when there is none yet. Blocks on a cache miss.
+     */
+    public SessionSummary get(UUID sessionId) {
+        if (!enabled) {
+            return SessionSummary.NONE;
+        }
+        return summaries.get(sessionId, id -> chatSessionRepository.findById(id)
+                .map(session -> new SessionSummary(session.getSummary(), session.getSummarizedUntil()))
+                .orElse(SessionSummary.NONE));
+    }
+    
+    /**
+     * Starts summarizing the session in the background if the messages after its summary have grown
+     * past triggerTokens and no summarization of it is running yet.
+     */
+    public void summarizeIfNeeded(UUID sessionId, List<ChatMessageDTO> unsummarized) {
+        if (!enabled || unsummarized.size() <= keepMessages) {
+            return;
+        }
+        
+        int tokens = 0;
+        for (ChatMessageDTO message : unsummarized) {
+            tokens += message.getContent() != null ? tokenizer.countTokens(message.getContent()) : 0;
+        }
+        if (tokens < triggerTokens || !running.add(sessionId)) {
+            return;
+        }
+        
+        summarize(sessionId)
+                .doFinally(signal -> running.remove(sessionId))
+                .subscribe(null, error -> {
+                    meterRegistry.counter("chat.summary.runs", "result", "failure").increment();
+                    log.warn("Failed to summarize chat session {}: {}", sessionId, error.getMessage());
+                });
+    }
+    
+    private Mono<Void> summarize(UUID sessionId) {
+        return Mono.fromCallable(() -> {
+                    // Everything up to the last turn must be in the database
+                    chatHistoryStore.flush(sessionId);
+                    ChatSession session = chatSessionRepository.findById(sessionId).orElse(null);
+                    if (session == null) {
+                        return Tuples.of(SessionSummary.NONE, List.<ChatMessage>of());
+                    }
+                    
+                    SessionSummary previous = new SessionSummary(session.getSummary(), session.getSummarizedUntil());
+                    List<ChatMessage> messages = previous.getSummarizedUntil() != null
+                            ? chatMessageRepository.findBySessionIdAndCreatedAtAfterOrderByCreatedAtAsc(sessionId, previous.getSummarizedUntil())
+                            : chatMessageRepository.findBySessionIdOrderByCreatedAtAsc(sessionId);
+                    List<ChatMessage> folded = messages.size() > keepMessages
+                            ? new ArrayList<>(messages.subList(0, messages.size() - keepMessages))
+                            : List.<ChatMessage>of();
+                    return Tuples.of(previous, folded);
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(loaded -> {
+                    SessionSummary previous = loaded.getT1();
+                    List<ChatMessage> folded = loaded.getT2();
+                    if (folded.isEmpty()) {
+                        return Mono.empty();
+                    }
+                    
+                    Mono<String> summary = Mono.just(previous.getSummary() != null ? previous.getSummary() : "");
+                    for (String batch : batches(folded)) {
+                        summary = summary.flatMap(current -> condense(current, batch));
+                    }
+                    
+                    OffsetDateTime until = folded.get(folded.size() - 1).getCreatedAt();
+                    return summary.flatMap(text -> Mono.fromRunnable(() -> store(sessionId, previous, text, until, folded.size()))
+                            .subscribeOn(Schedulers.boundedElastic()));
+                })
+                .then();
+    }
+    
+    /**
+     * The messages as transcript lines, grouped so each group fits maxInputTokens.
+     */
+    private List<String> batches(List<ChatMessage> messages) {
+        List<String> batches = new ArrayList<>();
+        StringBuilder batch = new StringBuilder();
+        int batchTokens = 0;
+        
+        for (ChatMessage message : messages) {
+            String line = message.getRole() + ": " + tokenizer.truncate(message.getContent(), maxMessageTokens) + "\n\n";
+            int tokens = tokenizer.countTokens(line);
+            if (batchTokens > 0 && batchTokens + tokens > maxInputTokens) {
+                batches.add(batch.toString());
+                batch.setLength(0);
+                batchTokens = 0;
+            }
+            batch.append(line);
+            batchTokens += tokens;
+        }
+        if (batchTokens > 0) {
+            batches.add(batch.toString());
+        }
+        return batches;
+    }
+    
+    private Mono<String> condense(String summary, String messages) {
+        String request = "Current summary:\n" + (summary.isEmpty() ? "(none)" : summary)
+                + "\n\nNew messages:\n" + messages;
+        ChatPrompt prompt = new ChatPrompt(SUMMARY_INSTRUCTIONS, request, null, new ArrayList<>(), new ArrayList<>(),
+                0.0, maxTokens);
+        return llmProvider.chat(prompt)
+                .map(text -> tokenizer.truncate(text.trim(), maxTokens));
+    }
+    
+    private void store(UUID sessionId, SessionSummary previous, String summary, OffsetDateTime until, int folded) {
+        ChatSession session = chatSessionRepository.findById(sessionId).orElse(null);
+        // Another node may have summarized the session meanwhile
+        if (session == null || !sameInstant(session.getSummarizedUntil(), previous.getSummarizedUntil())) {
+            summaries.invalidate(sessionId);
+            return;
+        }
+        
+        session.setSummary(summary);
+        session.setSummarizedUntil(until);
+        chatSessionRepository.save(session);
+        summaries.put(sessionId, new SessionSummary(summary, until));
+        
+        meterRegistry.counter("chat.summary.runs", "result", "success").increment();
+        meterRegistry.counter("chat.summary.messages").increment(folded);
+        log.debug("Folded {} messages of chat session {} into its summary", folded, sessionId);
+    }
+    
+    private static boolean sameInstant(OffsetDateTime a, OffsetDateTime b) {
+        return a == null ? b == null : b != null && a.isEqual(b);
+    }
+    
+    public static class SessionSummary {
+        
+        public static final SessionSummary NONE = new SessionSummary(null, null);
+        
+        private final String summary;
+        private final OffsetDateTime summarizedUntil;
+        
+        public SessionSummary(String summary, OffsetDateTime summarizedUntil) {
+            this.summary = summary;
+            this.summarizedUntil = summarizedUntil;
+        }
+        
+        public String getSummary() { return summary; }
+        public OffsetDateTime getSummarizedUntil() { return summarizedUntil; }
+        
+        /**
+         * The messages created after the last one in the summary.
+         */
+        public List<ChatMessageDTO> after(List<ChatMessageDTO> history) {
+            if (summarizedUntil == null) {
+                return history;
+            }
+            return history.stream()
+                    .filter(message -> message.getCreatedAt() == null || message.getCreatedAt().isAfter(summarizedUntil))
+                    .collect(java.util.stream.Collectors.toList());
+        }
+    }
+}
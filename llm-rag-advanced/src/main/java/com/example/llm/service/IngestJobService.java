@@ -0,0 +1,416 @@
+package com.example.llm.service;
+
+import com.example.llm.dto.DocumentDTO;
+import com.example.llm.dto.IngestJobDTO;
+import com.example.llm.entity.IngestJob;
+import com.example.llm.entity.User;
+import com.example.llm.repository.IngestJobRepository;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background ingestion. Uploads are staged to disk and recorded in ingest_jobs, then a fixed pool of
+ * workers (one per core by default) picks them up round-robin across users so one bulk upload
+ * cannot starve everyone else.
+ * On shutdown running jobs get shutdownTimeoutSeconds to finish before their workers are interrupted.
+ * Jobs left unfinished by a restart, queued or interrupted, are requeued on startup.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class IngestJobService {
+    
+    private static final List<IngestJob.Status> ACTIVE_STATUSES =
+            List.of(IngestJob.Status.QUEUED, IngestJob.Status.EXTRACTING, IngestJob.Status.EMBEDDING);
+    
+    private final IngestJobRepository ingestJobRepository;
+    private final IngestService ingestService;
+    private final ObjectMapper objectMapper;
+    
+    @Value("${app.ingest.workers:0}")
+    private int workers;
+    
+    @Value("${app.ingest.stagingDir:${java.io.tmpdir}/llm-rag-ingest}")
+    private String stagingDir;
+    
+    @Value("${app.ingest.maxAttempts:3}")
+    private int maxAttempts;
+    
+    @Value("${app.ingest.maxActiveJobsPerUser:100}")
+    private int maxActiveJobsPerUser;
+    
+    @Value("${app.ingest.shutdownTimeoutSeconds:30}")
+    private long shutdownTimeoutSeconds;
+    
+    private final FairJobQueue queue = new FairJobQueue();
+    private final Map<UUID, Sinks.Many<IngestJobDTO>> progressSinks = new ConcurrentHashMap<>();
+    private ExecutorService workerPool;
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        recoverJobs();
+        
+        if (workers <= 0) {
+            workers = Runtime.getRuntime().availableProcessors();
+        }
+        workerPool = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("ingest-worker-"));
+        for (int i = 0; i < workers; i++) {
+            workerPool.submit(this::runWorker);
+        }
+        log.info("Started {} ingest workers, staging uploads in {}", workers, stagingDir);
+    }
+    
+    @PreDestroy
+    public void stop() {
+        if (workerPool == null) {
+            return;
+        }
+        
+        // Queued jobs stay QUEUED; running ones may finish within the timeout
+        queue.close();
+        workerPool.shutdown();
+        try {
+            if (!workerPool.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                // Interrupted jobs stay in an active state and are picked up again on the next start
+                log.info("Interrupting ingest jobs still running after {} s", shutdownTimeoutSeconds);
+                workerPool.shutdownNow();
+                workerPool.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            workerPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public IngestJobDTO submit(MultipartFile file, List<String> tags, User user) throws IOException {
+        return submit(file, tags, null, user);
+    }
+    
+    /**
+     * Queues a job that replaces the content of an existing document, re-embedding only changed chunks.
+     */
+    public IngestJobDTO submitUpdate(UUID documentId, MultipartFile file, List<String> tags, User user) throws IOException {
+        ingestService.getDocument(documentId);
+        return submit(file, tags, documentId, user);
+    }
+    
+    private IngestJobDTO submit(MultipartFile file, List<String> tags, UUID targetDocumentId, User user) throws IOException {
+        if (ingestJobRepository.countByUserIdAndStatusIn(user.getId(), ACTIVE_STATUSES) >= maxActiveJobsPerUser) {
+            throw new IllegalStateException("Too many ingest jobs in progress for user: " + user.getUsername());
+        }
+        
+        // Stage the upload so the request thread is released and the job survives a restart
+        Path directory = Paths.get(stagingDir);
+        Files.createDirectories(directory);
+        Path stagedFile = directory.resolve(UUID.randomUUID() + ".upload");
+        file.transferTo(stagedFile);
+        
+        IngestJob job = new IngestJob(
+                user.getId(),
+                file.getOriginalFilename(),
+                file.getContentType(),
+                file.getSize(),
+                stagedFile.toString()
+        );
+        job.setTargetDocumentId(targetDocumentId);
+        if (tags != null && !tags.isEmpty()) {
+            job.setTags(objectMapper.writeValueAsString(tags));
+        }
+        
+        IngestJob savedJob = ingestJobRepository.save(job);
+        progressSinks.put(savedJob.getId(), Sinks.many().replay().latest());
+        queue.offer(savedJob.getUserId(), savedJob.getId());
+        
+        log.info("Queued ingest job {} for file: {} from user: {}", savedJob.getId(), savedJob.getFilename(), user.getUsername());
+        return convertToDTO(savedJob);
+    }
+    
+    /**
+     * Saves and queues the jobs of a bulk ingestion. The caller has staged the files and applied its own limits.
+     */
+    public List<IngestJob> submitAll(List<IngestJob> jobs) {
+        List<IngestJob> savedJobs = ingestJobRepository.saveAll(jobs);
+        for (IngestJob savedJob : savedJobs) {
+            progressSinks.put(savedJob.getId(), Sinks.many().replay().latest());
+            queue.offer(savedJob.getUserId(), savedJob.getId());
+        }
+        return savedJobs;
+    }
+    
+    public long countActiveJobs(User user) {
+        return ingestJobRepository.countByUserIdAndStatusIn(user.getId(), ACTIVE_STATUSES);
+    }
+    
+    public IngestJobDTO getJob(UUID jobId, User user) {
+        return convertToDTO(findJob(jobId, user));
+    }
+    
+    public List<IngestJobDTO> getUserJobs(User user) {
+        return ingestJobRepository.findTop100ByUserIdOrderByCreatedAtDesc(user.getId()).stream()
+                .map(this::convertToDTO)
+                .collect(java.util.stream.Collectors.toList());
+    }
+    
+    public List<IngestJobDTO> getBatchJobs(UUID batchId, User user) {
+        List<IngestJob> jobs = ingestJobRepository.findByBatchIdAndUserIdOrderByCreatedAtAsc(batchId, user.getId());
+        if (jobs.isEmpty()) {
+            throw new RuntimeException("Ingest batch not found: " + batchId);
+        }
+        return jobs.stream()
+                .map(this::convertToDTO)
+                .collect(java.util.stream.Collectors.toList());
+    }
+    
+    /**
+     * Emits the current state of a job followed by every update until it completes or fails.
+     */
+    public Flux<IngestJobDTO> streamProgress(UUID jobId, User user) {
+        // Look up the sink first: if the job finishes in between, the re-read below already sees the final state
+        Sinks.Many<IngestJobDTO> sink = progressSinks.get(jobId);
+        IngestJobDTO current = convertToDTO(findJob(jobId, user));
+        
+        if (sink == null || IngestJob.Status.valueOf(current.getStatus()).isTerminal()) {
+            return Flux.just(current);
+        }
+        return Flux.just(current).concatWith(sink.asFlux())
+                .distinctUntilChanged();
+    }
+    
+    private IngestJob findJob(UUID jobId, User user) {
+        return ingestJobRepository.findByIdAndUserId(jobId, user.getId())
+                .orElseThrow(() -> new RuntimeException("Ingest job not found: " + jobId));
+    }
+    
+    private void recoverJobs() {
+        List<IngestJob> unfinished = ingestJobRepository.findByStatusInOrderByCreatedAtAsc(ACTIVE_STATUSES);
+        
+        for (IngestJob job : unfinished) {
+            // Chunks are stored window by window, so drop whatever an interrupted attempt wrote.
+            // An interrupted update is rerun instead, its inserted chunks then match by content.
+            if (job.getDocumentId() != null && job.getTargetDocumentId() == null) {
+                ingestService.discardPartialDocument(job.getDocumentId());
+                job.setDocumentId(null);
+            }
+            
+            if (job.getAttempts() >= maxAttempts) {
+                fail(job, "Gave up after " + job.getAttempts() + " attempts");
+                continue;
+            }
+            if (!Files.exists(Paths.get(job.getStagedPath()))) {
+                fail(job, "Staged upload is no longer available");
+                continue;
+            }
+            
+            job.setStatus(IngestJob.Status.QUEUED);
+            job.setProcessedChunks(0);
+            ingestJobRepository.save(job);
+            progressSinks.put(job.getId(), Sinks.many().replay().latest());
+            queue.offer(job.getUserId(), job.getId());
+        }
+        
+        if (!unfinished.isEmpty()) {
+            log.info("Recovered {} unfinished ingest jobs", unfinished.size());
+        }
+    }
+    
+    private void runWorker() {
+        while (!Thread.currentThread().isInterrupted()) {
+            UUID jobId;
+            try {
+                jobId = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (jobId == null) {
+                return;
+            }
+            
+            try {
+                ingestJobRepository.findById(jobId).ifPresent(this::process);
+            } catch (Exception e) {
+                log.error("Unexpected error processing ingest job {}", jobId, e);
+            }
+        }
+    }
+    
+    private void process(IngestJob job) {
+        if (job.getStatus() != IngestJob.Status.QUEUED) {
+            return;
+        }
+        
+        job.setAttempts(job.getAttempts() + 1);
+        update(job, IngestJob.Status.EXTRACTING);
+        
+        try {
+            List<String> tags = objectMapper.readValue(job.getTags(), new TypeReference<List<String>>() {});
+            
+            Path file = Paths.get(job.getStagedPath());
+            DocumentDTO document = job.getTargetDocumentId() != null
+                    ? ingestService.updateDocument(job.getTargetDocumentId(), job.getFilename(), job.getContentType(), file, tags, new JobProgressListener(job))
+                    : ingestService.ingestDocument(job.getFilename(), job.getContentType(), file, tags, new JobProgressListener(job));
+            
+            job.setDocumentId(document.getId());
+            job.setTotalChunks(job.getProcessedChunks());
+            update(job, IngestJob.Status.DONE);
+            log.info("Ingest job {} completed with document {}", job.getId(), document.getId());
+            
+        } catch (Exception e) {
+            if (e instanceof IngestService.IngestInterruptedException || Thread.currentThread().isInterrupted()) {
+                // Shutting down: leave the job active with its staged file so recoverJobs requeues it
+                log.info("Ingest job {} interrupted, it is resumed on the next start", job.getId());
+                Thread.currentThread().interrupt();
+                return;
+            }
+            log.error("Ingest job {} failed", job.getId(), e);
+            job.setDocumentId(null); // the partial document or chunks have been discarded
+            fail(job, e.getMessage());
+            return;
+        }
+        
+        deleteStagedFile(job);
+    }
+    
+    private void fail(IngestJob job, String error) {
+        job.setError(error);
+        update(job, IngestJob.Status.FAILED);
+        deleteStagedFile(job);
+    }
+    
+    private void update(IngestJob job, IngestJob.Status status) {
+        job.setStatus(status);
+        IngestJob savedJob = ingestJobRepository.save(job);
+        job.setUpdatedAt(savedJob.getUpdatedAt());
+        
+        Sinks.Many<IngestJobDTO> sink = status.isTerminal() ? progressSinks.remove(job.getId()) : progressSinks.get(job.getId());
+        if (sink != null) {
+            sink.tryEmitNext(convertToDTO(savedJob));
+            if (status.isTerminal()) {
+                sink.tryEmitComplete();
+            }
+        }
+    }
+    
+    private void deleteStagedFile(IngestJob job) {
+        if (!job.isDeleteStaged()) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(Paths.get(job.getStagedPath()));
+        } catch (IOException e) {
+            log.warn("Failed to delete staged upload: {}", job.getStagedPath(), e);
+        }
+    }
+    
+    private IngestJobDTO convertToDTO(IngestJob job) {
+        return new IngestJobDTO(
+                job.getId(),
+                job.getBatchId(),
+                job.getFilename(),
+                job.getStatus().name(),
+                job.getTotalChunks(),
+                job.getProcessedChunks(),
+                job.getDocumentId(),
+                job.getError(),
+                job.getCreatedAt(),
+                job.getUpdatedAt()
+        );
+    }
+    
+    private class JobProgressListener implements IngestService.ProgressListener {
+        
+        private final IngestJob job;
+        
+        private JobProgressListener(IngestJob job) {
+            this.job = job;
+        }
+        
+        @Override
+        public void documentCreated(UUID documentId) {
+            // Recorded early so a restart can clean up a partially ingested document
+            job.setDocumentId(documentId);
+            ingestJobRepository.save(job);
+        }
+        
+        @Override
+        public void embedding() {
+            update(job, IngestJob.Status.EMBEDDING);
+        }
+        
+        @Override
+        public void embedded(int processedChunks) {
+            job.setProcessedChunks(processedChunks);
+            update(job, IngestJob.Status.EMBEDDING);
+        }
+    }
+    
+    /**
+     * Blocking queue that hands out jobs round-robin per user: each take serves the next user in
+     * rotation, so a user with a thousand queued files waits behind one file of every other user.
+     */
+    static class FairJobQueue {
+        
+        private final Map<UUID, Deque<UUID>> jobsByUser = new HashMap<>();
+        private final Deque<UUID> users = new ArrayDeque<>();
+        private boolean closed;
+        
+        synchronized void offer(UUID userId, UUID jobId) {
+            Deque<UUID> jobs = jobsByUser.get(userId);
+            if (jobs == null) {
+                jobs = new ArrayDeque<>();
+                jobsByUser.put(userId, jobs);
+                users.addLast(userId);
+            }
+            jobs.addLast(jobId);
+            notifyAll();
+        }
+        
+        /**
+         * Returns null once the queue is closed, leaving any remaining jobs to be recovered from the database.
+         */
+        synchronized UUID take() throws InterruptedException {
+            while (users.isEmpty() && !closed) {
+                wait();
+            }
+            if (closed) {
+                return null;
+            }
+            
+            UUID userId = users.pollFirst();
+            Deque<UUID> jobs = jobsByUser.get(userId);
+            UUID jobId = jobs.pollFirst();
+            if (jobs.isEmpty()) {
+                jobsByUser.remove(userId);
+            } else {
+                users.addLast(userId);
+            }
+            return jobId;
+        }
+        
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
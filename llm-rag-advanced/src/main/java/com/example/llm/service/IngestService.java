@@ -4,23 +4,31 @@ import com.example.llm.dto.DocumentDTO;
 import com.example.llm.entity.Chunk;
 import com.example.llm.entity.Document;
 import com.example.llm.entity.User;
+import com.example.llm.rag.EmbeddingBatcher;
 import com.example.llm.rag.EmbeddingService;
+import com.example.llm.rag.RetrievalCache;
 import com.example.llm.rag.TextSplitter;
-import com.example.llm.repository.ChunkRepository;
+import com.example.llm.rag.VectorIndexService;
+import com.example.llm.repository.ChunkBatchRepository;
 import com.example.llm.repository.DocumentRepository;
 import com.example.llm.util.HashingUtils;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.cache.annotation.CacheEvict;
+import org.apache.tika.io.TikaInputStream;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
 
 @Service
 @RequiredArgsConstructor
@@ -29,20 +37,35 @@ import java.util.concurrent.CompletableFuture;
 public class IngestService {
     
     private final DocumentRepository documentRepository;
-    private final ChunkRepository chunkRepository;
+    private final ChunkBatchRepository chunkBatchRepository;
     private final TextSplitter textSplitter;
     private final EmbeddingService embeddingService;
+    private final EmbeddingBatcher embeddingBatcher;
+    private final VectorIndexService vectorIndexService;
+    private final RetrievalCache retrievalCache;
+    private final TransactionTemplate transactionTemplate;
     
-    @Value("${app.rag.chunkSize:3000}")
-    private int chunkSize;
-    
-    @CacheEvict(value = "searchResults", allEntries = true)
-    public DocumentDTO ingestDocument(MultipartFile file, List<String> tags, User user) {
-        log.info("Ingesting document: {} for user: {}", file.getOriginalFilename(), user.getUsername());
+    /**
+     * Streams the file through extraction and chunking and embeds and stores the chunks one window
+     * at a time, so memory stays bounded by the window rather than the document. Nothing runs inside
+     * a long transaction; each window is written in its own. If ingestion fails midway the partially
+     * written document is deleted again. If it is interrupted the document is left for job recovery,
+     * which discards it before the rerun.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public DocumentDTO ingestDocument(String filename, String contentType, Path file, List<String> tags,
+                                      ProgressListener listener) {
+        Document savedDocument = null;
         
         try {
+            long size = Files.size(file);
+            log.info("Ingesting document: {} ({} bytes)", filename, size);
+            
             // Check if document already exists
-            String checksum = HashingUtils.calculateSHA256(file.getBytes());
+            String checksum;
+            try (InputStream input = Files.newInputStream(file)) {
+                checksum = HashingUtils.calculateSHA256(input);
+            }
             Document existingDocument = documentRepository.findByChecksum(checksum).orElse(null);
             
             if (existingDocument != null) {
@@ -50,69 +73,256 @@ public class IngestService {
                 return convertToDTO(existingDocument);
             }
             
-            // Extract text from file
-            String extractedText = textSplitter.extractTextFromFile(file.getBytes(), file.getContentType());
-            log.debug("Extracted text length: {}", extractedText.length());
-            
-            // Split text into chunks
-            List<TextSplitter.TextChunk> textChunks = textSplitter.splitText(extractedText);
-            log.debug("Split text into {} chunks", textChunks.size());
-            
             // Create document entity
-            Document document = new Document(
-                    file.getOriginalFilename(),
-                    file.getContentType(),
-                    file.getSize(),
-                    checksum
-            );
+            Document document = new Document(filename, contentType, size, checksum);
             
             // Set tags
             if (tags != null && !tags.isEmpty()) {
                 document.setTags(convertTagsToJson(tags));
             }
             
-            Document savedDocument = documentRepository.save(document);
+            savedDocument = transactionTemplate.execute(status -> documentRepository.saveAndFlush(document));
             log.debug("Saved document with ID: {}", savedDocument.getId());
+            listener.documentCreated(savedDocument.getId());
+            
+            // Extract and chunk in one pass, embedding and storing each full window of chunks
+            listener.extracting();
+            ChunkWindow window = new ChunkWindow(savedDocument.getId(), listener);
+            int chunkCount;
+            try (InputStream input = TikaInputStream.get(file)) {
+                chunkCount = textSplitter.streamChunks(input, contentType, window::add);
+            }
+            window.flush();
             
-            // Create chunks and generate embeddings
-            List<CompletableFuture<Void>> embeddingFutures = new ArrayList<>();
-            
-            for (int i = 0; i < textChunks.size(); i++) {
-                TextSplitter.TextChunk textChunk = textChunks.get(i);
-                
-                // Create chunk entity
-                Chunk chunk = new Chunk(savedDocument.getId(), textChunk.getIndex(), textChunk.getText());
-                Chunk savedChunk = chunkRepository.save(chunk);
-                
-                // Generate embedding asynchronously
-                CompletableFuture<Void> embeddingFuture = embeddingService.embedText(textChunk.getText())
-                        .thenAccept(embedding -> {
-                            String vectorString = embeddingService.vectorToString(embedding);
-                            savedChunk.setVector(vectorString);
-                            chunkRepository.save(savedChunk);
-                            log.debug("Generated embedding for chunk: {}", savedChunk.getId());
-                        })
-                        .exceptionally(throwable -> {
-                            log.error("Failed to generate embedding for chunk: {}", savedChunk.getId(), throwable);
-                            return null;
-                        });
-                
-                embeddingFutures.add(embeddingFuture);
-            }
-            
-            // Wait for all embeddings to complete
-            CompletableFuture.allOf(embeddingFutures.toArray(new CompletableFuture[0])).join();
-            
-            log.info("Successfully ingested document: {} with {} chunks", file.getOriginalFilename(), textChunks.size());
+            log.info("Successfully ingested document: {} with {} chunks", filename, chunkCount);
             
             return convertToDTO(savedDocument);
             
         } catch (Exception e) {
-            log.error("Failed to ingest document: {}", file.getOriginalFilename(), e);
+            if (isInterruption(e)) {
+                throw new IngestInterruptedException("Ingestion of " + filename + " was interrupted", e);
+            }
+            log.error("Failed to ingest document: {}", filename, e);
+            if (savedDocument != null) {
+                discardPartialDocument(savedDocument.getId());
+            }
             throw new RuntimeException("Failed to ingest document: " + e.getMessage(), e);
         }
     }
     
+    /**
+     * Replaces the content of an existing document, re-embedding only what changed. The new chunks
+     * are matched to the stored ones by content hash: matches keep their row and vector (and move to
+     * their new position), the rest are embedded and inserted window by window, and stored chunks
+     * without a match are deleted at the end together with the document update. Until then searches
+     * may see old and new chunks side by side. A failed update removes the chunks it inserted; an
+     * interrupted one is simply run again, since the already inserted chunks then match.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public DocumentDTO updateDocument(UUID documentId, String filename, String contentType, Path file, List<String> tags,
+                                      ProgressListener listener) {
+        Document document = documentRepository.findById(documentId)
+                .orElseThrow(() -> new RuntimeException("Document not found: " + documentId));
+        ChunkWindow window = new ChunkWindow(documentId, listener);
+        
+        try {
+            long size = Files.size(file);
+            log.info("Updating document: {} from {} ({} bytes)", documentId, filename, size);
+            
+            String checksum;
+            try (InputStream input = Files.newInputStream(file)) {
+                checksum = HashingUtils.calculateSHA256(input);
+            }
+            if (checksum.equals(document.getChecksum())) {
+                log.info("Document {} is unchanged", documentId);
+                return convertToDTO(document);
+            }
+            
+            // Stored chunks by content hash; a hash can occur more than once
+            Map<String, Deque<ChunkBatchRepository.StoredChunk>> storedChunks = new HashMap<>();
+            for (ChunkBatchRepository.StoredChunk storedChunk : chunkBatchRepository.findStoredChunks(documentId)) {
+                storedChunks.computeIfAbsent(storedChunk.getContentHash(), hash -> new ArrayDeque<>()).add(storedChunk);
+            }
+            
+            listener.extracting();
+            Map<UUID, Integer> movedChunks = new HashMap<>();
+            int[] keptCount = {0};
+            int chunkCount;
+            try (InputStream input = TikaInputStream.get(file)) {
+                chunkCount = textSplitter.streamChunks(input, contentType, textChunk -> {
+                    Deque<ChunkBatchRepository.StoredChunk> matches = storedChunks.get(contentHash(textChunk.getText()));
+                    ChunkBatchRepository.StoredChunk match = matches != null ? matches.pollFirst() : null;
+                    if (match == null) {
+                        window.add(textChunk);
+                        return;
+                    }
+                    keptCount[0]++;
+                    if (match.getChunkIndex() != textChunk.getIndex()) {
+                        movedChunks.put(match.getId(), textChunk.getIndex());
+                    }
+                });
+            }
+            window.flush();
+            
+            List<UUID> removedChunks = storedChunks.values().stream()
+                    .flatMap(Collection::stream)
+                    .map(ChunkBatchRepository.StoredChunk::getId)
+                    .collect(java.util.stream.Collectors.toList());
+            
+            document.setFilename(filename);
+            document.setContentType(contentType);
+            document.setSize(size);
+            document.setChecksum(checksum);
+            if (tags != null && !tags.isEmpty()) {
+                document.setTags(convertTagsToJson(tags));
+            }
+            Document savedDocument = transactionTemplate.execute(status -> {
+                chunkBatchRepository.updateIndexes(movedChunks);
+                chunkBatchRepository.deleteAll(removedChunks);
+                return documentRepository.save(document);
+            });
+            
+            vectorIndexService.removeChunks(documentId, removedChunks);
+            retrievalCache.evictDocument(documentId);
+            
+            log.info("Updated document: {} with {} chunks, {} kept, {} embedded, {} removed",
+                    documentId, chunkCount, keptCount[0], window.getChunkIds().size(), removedChunks.size());
+            
+            return convertToDTO(savedDocument);
+            
+        } catch (Exception e) {
+            if (isInterruption(e)) {
+                // Keep the inserted chunks: the rerun matches them by content instead of embedding them again
+                throw new IngestInterruptedException("Update of document " + documentId + " was interrupted", e);
+            }
+            log.error("Failed to update document: {}", documentId, e);
+            discardChunks(documentId, window.getChunkIds());
+            throw new RuntimeException("Failed to update document: " + e.getMessage(), e);
+        }
+    }
+    
+    private void discardChunks(UUID documentId, List<UUID> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> chunkBatchRepository.deleteAll(chunkIds));
+            vectorIndexService.removeChunks(documentId, chunkIds);
+            retrievalCache.evictDocument(documentId);
+            log.info("Discarded {} chunks inserted by a failed update of document: {}", chunkIds.size(), documentId);
+        } catch (Exception e) {
+            log.warn("Failed to discard chunks inserted by a failed update of document: {}", documentId, e);
+        }
+    }
+    
+    /**
+     * Removes a document left behind by an ingestion that failed or was interrupted midway.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void discardPartialDocument(UUID documentId) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> documentRepository.deleteById(documentId));
+            vectorIndexService.removeDocument(documentId);
+            retrievalCache.evictDocument(documentId);
+            log.info("Discarded partially ingested document: {}", documentId);
+        } catch (Exception e) {
+            log.warn("Failed to discard partially ingested document: {}", documentId, e);
+        }
+    }
+    
+    private List<UUID> storeChunks(UUID documentId, List<TextSplitter.TextChunk> textChunks) {
+        // Embed through the shared pipeline, which batches chunks across concurrently ingested documents
+        List<String> texts = textChunks.stream()
+                .map(TextSplitter.TextChunk::getText)
+                .collect(java.util.stream.Collectors.toList());
+        List<float[]> embeddings = embeddingBatcher.embed(texts).block();
+        
+        // Write chunk rows and vectors together
+        List<Chunk> chunks = new ArrayList<>(textChunks.size());
+        for (int i = 0; i < textChunks.size(); i++) {
+            TextSplitter.TextChunk textChunk = textChunks.get(i);
+            Chunk chunk = new Chunk(documentId, textChunk.getIndex(), textChunk.getText());
+            chunk.setId(UUID.randomUUID());
+            chunk.setContentHash(contentHash(textChunk.getText()));
+            chunk.setVector(embeddings.get(i));
+            chunks.add(chunk);
+        }
+        transactionTemplate.executeWithoutResult(status -> chunkBatchRepository.insertAll(chunks));
+        
+        chunks.forEach(chunk -> vectorIndexService.add(chunk.getId(), chunk.getDocumentId(), chunk.getVector()));
+        retrievalCache.onChunksAdded(embeddings, texts);
+        
+        return chunks.stream()
+                .map(Chunk::getId)
+                .collect(java.util.stream.Collectors.toList());
+    }
+    
+    /**
+     * Whether the failure comes from the worker thread being interrupted, e.g. by shutdown, rather
+     * than from the document or the provider. A blocking call may report it only in its cause.
+     */
+    private static boolean isInterruption(Throwable error) {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof InterruptedIOException
+                    || cause instanceof ClosedByInterruptException) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static String contentHash(String text) {
+        return HashingUtils.calculateSHA256(text.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Buffers chunks from the extractor until there are enough to keep every embedding request in
+     * flight, then embeds and stores them. Extraction pauses while a window is being flushed.
+     */
+    private class ChunkWindow {
+        
+        private final UUID documentId;
+        private final ProgressListener listener;
+        private final int capacity;
+        private final List<TextSplitter.TextChunk> pending;
+        private final List<UUID> chunkIds = new ArrayList<>();
+        
+        private ChunkWindow(UUID documentId, ProgressListener listener) {
+            this.documentId = documentId;
+            this.listener = listener;
+            this.capacity = embeddingService.getBatchSize() * embeddingService.getConcurrency();
+            this.pending = new ArrayList<>(capacity);
+        }
+        
+        void add(TextSplitter.TextChunk chunk) {
+            pending.add(chunk);
+            if (pending.size() >= capacity) {
+                flush();
+            }
+        }
+        
+        void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            if (chunkIds.isEmpty()) {
+                listener.embedding();
+            }
+            
+            chunkIds.addAll(storeChunks(documentId, pending));
+            pending.clear();
+            listener.embedded(chunkIds.size());
+        }
+        
+        // Ids of the chunks stored so far
+        List<UUID> getChunkIds() {
+            return chunkIds;
+        }
+    }
+    
     public List<DocumentDTO> getUserDocuments(User user) {
         // For now, return all documents. In a real app, you might want to filter by user
         List<Document> documents = documentRepository.findAll();
@@ -134,6 +344,16 @@ public class IngestService {
         
         // Chunks will be deleted automatically due to CASCADE
         documentRepository.deleteById(documentId);
+        
+        // Update the index and cache only once the delete is committed: a rollback must keep the
+        // chunks searchable, and a concurrent retrieval cannot re-cache the document in between
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                vectorIndexService.removeDocument(documentId);
+                retrievalCache.evictDocument(documentId);
+            }
+        });
         log.info("Deleted document: {}", documentId);
     }
     
@@ -151,10 +371,42 @@ public class IngestService {
     
     private String convertTagsToJson(List<String> tags) {
         try {
-            return com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(tags);
+            return new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(tags);
         } catch (Exception e) {
             log.error("Failed to convert tags to JSON", e);
             return "[]";
         }
     }
+    
+    /**
+     * Thrown when an ingestion is interrupted. Nothing is undone, so the job can be run again: a new
+     * document is discarded by job recovery, an update resumes from the chunks it already stored.
+     */
+    public static class IngestInterruptedException extends RuntimeException {
+        
+        public IngestInterruptedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+    
+    /**
+     * Callbacks for the stages of a single ingestion, used by background jobs to report progress.
+     */
+    public interface ProgressListener {
+        
+        ProgressListener NONE = new ProgressListener() {
+        };
+        
+        default void documentCreated(UUID documentId) {
+        }
+        
+        default void extracting() {
+        }
+        
+        default void embedding() {
+        }
+        
+        default void embedded(int processedChunks) {
+        }
+    }
 }
@@ -1,49 +1,135 @@
 package com.example.llm.service;
 
+import com.example.llm.config.AppProperties;
+import com.example.llm.entity.User;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Per-user token bucket rate limiting, as GCRA in a Redis Lua script: one round trip per check, and
+ * atomic, so concurrent requests from one user cannot slip past the limit together. A bucket holds
+ * capacity requests and refills at refillPerMinute; the plan is picked by the user's first role that
+ * has one under app.rateLimit.plans, else the default from requestsPerMinute and burstCapacity.
+ *
+ * With the near cache, a user well under the limit takes several tokens at once and spends them
+ * locally for up to leaseMillis, so most of their requests skip Redis. Tokens not spent in time are
+ * forfeited, which keeps the limit exact across nodes and only errs towards rejecting. Redis errors
+ * let requests through.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class RateLimitService {
     
+    private static final String KEY_PREFIX = "rate_limit:";
+    private static final String DEFAULT_PLAN = "default";
+    
+    // KEYS[1] bucket; ARGV: emission interval and burst tolerance in microseconds, tokens wanted (0 only reads).
+    // The bucket stores its theoretical arrival time; server time keeps nodes with skewed clocks consistent.
+    // Returns tokens granted, tokens left and microseconds until the next token when none was granted.
+    private static final RedisScript<List> GCRA_SCRIPT = new DefaultRedisScript<>("""
+        local interval = tonumber(ARGV[1])
+        local burst = tonumber(ARGV[2])
+        local wanted = tonumber(ARGV[3])
+        local time = redis.call('TIME')
+        local now = tonumber(time[1]) * 1000000 + tonumber(time[2])
+        local tat = tonumber(redis.call('GET', KEYS[1]) or now)
+        if tat < now then
+            tat = now
+        end
+        local available = math.floor((now + burst - tat) / interval)
+        if wanted == 0 then
+            return {0, available, 0}
+        end
+        if available < 1 then
+            return {0, 0, tat + interval - burst - now}
+        end
+        local granted = 1
+        if available >= 2 * wanted then
+            granted = wanted
+        end
+        tat = tat + granted * interval
+        redis.call('SET', KEYS[1], string.format('%.0f', tat), 'PX', math.ceil((tat - now) / 1000))
+        return {granted, available - granted, 0}
+        """, List.class);
+    
     private final RedisTemplate<String, String> redisTemplate;
+    private final AppProperties appProperties;
+    private final MeterRegistry meterRegistry;
     
     @Value("${app.rateLimit.requestsPerMinute:60}")
     private int requestsPerMinute;
     
-    @Value("${app.rateLimit.windowSizeMinutes:1}")
-    private int windowSizeMinutes;
+    @Value("${app.rateLimit.burstCapacity:0}")
+    private int burstCapacity;
+    
+    @Value("${app.rateLimit.nearCache.enabled:true}")
+    private boolean nearCacheEnabled;
+    
+    @Value("${app.rateLimit.nearCache.leaseTokens:5}")
+    private int leaseTokens;
+    
+    @Value("${app.rateLimit.nearCache.leaseMillis:1000}")
+    private long leaseMillis;
+    
+    private Cache<UUID, AtomicInteger> leases;
+    
+    @PostConstruct
+    public void init() {
+        leases = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMillis(leaseMillis))
+                .build();
+    }
+    
+    public boolean isAllowed(User user) {
+        return isAllowed(user.getId(), planFor(user));
+    }
     
     public boolean isAllowed(UUID userId) {
-        String key = "rate_limit:" + userId + ":" + getCurrentMinuteBucket();
+        return isAllowed(userId, defaultPlan());
+    }
+    
+    private boolean isAllowed(UUID userId, Plan plan) {
+        AtomicInteger lease = nearCacheEnabled ? leases.getIfPresent(userId) : null;
+        if (lease != null && lease.getAndUpdate(tokens -> Math.max(0, tokens - 1)) > 0) {
+            count(plan, "local");
+            return true;
+        }
         
         try {
-            // Get current count
-            String currentCountStr = redisTemplate.opsForValue().get(key);
-            int currentCount = currentCountStr != null ? Integer.parseInt(currentCountStr) : 0;
-            
-            if (currentCount >= requestsPerMinute) {
-                log.warn("Rate limit exceeded for user: {}", userId);
+            int wanted = nearCacheEnabled ? Math.max(1, leaseTokens) : 1;
+            List<Long> result = execute(userId, plan, wanted);
+            long granted = result.get(0);
+            if (granted < 1) {
+                count(plan, "rejected");
+                log.warn("Rate limit exceeded for user: {}, next request in {} ms", userId, result.get(2) / 1000);
                 return false;
             }
             
-            // Increment counter
-            Long newCount = redisTemplate.opsForValue().increment(key);
-            
-            // Set expiration if this is the first request
-            if (newCount == 1) {
-                redisTemplate.expire(key, Duration.ofMinutes(windowSizeMinutes));
+            if (granted > 1) {
+                leases.put(userId, new AtomicInteger((int) granted - 1));
             }
-            
-            log.debug("Rate limit check for user {}: {}/{} requests", userId, newCount, requestsPerMinute);
+            count(plan, "allowed");
+            log.debug("Rate limit check for user {}: {} of {} requests left", userId, result.get(1), plan.capacity);
             return true;
             
         } catch (Exception e) {
@@ -54,25 +140,72 @@ public class RateLimitService {
     }
     
     public int getRemainingRequests(UUID userId) {
-        String key = "rate_limit:" + userId + ":" + getCurrentMinuteBucket();
-        
+        Plan plan = defaultPlan();
         try {
-            String currentCountStr = redisTemplate.opsForValue().get(key);
-            int currentCount = currentCountStr != null ? Integer.parseInt(currentCountStr) : 0;
-            return Math.max(0, requestsPerMinute - currentCount);
+            AtomicInteger lease = leases.getIfPresent(userId);
+            int leased = lease != null ? lease.get() : 0;
+            return (int) Math.min(plan.capacity, execute(userId, plan, 0).get(1) + leased);
         } catch (Exception e) {
             log.error("Error getting remaining requests for user: {}", userId, e);
-            return requestsPerMinute;
+            return plan.capacity;
         }
     }
     
     public void resetRateLimit(UUID userId) {
-        String keyPattern = "rate_limit:" + userId + ":*";
-        redisTemplate.delete(redisTemplate.keys(keyPattern));
+        leases.invalidate(userId);
+        
+        // SCAN instead of KEYS, which blocks Redis while it walks the whole keyspace
+        List<String> keys = new ArrayList<>();
+        ScanOptions options = ScanOptions.scanOptions().match(KEY_PREFIX + userId + "*").count(1000).build();
+        try (Cursor<String> cursor = redisTemplate.scan(options)) {
+            cursor.forEachRemaining(keys::add);
+        }
+        if (!keys.isEmpty()) {
+            redisTemplate.delete(keys);
+        }
         log.info("Rate limit reset for user: {}", userId);
     }
     
-    private long getCurrentMinuteBucket() {
-        return System.currentTimeMillis() / (windowSizeMinutes * 60 * 1000);
+    @SuppressWarnings("unchecked")
+    private List<Long> execute(UUID userId, Plan plan, int wanted) {
+        long intervalMicros = 60_000_000L / plan.refillPerMinute;
+        long burstMicros = intervalMicros * plan.capacity;
+        return (List<Long>) redisTemplate.execute(GCRA_SCRIPT, Collections.singletonList(KEY_PREFIX + userId),
+                String.valueOf(intervalMicros), String.valueOf(burstMicros), String.valueOf(wanted));
+    }
+    
+    private Plan planFor(User user) {
+        Map<String, AppProperties.RateLimitProperties.PlanProperties> plans = appProperties.getRateLimit().getPlans();
+        if (user.getRoles() != null && plans != null) {
+            for (String role : user.getRoles().split(",")) {
+                AppProperties.RateLimitProperties.PlanProperties plan = plans.get(role.trim());
+                if (plan != null) {
+                    int refillPerMinute = plan.getRefillPerMinute() != null ? plan.getRefillPerMinute() : requestsPerMinute;
+                    return new Plan(role.trim(), plan.getCapacity() != null ? plan.getCapacity() : refillPerMinute, refillPerMinute);
+                }
+            }
+        }
+        return defaultPlan();
+    }
+    
+    private Plan defaultPlan() {
+        return new Plan(DEFAULT_PLAN, burstCapacity > 0 ? burstCapacity : requestsPerMinute, requestsPerMinute);
+    }
+    
+    private void count(Plan plan, String result) {
+        meterRegistry.counter("ratelimit.checks", "plan", plan.name, "result", result).increment();
+    }
+    
+    private static class Plan {
+        
+        private final String name;
+        private final int capacity;
+        private final int refillPerMinute;
+        
+        private Plan(String name, int capacity, int refillPerMinute) {
+            this.name = name;
+            this.capacity = Math.max(1, capacity);
+            this.refillPerMinute = Math.max(1, refillPerMinute);
+        }
     }
 }
@@ -2,8 +2,10 @@ package com.example.llm.tools;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -24,6 +26,9 @@ public class MathTool implements ToolRegistry.Tool {
             Pattern.CASE_INSENSITIVE
     );
     
+    @Value("${app.tools.math.timeoutSeconds:5}")
+    private long timeoutSeconds;
+    
     @Override
     public String getName() {
         return "math.eval";
@@ -52,29 +57,31 @@ public class MathTool implements ToolRegistry.Tool {
         return parameters;
     }
     
+    @Override
+    public Duration getTimeout() {
+        return Duration.ofSeconds(timeoutSeconds);
+    }
+    
+    @Override
+    public boolean isIdempotent() {
+        return true;
+    }
+    
     @Override
     public CompletableFuture<String> invoke(JsonNode args) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                String expression = args.get("expression").asText().trim();
-                
-                log.debug("Evaluating math expression: {}", expression);
-                
-                // Validate expression safety
-                if (!isSafeExpression(expression)) {
-                    return "Error: Invalid or unsafe mathematical expression. Only basic arithmetic operations are allowed.";
-                }
-                
-                // Evaluate the expression
-                double result = evaluateExpression(expression);
-                
-                return String.format("Result: %s = %.6f", expression, result);
-                
-            } catch (Exception e) {
-                log.error("Error in math tool", e);
-                return "Error evaluating expression: " + e.getMessage();
-            }
-        });
+        String expression = args.path("expression").asText("").trim();
+        
+        log.debug("Evaluating math expression: {}", expression);
+        
+        // Validate expression safety
+        if (!isSafeExpression(expression)) {
+            throw new IllegalArgumentException("Invalid or unsafe mathematical expression. Only basic arithmetic operations are allowed.");
+        }
+        
+        // Evaluate the expression; an expression that cannot be evaluated is an argument error too
+        double result = evaluateExpression(expression);
+        
+        return CompletableFuture.completedFuture(String.format("Result: %s = %.6f", expression, result));
     }
     
     private boolean isSafeExpression(String expression) {
@@ -1,25 +1,102 @@
 package com.example.llm.tools;
 
+import com.example.llm.util.CircuitBreaker;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Registry and runtime for tools. Invocations run on a dedicated bounded pool, so concurrent calls
+ * from one model turn proceed in parallel without touching request or Reactor threads. Each tool has
+ * its own timeout (after which its thread is interrupted) and circuit breaker, and results of
+ * idempotent tools are cached by tool name and canonical arguments.
+ *
+ * Tools signal failure by completing exceptionally: IllegalArgumentException for arguments the
+ * model got wrong, which do not count against the circuit breaker, anything else for a failure of
+ * the tool itself. Only successful results are cached. Invocations of the registry never complete
+ * exceptionally: failures, timeouts and open circuits are reported as result text the model can read.
+ */
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class ToolRegistry {
     
     private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
     private final Map<String, Tool> tools = new HashMap<>();
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    
+    @Value("${app.tools.toolTimeoutSeconds:30}")
+    private long defaultTimeoutSeconds;
+    
+    @Value("${app.tools.executorThreads:16}")
+    private int executorThreads;
+    
+    @Value("${app.tools.circuitBreaker.failureThreshold:5}")
+    private int failureThreshold;
+    
+    @Value("${app.tools.circuitBreaker.openSeconds:30}")
+    private long openSeconds;
+    
+    @Value("${app.tools.cache.enabled:true}")
+    private boolean cacheEnabled;
+    
+    @Value("${app.tools.cache.ttlMinutes:10}")
+    private long cacheTtlMinutes;
+    
+    @Value("${app.tools.cache.maxEntries:1000}")
+    private long cacheMaxEntries;
+    
+    private ObjectMapper canonicalMapper;
+    private ExecutorService toolExecutor;
+    private Cache<String, String> resultCache;
+    
+    @PostConstruct
+    public void init() {
+        canonicalMapper = objectMapper.copy().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+        
+        int threads = Math.max(1, executorThreads);
+        toolExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(threads * 64), new CustomizableThreadFactory("tool-"));
+        
+        resultCache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxEntries)
+                .expireAfterWrite(Duration.ofMinutes(cacheTtlMinutes))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, resultCache, "toolResults");
+    }
+    
+    @PreDestroy
+    public void stop() {
+        toolExecutor.shutdownNow();
+    }
     
     public void registerTool(Tool tool) {
         tools.put(tool.getName(), tool);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(failureThreshold, Duration.ofSeconds(openSeconds));
+        circuitBreakers.put(tool.getName(), circuitBreaker);
+        meterRegistry.gauge("tools.circuit.open", Tags.of("tool", tool.getName()), circuitBreaker,
+                breaker -> breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1);
         log.info("Registered tool: {}", tool.getName());
     }
     
@@ -38,19 +115,127 @@ public class ToolRegistry {
             return CompletableFuture.completedFuture("Tool not found: " + toolName);
         }
         
+        JsonNode args;
+        String cacheKey = null;
         try {
-            JsonNode args = objectMapper.readTree(argsJson);
-            return tool.invoke(args);
+            args = objectMapper.readTree(argsJson);
+            if (cacheEnabled && tool.isIdempotent()) {
+                // Key order and whitespace in the model's JSON do not matter
+                cacheKey = toolName + ":" + canonicalMapper.writeValueAsString(canonicalMapper.treeToValue(args, Object.class));
+            }
         } catch (Exception e) {
             log.error("Failed to invoke tool: {} with args: {}", toolName, argsJson, e);
             return CompletableFuture.completedFuture("Error invoking tool: " + e.getMessage());
         }
+        
+        if (cacheKey != null) {
+            String cached = resultCache.getIfPresent(cacheKey);
+            if (cached != null) {
+                count(toolName, "cached");
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        
+        CircuitBreaker circuitBreaker = circuitBreakers.get(toolName);
+        if (!circuitBreaker.tryAcquire()) {
+            count(toolName, "rejected");
+            return CompletableFuture.completedFuture("Tool temporarily unavailable: " + toolName);
+        }
+        
+        Duration timeout = tool.getTimeout() != null ? tool.getTimeout() : Duration.ofSeconds(defaultTimeoutSeconds);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<String>> invocation = new AtomicReference<>();
+        String resultKey = cacheKey;
+        
+        Future<?> task;
+        try {
+            task = toolExecutor.submit(() -> {
+                try {
+                    CompletableFuture<String> running = tool.invoke(args);
+                    invocation.set(running);
+                    running.whenComplete((value, error) -> {
+                        if (error != null) {
+                            result.completeExceptionally(error);
+                        } else {
+                            result.complete(value);
+                        }
+                    });
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Saturation is not the tool's fault
+            circuitBreaker.release();
+            count(toolName, "rejected");
+            return CompletableFuture.completedFuture("Tool temporarily unavailable: " + toolName);
+        }
+        
+        return result.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .handle((value, error) -> {
+                    sample.stop(meterRegistry.timer("tools.latency", "tool", toolName));
+                    if (error == null) {
+                        circuitBreaker.onSuccess();
+                        count(toolName, "success");
+                        if (resultKey != null && value != null) {
+                            resultCache.put(resultKey, value);
+                        }
+                        return value;
+                    }
+                    
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (cause instanceof IllegalArgumentException) {
+                        circuitBreaker.release();
+                        count(toolName, "invalid");
+                        log.debug("Tool {} rejected its arguments: {}", toolName, cause.getMessage());
+                        return "Error: " + cause.getMessage();
+                    }
+                    
+                    circuitBreaker.onFailure();
+                    if (cause instanceof TimeoutException) {
+                        // Interrupts a tool still working on the executor, cancels one waiting on I/O
+                        task.cancel(true);
+                        CompletableFuture<String> running = invocation.get();
+                        if (running != null) {
+                            running.cancel(true);
+                        }
+                        count(toolName, "timeout");
+                        log.warn("Tool {} timed out after {}", toolName, timeout);
+                        return "Tool timed out: " + toolName;
+                    }
+                    count(toolName, "failure");
+                    log.error("Failed to invoke tool: {} with args: {}", toolName, argsJson, cause);
+                    return "Error invoking tool: " + cause.getMessage();
+                });
+    }
+    
+    private void count(String toolName, String result) {
+        meterRegistry.counter("tools.calls", "tool", toolName, "result", result).increment();
     }
     
+    /**
+     * A tool callable by the model. invoke is called on the tool executor, so a tool may simply do its
+     * work there and return a completed future.
+     */
     public interface Tool {
         String getName();
         String getDescription();
         Map<String, Object> getParameters();
         CompletableFuture<String> invoke(JsonNode args);
+        
+        /**
+         * Time allowed per invocation, or null for app.tools.toolTimeoutSeconds.
+         */
+        default Duration getTimeout() {
+            return null;
+        }
+        
+        /**
+         * Whether equal arguments may be answered from the result cache. Only successful results are.
+         */
+        default boolean isIdempotent() {
+            return false;
+        }
     }
 }
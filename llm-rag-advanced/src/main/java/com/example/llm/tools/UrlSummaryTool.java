@@ -7,9 +7,12 @@ import org.apache.tika.Tika;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.ByteArrayInputStream;
 import java.net.URL;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -23,8 +26,13 @@ public class UrlSummaryTool implements ToolRegistry.Tool {
     private final WebClient webClient;
     private final Tika tika;
     
-    @Value("${app.tools.toolTimeoutSeconds:30}")
-    private int toolTimeoutSeconds;
+    // Bounds the HTTP request itself; cancelling the invocation cancels the request too
+    @Value("${app.tools.url.fetchTimeoutSeconds:20}")
+    private long fetchTimeoutSeconds;
+    
+    // Covers the fetch plus text extraction
+    @Value("${app.tools.url.timeoutSeconds:40}")
+    private long timeoutSeconds;
     
     private static final Pattern URL_PATTERN = Pattern.compile(
             "https?://[\\w\\-]+(\\.[\\w\\-]+)+([\\w\\-\\.,@?^=%&:/~\\+#]*[\\w\\-\\@?^=%&/~\\+#])?"
@@ -61,51 +69,55 @@ public class UrlSummaryTool implements ToolRegistry.Tool {
         return parameters;
     }
     
+    @Override
+    public Duration getTimeout() {
+        return Duration.ofSeconds(timeoutSeconds);
+    }
+    
+    @Override
+    public boolean isIdempotent() {
+        return true;
+    }
+    
     @Override
     public CompletableFuture<String> invoke(JsonNode args) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                String urlStr = args.get("url").asText().trim();
-                
-                log.debug("Fetching and summarizing URL: {}", urlStr);
-                
-                // Validate URL
-                if (!isValidUrl(urlStr)) {
-                    return "Error: Invalid URL format";
-                }
-                
-                // Check for allowed domains (basic security)
-                if (!isAllowedDomain(urlStr)) {
-                    return "Error: Domain not allowed for security reasons";
-                }
-                
-                // Fetch content
-                String content = fetchUrlContent(urlStr);
-                if (content == null || content.isEmpty()) {
-                    return "Error: Could not fetch content from URL";
-                }
-                
-                // Extract text using Tika
-                String extractedText = extractTextFromHtml(content);
-                if (extractedText == null || extractedText.isEmpty()) {
-                    return "Error: Could not extract text from content";
-                }
-                
-                // Truncate if too long
-                if (extractedText.length() > MAX_CONTENT_LENGTH) {
-                    extractedText = extractedText.substring(0, MAX_CONTENT_LENGTH) + "...";
-                }
-                
-                // Generate summary
-                String summary = generateSummary(extractedText);
-                
-                return String.format("Summary of %s:\n\n%s", urlStr, summary);
-                
-            } catch (Exception e) {
-                log.error("Error in URL summary tool", e);
-                return "Error summarizing URL: " + e.getMessage();
-            }
-        });
+        String urlStr = args.path("url").asText("").trim();
+        
+        log.debug("Fetching and summarizing URL: {}", urlStr);
+        
+        // Validate URL
+        if (!isValidUrl(urlStr)) {
+            throw new IllegalArgumentException("Invalid URL format");
+        }
+        
+        // Check for allowed domains (basic security)
+        if (!isAllowedDomain(urlStr)) {
+            throw new IllegalArgumentException("Domain not allowed for security reasons");
+        }
+        
+        // The fetch does not hold a thread while it waits; extraction runs off the I/O threads
+        return fetchUrlContent(urlStr)
+                .publishOn(Schedulers.boundedElastic())
+                .map(content -> summarize(urlStr, content))
+                .toFuture();
+    }
+    
+    private String summarize(String urlStr, String content) {
+        // Extract text using Tika
+        String extractedText = extractTextFromHtml(content);
+        if (extractedText.isEmpty()) {
+            throw new IllegalStateException("Could not extract text from content");
+        }
+        
+        // Truncate if too long
+        if (extractedText.length() > MAX_CONTENT_LENGTH) {
+            extractedText = extractedText.substring(0, MAX_CONTENT_LENGTH) + "...";
+        }
+        
+        // Generate summary
+        String summary = generateSummary(extractedText);
+        
+        return String.format("Summary of %s:\n\n%s", urlStr, summary);
     }
     
     private boolean isValidUrl(String url) {
@@ -154,26 +166,21 @@ public class UrlSummaryTool implements ToolRegistry.Tool {
         }
     }
     
-    private String fetchUrlContent(String url) {
-        try {
-            return webClient.get()
-                    .uri(url)
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .timeout(java.time.Duration.ofSeconds(toolTimeoutSeconds))
-                    .block();
-        } catch (Exception e) {
-            log.error("Failed to fetch URL content: {}", url, e);
-            return null;
-        }
+    private Mono<String> fetchUrlContent(String url) {
+        return webClient.get()
+                .uri(url)
+                .retrieve()
+                .bodyToMono(String.class)
+                .timeout(Duration.ofSeconds(fetchTimeoutSeconds))
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("Could not fetch content from URL")))
+                .doOnError(e -> log.warn("Failed to fetch URL content: {}: {}", url, e.toString()));
     }
     
     private String extractTextFromHtml(String htmlContent) {
         try {
-            return tika.parseToString(new ByteArrayInputStream(htmlContent.getBytes()));
+            return tika.parseToString(new ByteArrayInputStream(htmlContent.getBytes())).trim();
         } catch (Exception e) {
-            log.error("Failed to extract text from HTML", e);
-            return null;
+            throw new IllegalStateException("Failed to extract text from content", e);
         }
     }
     
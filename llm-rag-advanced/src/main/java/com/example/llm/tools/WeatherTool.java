@@ -2,10 +2,13 @@ package com.example.llm.tools;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -23,6 +26,9 @@ public class WeatherTool implements ToolRegistry.Tool {
             "stormy", new String[]{"Thunderstorms", "Severe weather", "Windy conditions"}
     );
     
+    @Value("${app.tools.weather.timeoutSeconds:10}")
+    private long timeoutSeconds;
+    
     @Override
     public String getName() {
         return "weather.lookup";
@@ -56,33 +62,38 @@ public class WeatherTool implements ToolRegistry.Tool {
         return parameters;
     }
     
+    @Override
+    public Duration getTimeout() {
+        return Duration.ofSeconds(timeoutSeconds);
+    }
+    
+    @Override
+    public boolean isIdempotent() {
+        return true;
+    }
+    
     @Override
     public CompletableFuture<String> invoke(JsonNode args) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                String city = args.get("city").asText();
-                String dateStr = args.get("date").asText();
-                
-                log.debug("Weather lookup for city: {} on date: {}", city, dateStr);
-                
-                // Parse date
-                LocalDate date;
-                try {
-                    date = LocalDate.parse(dateStr, DateTimeFormatter.ISO_LOCAL_DATE);
-                } catch (Exception e) {
-                    return "Invalid date format. Please use YYYY-MM-DD format.";
-                }
-                
-                // Generate mock weather data
-                String weather = generateMockWeather(city, date);
-                
-                return String.format("Weather for %s on %s: %s", city, dateStr, weather);
-                
-            } catch (Exception e) {
-                log.error("Error in weather tool", e);
-                return "Error getting weather information: " + e.getMessage();
-            }
-        });
+        String city = args.path("city").asText("").trim();
+        String dateStr = args.path("date").asText("").trim();
+        if (city.isEmpty()) {
+            throw new IllegalArgumentException("Missing city");
+        }
+        
+        log.debug("Weather lookup for city: {} on date: {}", city, dateStr);
+        
+        // Parse date
+        LocalDate date;
+        try {
+            date = LocalDate.parse(dateStr, DateTimeFormatter.ISO_LOCAL_DATE);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date format. Please use YYYY-MM-DD format.");
+        }
+        
+        // Generate mock weather data
+        String weather = generateMockWeather(city, date);
+        
+        return CompletableFuture.completedFuture(String.format("Weather for %s on %s: %s", city, dateStr, weather));
     }
     
     private String generateMockWeather(String city, LocalDate date) {
@@ -0,0 +1,77 @@
+package com.example.llm.util;
+
+import java.time.Duration;
+
+/**
+ * Consecutive-failure circuit breaker. After failureThreshold failures in a row the circuit opens and
+ * calls are rejected for openDuration. Then a single trial call is let through (half open): success
+ * closes the circuit, failure opens it again.
+ */
+public class CircuitBreaker {
+    
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+    
+    private final int failureThreshold;
+    private final long openNanos;
+    
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt;
+    
+    public CircuitBreaker(int failureThreshold, Duration openDuration) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = openDuration.toNanos();
+    }
+    
+    /**
+     * Whether a call may proceed. A permitted call must report its outcome with onSuccess or onFailure.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt >= openNanos) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false; // the trial call is still running
+        }
+    }
+    
+    /**
+     * Whether tryAcquire would currently let a call through, without taking the permit.
+     */
+    public synchronized boolean isCallPermitted() {
+        return state == State.CLOSED || (state == State.OPEN && System.nanoTime() - openedAt >= openNanos);
+    }
+    
+    public synchronized void onSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+    
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+            failures = 0;
+        }
+    }
+    
+    /**
+     * Gives back a permit whose call never ran, so it counts neither way.
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN; // the open period has passed, so the next call is the trial again
+        }
+    }
+    
+    public synchronized State getState() {
+        return state;
+    }
+}
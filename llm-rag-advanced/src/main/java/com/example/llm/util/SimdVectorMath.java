@@ -0,0 +1,40 @@
+package com.example.llm.util;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API kernels. Only loaded by {@link VectorMath} after it has checked that the
+ * jdk.incubator.vector module is available. Compiled in its own compiler execution, the only one
+ * that adds the incubator module, so other code reaches it only through {@link VectorMath.Kernels}.
+ */
+final class SimdVectorMath implements VectorMath.Kernels {
+    
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    
+    SimdVectorMath() {
+    }
+    
+    @Override
+    public int lanes() {
+        return SPECIES.length();
+    }
+    
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            sum = va.fma(vb, sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+}
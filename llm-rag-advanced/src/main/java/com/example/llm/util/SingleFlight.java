@@ -0,0 +1,58 @@
+package com.example.llm.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Merges concurrent calls for the same key onto one execution. The first caller runs the call and
+ * every caller asking for the key before it completes shares its result or error. Nothing is kept
+ * once the call completes, so this sits in front of a cache to stop a burst of identical misses
+ * from all going to the backend.
+ *
+ * Metrics: singleflight.calls counts calls per name with result=executed or coalesced, and
+ * singleflight.inflight is the number of keys currently executing.
+ */
+public class SingleFlight<K, V> {
+    
+    private final Map<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final Counter executed;
+    private final Counter coalesced;
+    
+    public SingleFlight(String name, MeterRegistry meterRegistry) {
+        this.executed = meterRegistry.counter("singleflight.calls", "name", name, "result", "executed");
+        this.coalesced = meterRegistry.counter("singleflight.calls", "name", name, "result", "coalesced");
+        meterRegistry.gauge("singleflight.inflight", Tags.of("name", name), inFlight, Map::size);
+    }
+    
+    /**
+     * Returns the result of the call for the key, sharing an execution already in flight. The call is
+     * made when the returned Mono is subscribed.
+     */
+    public Mono<V> execute(K key, Supplier<Mono<V>> call) {
+        return Mono.defer(() -> {
+            Flight<V> flight = new Flight<>();
+            flight.result = Mono.defer(call)
+                    .doFinally(signal -> inFlight.remove(key, flight))
+                    .cache();
+            
+            Flight<V> existing = inFlight.putIfAbsent(key, flight);
+            if (existing != null) {
+                coalesced.increment();
+                return existing.result;
+            }
+            executed.increment();
+            return flight.result;
+        });
+    }
+    
+    private static class Flight<V> {
+        
+        private Mono<V> result;
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.llm.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of embeddings to and from the pgvector wire formats.
+ * Binary layout (vector_send / vector_recv): int16 dimension, int16 unused, then big-endian float4 values.
+ */
+public final class VectorCodec {
+    
+    private static final int HEADER_BYTES = 4;
+    
+    private VectorCodec() {
+    }
+    
+    public static byte[] toBinary(float[] vector) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + vector.length * Float.BYTES);
+        buffer.putShort((short) vector.length);
+        buffer.putShort((short) 0);
+        for (float value : vector) {
+            buffer.putFloat(value);
+        }
+        return buffer.array();
+    }
+    
+    public static float[] fromBinary(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_BYTES) {
+            return new float[0];
+        }
+        
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int dimension = buffer.getShort() & 0xFFFF;
+        buffer.getShort(); // unused
+        
+        if (bytes.length != HEADER_BYTES + dimension * Float.BYTES) {
+            throw new IllegalArgumentException("Invalid pgvector binary length " + bytes.length + " for dimension " + dimension);
+        }
+        
+        float[] vector = new float[dimension];
+        buffer.asFloatBuffer().get(vector);
+        return vector;
+    }
+    
+    /**
+     * Text form "[v1,v2,...]" accepted by the vector input function.
+     */
+    public static String toText(float[] vector) {
+        if (vector == null || vector.length == 0) {
+            return "[]";
+        }
+        
+        StringBuilder sb = new StringBuilder(vector.length * 12);
+        sb.append('[');
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(vector[i]);
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+    
+    /**
+     * Single pass parser for the text form, no regex or intermediate split array.
+     */
+    public static float[] fromText(CharSequence text) {
+        if (text == null) {
+            return new float[0];
+        }
+        
+        int start = 0;
+        int end = text.length();
+        while (start < end && (text.charAt(start) == '[' || Character.isWhitespace(text.charAt(start)))) start++;
+        while (end > start && (text.charAt(end - 1) == ']' || Character.isWhitespace(text.charAt(end - 1)))) end--;
+        
+        if (start >= end) {
+            return new float[0];
+        }
+        
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == ',') count++;
+        }
+        
+        float[] vector = new float[count];
+        int index = 0;
+        int tokenStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || text.charAt(i) == ',') {
+                vector[index++] = Float.parseFloat(text.subSequence(tokenStart, i).toString().trim());
+                tokenStart = i + 1;
+            }
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.llm.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Dense float vector kernels. Uses the JDK Vector API when the incubator module is present
+ * (start the JVM with {@code --add-modules jdk.incubator.vector}), otherwise a scalar loop with
+ * independent accumulators that the JIT can pipeline.
+ */
+@Slf4j
+public final class VectorMath {
+    
+    // Null when the Vector API is unavailable
+    private static final Kernels SIMD = loadSimd();
+    
+    private VectorMath() {
+    }
+    
+    public static boolean isSimdEnabled() {
+        return SIMD != null;
+    }
+    
+    public static float dot(float[] a, float[] b) {
+        return dot(a, 0, b, 0, a.length);
+    }
+    
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        if (SIMD != null) {
+            return SIMD.dot(a, aOffset, b, bOffset, length);
+        }
+        return scalarDot(a, aOffset, b, bOffset, length);
+    }
+    
+    /**
+     * Writes the L2-normalized vector into {@code target} at {@code offset}; a zero vector stays zero.
+     */
+    public static void normalizeInto(float[] vector, float[] target, int offset) {
+        float norm = (float) Math.sqrt(dot(vector, vector));
+        if (norm == 0f) {
+            java.util.Arrays.fill(target, offset, offset + vector.length, 0f);
+            return;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            target[offset + i] = vector[i] / norm;
+        }
+    }
+    
+    static float scalarDot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+        int i = 0;
+        int bound = length & ~3;
+        for (; i < bound; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+    
+    private static Kernels loadSimd() {
+        if (!Boolean.parseBoolean(System.getProperty("app.vector.simd", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            Kernels kernels = (Kernels) Class.forName("com.example.llm.util.SimdVectorMath")
+                    .getDeclaredConstructor().newInstance();
+            float[] probe = {1f, 2f, 3f};
+            if (kernels.dot(probe, 0, probe, 0, probe.length) != 14f) {
+                return null;
+            }
+            log.info("Vector API SIMD kernels enabled ({} float lanes)", kernels.lanes());
+            return kernels;
+        } catch (Throwable e) {
+            log.info("Vector API unavailable, using scalar kernels: {}", e.toString());
+            return null;
+        }
+    }
+    
+    /**
+     * Implemented by SimdVectorMath, which is loaded by name so this class compiles without the
+     * incubator module.
+     */
+    interface Kernels {
+        
+        float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+        
+        int lanes();
+    }
+}
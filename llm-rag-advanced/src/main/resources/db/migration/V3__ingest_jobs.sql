@@ -0,0 +1,23 @@
+-- V3__ingest_jobs.sql
+-- Create ingest_jobs table for background document ingestion
+CREATE TABLE ingest_jobs (
+    id UUID PRIMARY KEY DEFAULT uuid_generate_v4(),
+    user_id UUID NOT NULL REFERENCES users(id) ON DELETE CASCADE,
+    filename VARCHAR(255) NOT NULL,
+    content_type VARCHAR(100),
+    size BIGINT NOT NULL,
+    tags JSONB DEFAULT '[]'::jsonb,
+    staged_path VARCHAR(1024) NOT NULL,
+    status VARCHAR(20) NOT NULL,    -- QUEUED|EXTRACTING|EMBEDDING|DONE|FAILED
+    total_chunks INT NOT NULL DEFAULT 0,
+    processed_chunks INT NOT NULL DEFAULT 0,
+    attempts INT NOT NULL DEFAULT 0,
+    document_id UUID REFERENCES documents(id) ON DELETE SET NULL,
+    error TEXT,
+    created_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+    updated_at TIMESTAMPTZ NOT NULL DEFAULT now()
+);
+
+-- Create indexes for ingest_jobs
+CREATE INDEX idx_ingest_jobs_user_id ON ingest_jobs(user_id, created_at);
+CREATE INDEX idx_ingest_jobs_status ON ingest_jobs(status, created_at);
@@ -0,0 +1,7 @@
+-- V4__chunk_text_search.sql
+-- Full-text search column for the keyword side of hybrid retrieval
+ALTER TABLE chunks
+    ADD COLUMN text_tsv tsvector GENERATED ALWAYS AS (to_tsvector('english', text)) STORED;
+
+-- Create full-text index for chunks
+CREATE INDEX idx_chunks_text_tsv_gin ON chunks USING GIN (text_tsv);
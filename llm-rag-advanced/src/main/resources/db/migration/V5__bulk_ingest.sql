@@ -0,0 +1,8 @@
+-- V5__bulk_ingest.sql
+-- Group the jobs of one bulk ingestion and allow jobs that read server-side files in place
+ALTER TABLE ingest_jobs
+    ADD COLUMN batch_id UUID,
+    ADD COLUMN delete_staged BOOLEAN NOT NULL DEFAULT TRUE;
+
+-- Create index for per-batch status lookups
+CREATE INDEX idx_ingest_jobs_batch_id ON ingest_jobs(batch_id, created_at);
@@ -0,0 +1,10 @@
+-- V6__chunk_content_hash.sql
+-- Content hash per chunk so a re-ingested document only embeds chunks whose text changed
+ALTER TABLE chunks
+    ADD COLUMN content_hash VARCHAR(64);
+
+UPDATE chunks SET content_hash = encode(sha256(convert_to(text, 'UTF8')), 'hex');
+
+-- Ingest jobs that update an existing document instead of creating one
+ALTER TABLE ingest_jobs
+    ADD COLUMN target_document_id UUID;
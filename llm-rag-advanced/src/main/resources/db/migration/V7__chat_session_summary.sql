@@ -0,0 +1,5 @@
+-- V7__chat_session_summary.sql
+-- Running summary of the older messages of a chat session, so prompts carry it instead of the messages
+ALTER TABLE chat_sessions
+    ADD COLUMN summary TEXT,
+    ADD COLUMN summarized_until TIMESTAMPTZ;  -- created_at of the last message folded into the summary
@@ -0,0 +1,49 @@
+package com.example.llm.llm;
+
+import com.example.llm.rag.StreamingChunker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizing and chunking one megabyte of prose-like text. cl100k_base cannot ship with the tests,
+ * so the vocabulary is trained on a sample of the same kind of text; absolute numbers with cl100k
+ * differ, comparisons between runs hold.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BpeTokenizerBenchmark {
+    
+    private static final int TEXT_CHARS = 1 << 20;
+    
+    private BpeTokenizer tokenizer;
+    private String text;
+    
+    @Setup
+    public void setUp() {
+        tokenizer = BpeVocabularies.tokenizer(BpeVocabularies.train(BpeVocabularies.corpus(100_000, 1), 1000));
+        text = BpeVocabularies.corpus(TEXT_CHARS, 2);
+    }
+    
+    @Benchmark
+    public int countTokens() {
+        return tokenizer.countTokens(text);
+    }
+    
+    @Benchmark
+    public int[] encode() {
+        return tokenizer.encode(text);
+    }
+    
+    @Benchmark
+    public int chunk(Blackhole blackhole) {
+        StreamingChunker chunker = new StreamingChunker(tokenizer, 512, 64, blackhole::consume);
+        chunker.append(text);
+        return chunker.finish();
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.llm.llm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BpeTokenizerTest {
+    
+    // Ranks 256 and up, in this order
+    private static final String[] TOKENS = {"he", "ll", "hell", "hello", " w", "or", " wor", "ld", " world"};
+    
+    private final BpeTokenizer tokenizer = BpeVocabularies.withTokens(TOKENS);
+    
+    @Test
+    void countsMatchHandMergedReference() {
+        // "hello" and " world" are single tokens
+        assertThat(tokenizer.countTokens("hello world")).isEqualTo(2);
+        assertThat(tokenizer.encode("hello world")).containsExactly(259, 264);
+        // h e l p: only "he" merges, "hel" is not a token
+        assertThat(tokenizer.countTokens("help")).isEqualTo(3);
+        assertThat(tokenizer.encode("help")).containsExactly(256, 'l', 'p');
+        // j e l l o: "ll" merges, neither "ell" nor "llo" is a token
+        assertThat(tokenizer.countTokens("jello")).isEqualTo(4);
+        // "he" (256) outranks "ll" (257), then "hell" and "hello" follow
+        assertThat(tokenizer.encode("hello")).containsExactly(259);
+        // Digits are pre-tokenized in runs of at most three
+        assertThat(tokenizer.countTokens("12345")).isEqualTo(5);
+        // ß is two UTF-8 bytes without a merge
+        assertThat(tokenizer.countTokens("ß")).isEqualTo(2);
+        assertThat(tokenizer.countTokens("")).isZero();
+    }
+    
+    @Test
+    void encodingMatchesReferenceMergeOnTrainedVocabulary() {
+        List<byte[]> merges = BpeVocabularies.train(BpeVocabularies.corpus(50_000, 1), 400);
+        BpeTokenizer trained = BpeVocabularies.tokenizer(merges);
+        String text = BpeVocabularies.corpus(20_000, 2);
+        
+        List<Integer> expected = referenceEncode(merges, text);
+        
+        assertThat(trained.encode(text)).containsExactly(expected.stream().mapToInt(Integer::intValue).toArray());
+        assertThat(trained.countTokens(text)).isEqualTo(expected.size());
+        assertThat(trained.countTokens(text)).isLessThan(text.getBytes(StandardCharsets.UTF_8).length / 2);
+    }
+    
+    @Test
+    void decodeRoundTripsEncode() {
+        BpeTokenizer trained = BpeVocabularies.tokenizer(BpeVocabularies.train(BpeVocabularies.corpus(20_000, 3), 200));
+        String text = BpeVocabularies.corpus(5_000, 4) + " emoji 🚀 and tabs\t\tend";
+        
+        assertThat(trained.decode(trained.encode(text))).isEqualTo(text);
+    }
+    
+    @Test
+    void truncateReturnsLongestPrefixWithinBudget() {
+        BpeTokenizer trained = BpeVocabularies.tokenizer(BpeVocabularies.train(BpeVocabularies.corpus(20_000, 5), 200));
+        String text = BpeVocabularies.corpus(2_000, 6);
+        int total = trained.countTokens(text);
+        
+        for (int budget = 1; budget < total; budget += 7) {
+            String prefix = trained.truncate(text, budget);
+            assertThat(text).startsWith(prefix);
+            assertThat(trained.countTokens(prefix)).isLessThanOrEqualTo(budget);
+            // One more character would not fit
+            String longer = text.substring(0, prefix.length() + 1);
+            assertThat(trained.countTokens(longer)).isGreaterThan(budget);
+        }
+        assertThat(trained.truncate(text, total)).isEqualTo(text);
+        assertThat(trained.truncate(text, 0)).isEmpty();
+    }
+    
+    @Test
+    void truncateDoesNotSplitSurrogatePairs() {
+        String text = "🚀🚀";
+        
+        // Each rocket is four byte tokens
+        assertThat(tokenizer.truncate(text, 6)).isEqualTo("🚀");
+        assertThat(tokenizer.truncate(text, 3)).isEmpty();
+    }
+    
+    @Test
+    void rejectsVocabularyWithoutEverySingleByte() {
+        String rankFile = Base64.getEncoder().encodeToString("a".getBytes(StandardCharsets.US_ASCII)) + " 0\n";
+        
+        assertThatThrownBy(() -> BpeTokenizer.load("broken", BpeTokenizer.CL100K_PATTERN,
+                new ByteArrayInputStream(rankFile.getBytes(StandardCharsets.US_ASCII))))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("no token for byte");
+    }
+    
+    /**
+     * Straightforward byte pair merge, as in tiktoken: within each pre-tokenizer piece, repeatedly
+     * merge the leftmost adjacent pair with the lowest rank until no pair is a token.
+     */
+    private static List<Integer> referenceEncode(List<byte[]> merges, String text) {
+        Map<String, Integer> ranks = new HashMap<>();
+        for (int b = 0; b < 256; b++) {
+            ranks.put(key(new byte[]{(byte) b}), b);
+        }
+        for (int i = 0; i < merges.size(); i++) {
+            ranks.putIfAbsent(key(merges.get(i)), 256 + i);
+        }
+        
+        List<Integer> tokens = new ArrayList<>();
+        Matcher matcher = BpeTokenizer.CL100K_PATTERN.matcher(text);
+        while (matcher.find()) {
+            List<byte[]> parts = new ArrayList<>();
+            for (byte b : matcher.group().getBytes(StandardCharsets.UTF_8)) {
+                parts.add(new byte[]{b});
+            }
+            while (true) {
+                int best = -1;
+                int bestRank = Integer.MAX_VALUE;
+                for (int i = 0; i + 1 < parts.size(); i++) {
+                    Integer rank = ranks.get(key(concat(parts.get(i), parts.get(i + 1))));
+                    if (rank != null && rank < bestRank) {
+                        best = i;
+                        bestRank = rank;
+                    }
+                }
+                if (best < 0) {
+                    break;
+                }
+                parts.set(best, concat(parts.get(best), parts.get(best + 1)));
+                parts.remove(best + 1);
+            }
+            for (byte[] part : parts) {
+                tokens.add(ranks.get(key(part)));
+            }
+        }
+        return tokens;
+    }
+    
+    private static String key(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+    
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.llm.llm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+
+/**
+ * Vocabularies for tests and benchmarks, which cannot ship cl100k_base. Rank files are written in
+ * the tiktoken format BpeTokenizer.load reads: every single byte at its own value, then merged tokens.
+ */
+public final class BpeVocabularies {
+    
+    private static final String[] SYLLABLES = {
+            "re", "tri", "ev", "al", "in", "dex", "vec", "tor", "chunk", "em", "bed", "ding",
+            "to", "ken", "que", "ry", "doc", "u", "ment", "ca", "che", "the", "and", "of", "search"
+    };
+    
+    private BpeVocabularies() {
+    }
+    
+    /**
+     * The 256 single bytes followed by the given tokens, ranked in order.
+     */
+    public static BpeTokenizer withTokens(String... tokens) {
+        List<byte[]> merged = new ArrayList<>();
+        for (String token : tokens) {
+            merged.add(token.getBytes(StandardCharsets.UTF_8));
+        }
+        return tokenizer(merged);
+    }
+    
+    /**
+     * The 256 single bytes followed by the merged tokens, ranked in order.
+     */
+    public static BpeTokenizer tokenizer(List<byte[]> merged) {
+        try {
+            return BpeTokenizer.load("test", BpeTokenizer.CL100K_PATTERN, new ByteArrayInputStream(rankFile(merged)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Learns merges on the corpus the way BPE vocabularies are built: within cl100k pre-tokenizer
+     * pieces, the most frequent adjacent pair becomes the next token, until there are enough merges.
+     * Returns the merged tokens in rank order.
+     */
+    public static List<byte[]> train(String corpus, int merges) {
+        Map<String, Integer> pieceCounts = new LinkedHashMap<>();
+        Matcher matcher = BpeTokenizer.CL100K_PATTERN.matcher(corpus);
+        while (matcher.find()) {
+            pieceCounts.merge(matcher.group(), 1, Integer::sum);
+        }
+        
+        List<List<byte[]>> pieces = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        pieceCounts.forEach((piece, count) -> {
+            List<byte[]> parts = new ArrayList<>();
+            for (byte b : piece.getBytes(StandardCharsets.UTF_8)) {
+                parts.add(new byte[]{b});
+            }
+            pieces.add(parts);
+            counts.add(count);
+        });
+        
+        List<byte[]> learned = new ArrayList<>();
+        Set<String> known = new HashSet<>();
+        while (learned.size() < merges) {
+            Map<String, Integer> pairCounts = new LinkedHashMap<>();
+            Map<String, byte[]> pairBytes = new HashMap<>();
+            for (int p = 0; p < pieces.size(); p++) {
+                List<byte[]> parts = pieces.get(p);
+                for (int i = 0; i + 1 < parts.size(); i++) {
+                    byte[] pair = concat(parts.get(i), parts.get(i + 1));
+                    String key = Base64.getEncoder().encodeToString(pair);
+                    pairCounts.merge(key, counts.get(p), Integer::sum);
+                    pairBytes.putIfAbsent(key, pair);
+                }
+            }
+            
+            String best = null;
+            int bestCount = 1;
+            for (Map.Entry<String, Integer> entry : pairCounts.entrySet()) {
+                if (entry.getValue() > bestCount && !known.contains(entry.getKey())) {
+                    best = entry.getKey();
+                    bestCount = entry.getValue();
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            
+            byte[] token = pairBytes.get(best);
+            learned.add(token);
+            known.add(best);
+            for (List<byte[]> parts : pieces) {
+                for (int i = 0; i + 1 < parts.size(); i++) {
+                    if (Arrays.equals(concat(parts.get(i), parts.get(i + 1)), token)) {
+                        parts.set(i, token);
+                        parts.remove(i + 1);
+                    }
+                }
+            }
+        }
+        return learned;
+    }
+    
+    /**
+     * Prose-like text with identifiers, numbers, punctuation and a little non-ASCII.
+     */
+    public static String corpus(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(length + 32);
+        while (text.length() < length) {
+            int syllables = 1 + random.nextInt(3);
+            for (int i = 0; i < syllables; i++) {
+                text.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            int roll = random.nextInt(40);
+            if (roll == 0) {
+                text.append("_").append(random.nextInt(1000));
+            } else if (roll == 1) {
+                text.append("ß");
+            } else if (roll == 2) {
+                text.append(".\n\n");
+                continue;
+            } else if (roll < 6) {
+                text.append(",");
+            } else if (roll == 6) {
+                text.append(". ");
+                continue;
+            }
+            text.append(' ');
+        }
+        return text.toString();
+    }
+    
+    private static byte[] rankFile(List<byte[]> merged) {
+        StringBuilder file = new StringBuilder();
+        Base64.Encoder base64 = Base64.getEncoder();
+        for (int b = 0; b < 256; b++) {
+            file.append(base64.encodeToString(new byte[]{(byte) b})).append(' ').append(b).append('\n');
+        }
+        for (int i = 0; i < merged.size(); i++) {
+            file.append(base64.encodeToString(merged.get(i))).append(' ').append(256 + i).append('\n');
+        }
+        return file.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+    
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.llm.llm;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Routing over real OpenAiProvider clients talking to stub HTTP servers, so failures, slow answers
+ * and cancellations go through the same WebClient path as in production.
+ */
+class RoutingLlmProviderTest {
+    
+    private static final ChatPrompt PROMPT = new ChatPrompt("system", "question", null, List.of(), List.of(), 0.7, 100);
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private StubEndpoint primary;
+    private StubEndpoint secondary;
+    
+    @BeforeEach
+    void setUp() throws IOException {
+        primary = new StubEndpoint("from", " primary");
+        secondary = new StubEndpoint("from", " secondary");
+        // Load the client classes and open the connections before anything is timed
+        provider(primary).chat(PROMPT).block(TIMEOUT);
+        provider(secondary).chat(PROMPT).block(TIMEOUT);
+        primary.hits.set(0);
+        secondary.hits.set(0);
+    }
+    
+    @AfterEach
+    void tearDown() {
+        primary.stop();
+        secondary.stop();
+    }
+    
+    @Test
+    void failsOverWhenPrimaryReturnsError() {
+        RoutingLlmProvider router = router(false, Duration.ZERO);
+        primary.status = 500;
+        
+        assertThat(router.chat(PROMPT).block(TIMEOUT)).isEqualTo("from secondary");
+        assertThat(primary.hits.get()).isEqualTo(1);
+        assertThat(secondary.hits.get()).isEqualTo(1);
+        assertThat(meterRegistry.counter("llm.route.failovers", "provider", "primary").count()).isEqualTo(1);
+    }
+    
+    @Test
+    void failsOverStreamThatFailsBeforeFirstToken() {
+        RoutingLlmProvider router = router(false, Duration.ZERO);
+        primary.status = 503;
+        
+        List<String> tokens = router.chatStream(PROMPT).flatMapMany(stream -> stream).collectList().block(TIMEOUT);
+        
+        assertThat(tokens).containsExactly("from", " secondary");
+        assertThat(primary.hits.get()).isEqualTo(1);
+    }
+    
+    @Test
+    void hedgesSlowPrimary() {
+        RoutingLlmProvider router = router(true, Duration.ofMillis(100));
+        warmUp(router);
+        primary.delayMillis = 3_000;
+        
+        long start = System.nanoTime();
+        String answer = router.chat(PROMPT).block(TIMEOUT);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        assertThat(answer).isEqualTo("from secondary");
+        assertThat(elapsedMillis).isGreaterThanOrEqualTo(100).isLessThan(1_500);
+        assertThat(meterRegistry.counter("llm.route.hedges", "provider", "primary", "hedge", "secondary").count()).isEqualTo(1);
+        // The primary lost the race and was cancelled rather than counted as a failure
+        assertThat(meterRegistry.counter("llm.route.calls", "provider", "primary", "result", "cancelled").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("llm.route.calls", "provider", "primary", "result", "failure").count()).isZero();
+    }
+    
+    @Test
+    void failedPrimaryStartsHedgeWithoutWaitingForDelay() {
+        Duration hedgeDelay = Duration.ofSeconds(3);
+        RoutingLlmProvider router = router(true, hedgeDelay);
+        warmUp(router);
+        primary.status = 500;
+        
+        long start = System.nanoTime();
+        String answer = router.chat(PROMPT).block(TIMEOUT);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        assertThat(answer).isEqualTo("from secondary");
+        assertThat(elapsedMillis).isLessThan(hedgeDelay.toMillis() / 2);
+        assertThat(meterRegistry.counter("llm.route.failovers", "provider", "primary").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("llm.route.hedges", "provider", "primary", "hedge", "secondary").count()).isZero();
+    }
+    
+    @Test
+    void failedPrimaryStreamStartsHedgeWithoutWaitingForDelay() {
+        Duration hedgeDelay = Duration.ofSeconds(3);
+        RoutingLlmProvider router = router(true, hedgeDelay);
+        warmUpStream(router);
+        primary.status = 500;
+        
+        long start = System.nanoTime();
+        List<String> tokens = router.chatStream(PROMPT).flatMapMany(stream -> stream).collectList().block(TIMEOUT);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        assertThat(tokens).containsExactly("from", " secondary");
+        assertThat(elapsedMillis).isLessThan(hedgeDelay.toMillis() / 2);
+    }
+    
+    /**
+     * Gives both routes a latency sample, the secondary a slower one so the primary ranks first.
+     * Unsampled routes are tried first, so the first call goes to the primary and the second to
+     * the secondary.
+     */
+    private void warmUp(RoutingLlmProvider router) {
+        secondary.delayMillis = 200;
+        assertThat(router.chat(PROMPT).block(TIMEOUT)).isEqualTo("from primary");
+        assertThat(router.chat(PROMPT).block(TIMEOUT)).isEqualTo("from secondary");
+        secondary.delayMillis = 0;
+    }
+    
+    private void warmUpStream(RoutingLlmProvider router) {
+        secondary.delayMillis = 200;
+        assertThat(router.chatStream(PROMPT).flatMapMany(stream -> stream).collectList().block(TIMEOUT))
+                .containsExactly("from", " primary");
+        assertThat(router.chatStream(PROMPT).flatMapMany(stream -> stream).collectList().block(TIMEOUT))
+                .containsExactly("from", " secondary");
+        secondary.delayMillis = 0;
+    }
+    
+    private RoutingLlmProvider router(boolean hedgeEnabled, Duration hedgeMinDelay) {
+        LinkedHashMap<String, LlmProvider> providers = new LinkedHashMap<>();
+        providers.put("primary", provider(primary));
+        providers.put("secondary", provider(secondary));
+        return new RoutingLlmProvider(providers, 0.3, 5, Duration.ofSeconds(30), hedgeEnabled, 0.95,
+                hedgeMinDelay, 1, meterRegistry);
+    }
+    
+    private OpenAiProvider provider(StubEndpoint endpoint) {
+        WebClient webClient = WebClient.builder().baseUrl(endpoint.baseUrl()).build();
+        return OpenAiProvider.forEndpoint(webClient, objectMapper, "stub", "stub-embedding", 0.7, 100, 8192);
+    }
+    
+    /**
+     * An OpenAI-compatible /chat/completions endpoint with a configurable status and delay.
+     */
+    private class StubEndpoint {
+        
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final List<String> tokens;
+        private final AtomicInteger hits = new AtomicInteger();
+        private volatile int status = 200;
+        private volatile long delayMillis = 0;
+        
+        private StubEndpoint(String... tokens) throws IOException {
+            this.tokens = List.of(tokens);
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/chat/completions", this::handle);
+            server.setExecutor(executor);
+            server.start();
+        }
+        
+        private String baseUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+        
+        private void handle(HttpExchange exchange) throws IOException {
+            try (exchange) {
+                hits.incrementAndGet();
+                boolean stream = objectMapper.readTree(exchange.getRequestBody()).path("stream").asBoolean();
+                Thread.sleep(delayMillis);
+                
+                if (status != 200) {
+                    exchange.sendResponseHeaders(status, -1);
+                    return;
+                }
+                
+                StringBuilder body = new StringBuilder();
+                if (stream) {
+                    exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+                    for (String token : tokens) {
+                        body.append("data: ").append(objectMapper.writeValueAsString(
+                                Map.of("choices", List.of(Map.of("delta", Map.of("content", token)))))).append("\n\n");
+                    }
+                    body.append("data: [DONE]\n\n");
+                } else {
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    body.append(objectMapper.writeValueAsString(
+                            Map.of("choices", List.of(Map.of("message", Map.of("content", String.join("", tokens)))))));
+                }
+                byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The client went away, e.g. a cancelled hedge
+            }
+        }
+        
+        private void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+}
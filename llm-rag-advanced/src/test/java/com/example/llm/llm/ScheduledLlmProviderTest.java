@@ -0,0 +1,63 @@
+package com.example.llm.llm;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ScheduledLlmProviderTest {
+    
+    private static final List<String> TEXTS = List.of("first text", "second text");
+    
+    private final LlmProvider delegate = mock(LlmProvider.class);
+    private final RequestScheduler scheduler = mock(RequestScheduler.class);
+    private final Tokenizer tokenizer = mock(Tokenizer.class);
+    private ScheduledLlmProvider provider;
+    
+    @BeforeEach
+    void setUp() {
+        when(scheduler.acquire(any(), anyInt())).thenReturn(Mono.empty());
+        when(tokenizer.countTokens(any())).thenReturn(2);
+        when(delegate.embed(anyList())).thenReturn(Mono.just(List.of(new float[]{1f}, new float[]{0f})));
+        provider = new ScheduledLlmProvider(delegate, scheduler, tokenizer, 100);
+    }
+    
+    @Test
+    void batchEmbeddingIsInteractiveByDefault() {
+        assertThat(provider.embed(TEXTS).block()).hasSize(2);
+        
+        verify(scheduler).acquire(RequestScheduler.Priority.INTERACTIVE, 4);
+    }
+    
+    @Test
+    void ingestionEmbeddingIsBackground() {
+        assertThat(provider.embedForIngestion(TEXTS).block()).hasSize(2);
+        
+        verify(scheduler).acquire(RequestScheduler.Priority.BACKGROUND, 4);
+    }
+    
+    @Test
+    void wrappersKeepIngestionPriority() {
+        LinkedHashMap<String, LlmProvider> providers = new LinkedHashMap<>();
+        providers.put("scheduled", provider);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        RoutingLlmProvider router = new RoutingLlmProvider(providers, 0.3, 5, Duration.ofSeconds(30),
+                false, 0.95, Duration.ZERO, 1, meterRegistry);
+        LlmProvider wrapped = new SingleFlightLlmProvider(router, new ObjectMapper(), meterRegistry);
+        
+        wrapped.embedForIngestion(TEXTS).block();
+        wrapped.embed(TEXTS).block();
+        
+        verify(scheduler).acquire(RequestScheduler.Priority.BACKGROUND, 4);
+        verify(scheduler).acquire(RequestScheduler.Priority.INTERACTIVE, 4);
+    }
+}
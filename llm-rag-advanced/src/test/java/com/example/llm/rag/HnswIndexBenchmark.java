@@ -0,0 +1,154 @@
+package com.example.llm.rag;
+
+import com.example.llm.util.VectorMath;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HNSW search for each vector quantization against an exact scan of the same vectors, plus the
+ * rescoring a quantized index does in VectorIndexService: over-fetch candidates, then rank them
+ * by their float vectors. Setup prints the recall of both against the exact top k and the heap the
+ * index vectors take; the NONE run gives the float32 figure to compare with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HnswIndexBenchmark {
+    
+    private static final int DIMENSION = 384;
+    private static final int VECTORS = 10_000;
+    private static final int CLUSTERS = 50;
+    private static final int QUERIES = 200;
+    private static final int K = 6;
+    private static final int EF_SEARCH = 64;
+    private static final int RESCORE_MULTIPLIER = 4;
+    
+    @Param({"NONE", "FLOAT16", "INT8"})
+    private HnswIndex.Quantization quantization;
+    
+    private HnswIndex index;
+    private final Map<UUID, float[]> normalizedById = new HashMap<>();
+    private UUID[] ids;
+    private float[][] normalized;
+    private float[][] queries;
+    private int next;
+    
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        float[][] centroids = new float[CLUSTERS][];
+        for (int c = 0; c < CLUSTERS; c++) {
+            centroids[c] = gaussian(random, 1.0);
+        }
+        
+        index = new HnswIndex(DIMENSION, 16, 200, quantization);
+        ids = new UUID[VECTORS];
+        normalized = new float[VECTORS][];
+        for (int i = 0; i < VECTORS; i++) {
+            float[] vector = offset(centroids[random.nextInt(CLUSTERS)], gaussian(random, 0.5));
+            ids[i] = new UUID(0L, i);
+            normalized[i] = normalize(vector);
+            normalizedById.put(ids[i], normalized[i]);
+            index.add(ids[i], vector);
+        }
+        
+        queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = normalize(offset(centroids[random.nextInt(CLUSTERS)], gaussian(random, 0.5)));
+        }
+        
+        int hits = 0;
+        int rescoredHits = 0;
+        for (float[] query : queries) {
+            Set<UUID> expected = new HashSet<>(exact(query));
+            for (HnswIndex.SearchResult result : index.search(query, K, EF_SEARCH)) {
+                if (expected.contains(result.getId())) {
+                    hits++;
+                }
+            }
+            for (UUID id : rescored(query)) {
+                if (expected.contains(id)) {
+                    rescoredHits++;
+                }
+            }
+        }
+        System.out.printf("%n%s: recall %.3f, rescored recall %.3f, vector bytes %d%n", quantization,
+                (double) hits / (QUERIES * K), (double) rescoredHits / (QUERIES * K), index.vectorBytes());
+    }
+    
+    @Benchmark
+    public List<HnswIndex.SearchResult> search() {
+        return index.search(nextQuery(), K, EF_SEARCH);
+    }
+    
+    @Benchmark
+    public List<UUID> searchRescored() {
+        return rescored(nextQuery());
+    }
+    
+    @Benchmark
+    public List<UUID> exactScan() {
+        return exact(nextQuery());
+    }
+    
+    private float[] nextQuery() {
+        float[] query = queries[next];
+        next = (next + 1) % QUERIES;
+        return query;
+    }
+    
+    private List<UUID> rescored(float[] query) {
+        int candidates = K * RESCORE_MULTIPLIER;
+        List<HnswIndex.SearchResult> hits = index.search(query, candidates, Math.max(EF_SEARCH, candidates));
+        List<UUID> ranked = new ArrayList<>(hits.size());
+        for (HnswIndex.SearchResult hit : hits) {
+            ranked.add(hit.getId());
+        }
+        ranked.sort(Comparator.comparingDouble((UUID id) -> -VectorMath.dot(query, normalizedById.get(id))));
+        return ranked.subList(0, Math.min(K, ranked.size()));
+    }
+    
+    private List<UUID> exact(float[] query) {
+        // Min-heap of the best k so far
+        PriorityQueue<Integer> best = new PriorityQueue<>(K + 1,
+                Comparator.comparingDouble(i -> VectorMath.dot(query, normalized[i])));
+        for (int i = 0; i < VECTORS; i++) {
+            best.add(i);
+            if (best.size() > K) {
+                best.poll();
+            }
+        }
+        List<UUID> result = new ArrayList<>(K);
+        for (int i : best) {
+            result.add(ids[i]);
+        }
+        return result;
+    }
+    
+    private static float[] gaussian(Random random, double scale) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) (random.nextGaussian() * scale);
+        }
+        return vector;
+    }
+    
+    private static float[] offset(float[] centroid, float[] noise) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = centroid[i] + noise[i];
+        }
+        return vector;
+    }
+    
+    private static float[] normalize(float[] vector) {
+        float[] normalized = new float[vector.length];
+        VectorMath.normalizeInto(vector, normalized, 0);
+        return normalized;
+    }
+}
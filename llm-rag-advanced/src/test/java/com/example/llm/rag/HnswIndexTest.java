@@ -0,0 +1,80 @@
+package com.example.llm.rag;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HnswIndexTest {
+    
+    private static final int DIMENSION = 16;
+    private static final int VECTORS = 1_000;
+    
+    private final Random random = new Random(7);
+    
+    @Test
+    void returnsKLiveResultsWhenMostNodesAreDeleted() {
+        HnswIndex index = new HnswIndex(DIMENSION, 8, 64);
+        List<UUID> ids = fill(index);
+        Set<UUID> removed = new HashSet<>();
+        // Well past the usual rebuild ratio, so most of the ef candidates are tombstones
+        for (int i = 0; i < VECTORS; i++) {
+            if (i % 10 != 0) {
+                index.remove(ids.get(i));
+                removed.add(ids.get(i));
+            }
+        }
+        
+        for (int q = 0; q < 20; q++) {
+            List<HnswIndex.SearchResult> results = index.search(randomVector(), 10, 10);
+            
+            assertThat(results).hasSize(10);
+            assertThat(results).extracting(HnswIndex.SearchResult::getId).doesNotContainAnyElementsOf(removed);
+        }
+    }
+    
+    @Test
+    void returnsEveryLiveNodeWhenFewerThanKRemain() {
+        HnswIndex index = new HnswIndex(DIMENSION, 8, 64);
+        List<UUID> ids = fill(index);
+        for (UUID id : ids.subList(3, ids.size())) {
+            index.remove(id);
+        }
+        
+        List<HnswIndex.SearchResult> results = index.search(randomVector(), 10, 10);
+        
+        assertThat(results).extracting(HnswIndex.SearchResult::getId).containsExactlyInAnyOrderElementsOf(ids.subList(0, 3));
+    }
+    
+    @Test
+    void returnsNothingOnceEveryNodeIsDeleted() {
+        HnswIndex index = new HnswIndex(DIMENSION, 8, 64);
+        fill(index).forEach(index::remove);
+        
+        assertThat(index.search(randomVector(), 10, 10)).isEmpty();
+    }
+    
+    private List<UUID> fill(HnswIndex index) {
+        List<UUID> ids = new ArrayList<>(VECTORS);
+        for (int i = 0; i < VECTORS; i++) {
+            UUID id = new UUID(0L, i + 1);
+            index.add(id, randomVector());
+            ids.add(id);
+        }
+        return ids;
+    }
+    
+    private float[] randomVector() {
+        float[] vector = new float[DIMENSION];
+        for (int d = 0; d < DIMENSION; d++) {
+            vector[d] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
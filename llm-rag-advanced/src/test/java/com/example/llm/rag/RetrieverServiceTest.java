@@ -0,0 +1,225 @@
+package com.example.llm.rag;
+
+import com.example.llm.llm.Tokenizer;
+import com.example.llm.repository.ChunkRepository;
+import com.example.llm.util.VectorCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Counts the statements a retrieval issues against the chunk repository, which stands in for the
+ * database: every repository call is one round trip. The repository fails any call that is not
+ * stubbed, so a per-chunk or per-document lookup (findById and the like) breaks the test rather
+ * than going unnoticed. Both the HNSW path and the pgvector fallback used until the index is built
+ * are covered.
+ */
+@ExtendWith(MockitoExtension.class)
+class RetrieverServiceTest {
+    
+    private static final int DIMENSION = 8;
+    private static final int CHUNKS = 20;
+    private static final int TOP_K = 2;
+    private static final int CANDIDATES = TOP_K * 4;
+    private static final String QUERY = "how do I rotate the ERR_4021 signing key";
+    
+    private final ChunkRepository chunkRepository = mock(ChunkRepository.class, invocation -> {
+        throw new AssertionError("Unexpected repository call: " + invocation);
+    });
+    
+    @Mock
+    private EmbeddingService embeddingService;
+    
+    @Mock
+    private RetrievalCache retrievalCache;
+    
+    @Mock
+    private Tokenizer tokenizer;
+    
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Map<UUID, float[]> vectors = new LinkedHashMap<>();
+    private final UUID documentId = UUID.randomUUID();
+    private VectorIndexService vectorIndexService;
+    
+    @BeforeEach
+    void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < CHUNKS; i++) {
+            float[] vector = new float[DIMENSION];
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] = (float) random.nextGaussian();
+            }
+            vectors.put(new UUID(0L, i + 1), vector);
+        }
+        
+        List<Object[]> page = new ArrayList<>();
+        vectors.forEach((id, vector) -> page.add(new Object[]{id, documentId, VectorCodec.toBinary(vector)}));
+        // One page from the start, then nothing after it, for every rebuild
+        doAnswer(invocation -> new UUID(0L, 0L).equals(invocation.getArgument(0)) ? page : List.of())
+                .when(chunkRepository).findVectorsAfter(any(), anyInt());
+        doAnswer(invocation -> chunkRows(invocation.getArgument(0), false))
+                .when(chunkRepository).findChunksByIds(anyCollection());
+        doAnswer(invocation -> chunkRows(invocation.getArgument(0), true))
+                .when(chunkRepository).findChunksWithVectorsByIds(anyCollection());
+        doAnswer(invocation -> similarRows(invocation.getArgument(1)))
+                .when(chunkRepository).findSimilarChunks(any(), anyInt());
+        doReturn(List.of()).when(chunkRepository).findKeywordMatches(anyString(), anyInt());
+        
+        vectorIndexService = vectorIndexService("int8");
+        vectorIndexService.rebuild();
+        clearInvocations(chunkRepository);
+        
+        lenient().when(retrievalCache.key(anyString(), anyInt())).thenReturn("retrieval:key");
+        lenient().when(retrievalCache.get(anyString())).thenReturn(null);
+        lenient().when(embeddingService.embedQuery(QUERY)).thenReturn(Mono.just(vectors.values().iterator().next()));
+    }
+    
+    @Test
+    void hnswSearchIssuesOneStatement() {
+        List<RetrieverService.ContextSnippet> context = retrieverService(vectorIndexService, false)
+                .retrieveContext(QUERY, TOP_K).block();
+        
+        assertHasJoinedDocumentNames(context);
+        verify(chunkRepository).findChunksWithVectorsByIds(anyCollection());
+        verifyNoMoreInteractions(chunkRepository);
+    }
+    
+    @Test
+    void hybridHnswSearchIssuesTwoStatements() {
+        List<RetrieverService.ContextSnippet> context = retrieverService(vectorIndexService, true)
+                .retrieveContext(QUERY, TOP_K).block();
+        
+        assertHasJoinedDocumentNames(context);
+        verify(chunkRepository).findChunksWithVectorsByIds(anyCollection());
+        verify(chunkRepository).findKeywordMatches(QUERY, CANDIDATES);
+        verifyNoMoreInteractions(chunkRepository);
+    }
+    
+    @Test
+    void fallbackSearchIssuesOneStatementUntilIndexIsBuilt() {
+        VectorIndexService unbuilt = vectorIndexService("int8");
+        assertThat(unbuilt.isReady()).isFalse();
+        
+        List<RetrieverService.ContextSnippet> context = retrieverService(unbuilt, false)
+                .retrieveContext(QUERY, TOP_K).block();
+        
+        assertHasJoinedDocumentNames(context);
+        verify(chunkRepository).findSimilarChunks(any(), eq(CANDIDATES));
+        verifyNoMoreInteractions(chunkRepository);
+    }
+    
+    @Test
+    void hybridFallbackSearchIssuesTwoStatementsUntilIndexIsBuilt() {
+        List<RetrieverService.ContextSnippet> context = retrieverService(vectorIndexService("int8"), true)
+                .retrieveContext(QUERY, TOP_K).block();
+        
+        assertHasJoinedDocumentNames(context);
+        verify(chunkRepository).findSimilarChunks(any(), eq(CANDIDATES));
+        verify(chunkRepository).findKeywordMatches(QUERY, CANDIDATES);
+        verifyNoMoreInteractions(chunkRepository);
+    }
+    
+    @Test
+    void rescoresQuantizedCandidatesWithTheVectorsLoadedAlongsideTheRows() {
+        Map.Entry<UUID, float[]> first = vectors.entrySet().iterator().next();
+        
+        List<Object[]> results = vectorIndexService.findSimilarChunks(first.getValue(), 3);
+        
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0)[0]).isEqualTo(first.getKey());
+        // Exact cosine similarity of a vector with itself; int8 codes alone would not round to it
+        assertThat(((Number) results.get(0)[5]).doubleValue()).isCloseTo(1.0, within(1e-5));
+        assertThat(results.get(0)[6]).isEqualTo("guide.md");
+        verify(chunkRepository).findChunksWithVectorsByIds(anyCollection());
+        verifyNoMoreInteractions(chunkRepository);
+    }
+    
+    @Test
+    void unquantizedIndexLoadsRowsWithoutVectors() {
+        VectorIndexService unquantized = vectorIndexService("none");
+        unquantized.rebuild();
+        clearInvocations(chunkRepository);
+        Map.Entry<UUID, float[]> first = vectors.entrySet().iterator().next();
+        
+        List<Object[]> results = unquantized.findSimilarChunks(first.getValue(), 3);
+        
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0)[0]).isEqualTo(first.getKey());
+        assertThat(results.get(0)[6]).isEqualTo("guide.md");
+        // The index vector stands in for the stored one, for MMR
+        assertThat(results.get(0)[7]).isInstanceOf(float[].class);
+        verify(chunkRepository).findChunksByIds(anyCollection());
+        verifyNoMoreInteractions(chunkRepository);
+    }
+    
+    private void assertHasJoinedDocumentNames(List<RetrieverService.ContextSnippet> context) {
+        assertThat(context).hasSize(TOP_K);
+        assertThat(context).extracting(RetrieverService.ContextSnippet::getDocumentName).containsOnly("guide.md");
+    }
+    
+    private VectorIndexService vectorIndexService(String quantization) {
+        VectorIndexService service = new VectorIndexService(chunkRepository, meterRegistry);
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "dimension", DIMENSION);
+        ReflectionTestUtils.setField(service, "m", 8);
+        ReflectionTestUtils.setField(service, "efConstruction", 64);
+        ReflectionTestUtils.setField(service, "efSearch", 32);
+        ReflectionTestUtils.setField(service, "loadPageSize", 1000);
+        ReflectionTestUtils.setField(service, "rebuildDeletedRatio", 0.3);
+        ReflectionTestUtils.setField(service, "quantization", quantization);
+        ReflectionTestUtils.setField(service, "rescoreMultiplier", 4);
+        service.init();
+        return service;
+    }
+    
+    private RetrieverService retrieverService(VectorIndexService index, boolean hybridEnabled) {
+        RetrieverService service = new RetrieverService(chunkRepository, embeddingService, index,
+                retrievalCache, tokenizer, meterRegistry);
+        ReflectionTestUtils.setField(service, "defaultTopK", TOP_K);
+        ReflectionTestUtils.setField(service, "maxContextTokens", 2500);
+        ReflectionTestUtils.setField(service, "mmrLambda", 0.7);
+        ReflectionTestUtils.setField(service, "mmrFetchMultiplier", 4);
+        ReflectionTestUtils.setField(service, "hybridEnabled", hybridEnabled);
+        ReflectionTestUtils.setField(service, "rrfK", 60);
+        service.init();
+        return service;
+    }
+    
+    // Laid out like ChunkRepository.findChunksByIds, or findChunksWithVectorsByIds with the vector
+    private List<Object[]> chunkRows(Collection<UUID> ids, boolean withVectors) {
+        List<Object[]> rows = new ArrayList<>();
+        for (UUID id : ids) {
+            int index = (int) id.getLeastSignificantBits() - 1;
+            rows.add(withVectors
+                    ? new Object[]{id, documentId, index, "chunk " + index, "{}", "guide.md", VectorCodec.toBinary(vectors.get(id))}
+                    : new Object[]{id, documentId, index, "chunk " + index, "{}", "guide.md"});
+        }
+        return rows;
+    }
+    
+    // Laid out like ChunkRepository.findSimilarChunks; the order is irrelevant to the statement count
+    private List<Object[]> similarRows(int limit) {
+        List<Object[]> rows = new ArrayList<>();
+        for (UUID id : vectors.keySet()) {
+            if (rows.size() == limit) {
+                break;
+            }
+            int index = (int) id.getLeastSignificantBits() - 1;
+            rows.add(new Object[]{id, documentId, index, "chunk " + index, "{}", 1.0 - index * 0.01, "guide.md",
+                    VectorCodec.toBinary(vectors.get(id))});
+        }
+        return rows;
+    }
+}
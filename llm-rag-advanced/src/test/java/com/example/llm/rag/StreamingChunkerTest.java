@@ -0,0 +1,160 @@
+package com.example.llm.rag;
+
+import com.example.llm.llm.BpeTokenizer;
+import com.example.llm.llm.BpeVocabularies;
+import com.example.llm.llm.Tokenizer;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamingChunkerTest {
+    
+    // One token per character, so budgets can be checked on text lengths
+    private static final Tokenizer CHARACTERS = new Tokenizer() {
+        @Override
+        public String getName() {
+            return "characters";
+        }
+        
+        @Override
+        public int countTokens(CharSequence text) {
+            return text.length();
+        }
+        
+        @Override
+        public String truncate(String text, int maxTokens) {
+            return text.substring(0, Math.min(text.length(), Math.max(maxTokens, 0)));
+        }
+    };
+    
+    private final List<TextSplitter.TextChunk> chunks = new ArrayList<>();
+    
+    @Test
+    void cutsAtLastSentenceEndWithinBudget() {
+        StreamingChunker chunker = new StreamingChunker(CHARACTERS, 30, 0, chunks::add);
+        
+        chunker.append("Aaaa bbbb cccc dddd. Eeee ffff gggg hhhh iiii.");
+        int count = chunker.finish();
+        
+        assertThat(texts()).containsExactly("Aaaa bbbb cccc dddd.", "Eeee ffff gggg hhhh iiii.");
+        assertThat(count).isEqualTo(2);
+    }
+    
+    @Test
+    void prefersParagraphBreakOverSentenceEnd() {
+        StreamingChunker chunker = new StreamingChunker(CHARACTERS, 30, 0, chunks::add);
+        
+        chunker.append("Aaaa bbbb cccc.");
+        chunker.paragraphBreak();
+        chunker.append("Dddd eeee. Ffff gggg hhhh");
+        chunker.finish();
+        
+        assertThat(texts()).containsExactly("Aaaa bbbb cccc.", "Dddd eeee. Ffff gggg hhhh");
+    }
+    
+    @Test
+    void cutsBeforeTheWordThatDoesNotFitWithoutBreaks() {
+        StreamingChunker chunker = new StreamingChunker(CHARACTERS, 12, 0, chunks::add);
+        
+        chunker.append("aaa bbb ccc ddd eee");
+        chunker.finish();
+        
+        assertThat(texts()).containsExactly("aaa bbb ccc", "ddd eee");
+    }
+    
+    @Test
+    void neverExceedsTokenBudget() {
+        StreamingChunker chunker = new StreamingChunker(CHARACTERS, 50, 10, chunks::add);
+        
+        chunker.append(BpeVocabularies.corpus(20_000, 7));
+        chunker.finish();
+        
+        assertThat(chunks).hasSizeGreaterThan(400);
+        assertThat(chunks).allSatisfy(chunk -> assertThat(chunk.getText().length()).isBetween(1, 50));
+    }
+    
+    @Test
+    void neverExceedsTokenBudgetOfBpeTokenizer() {
+        BpeTokenizer tokenizer = BpeVocabularies.tokenizer(BpeVocabularies.train(BpeVocabularies.corpus(20_000, 8), 200));
+        StreamingChunker chunker = new StreamingChunker(tokenizer, 64, 16, chunks::add);
+        
+        chunker.append(BpeVocabularies.corpus(50_000, 9));
+        chunker.finish();
+        
+        assertThat(chunks).isNotEmpty();
+        assertThat(chunks).allSatisfy(chunk -> assertThat(tokenizer.countTokens(chunk.getText())).isLessThanOrEqualTo(64));
+    }
+    
+    @Test
+    void carriesLastWordsOfPreviousChunkWithinOverlap() {
+        // Every word is four tokens with its separator, so two words fit the overlap of ten
+        StreamingChunker chunker = new StreamingChunker(CHARACTERS, 40, 10, chunks::add);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append(String.format("w%02d ", i));
+        }
+        
+        chunker.append(text);
+        chunker.finish();
+        
+        assertThat(chunks).hasSizeGreaterThan(5);
+        for (int i = 1; i < chunks.size(); i++) {
+            List<String> previous = words(chunks.get(i - 1));
+            List<String> next = words(chunks.get(i));
+            assertThat(next.subList(0, 2)).isEqualTo(previous.subList(previous.size() - 2, previous.size()));
+        }
+        assertThat(words(chunks.get(chunks.size() - 1))).endsWith("w99");
+    }
+    
+    @Test
+    void capsOverlapAtQuarterOfChunk() {
+        StreamingChunker chunker = new StreamingChunker(CHARACTERS, 40, 100, chunks::add);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            text.append(String.format("w%02d ", i));
+        }
+        
+        chunker.append(text);
+        chunker.finish();
+        
+        for (int i = 1; i < chunks.size(); i++) {
+            List<String> previous = words(chunks.get(i - 1));
+            assertThat(words(chunks.get(i)).get(2)).isNotEqualTo(previous.get(previous.size() - 3));
+        }
+    }
+    
+    @Test
+    void splitsOversizedWordAtTokenBoundaries() {
+        StreamingChunker chunker = new StreamingChunker(CHARACTERS, 10, 0, chunks::add);
+        
+        chunker.append("short ");
+        chunker.append("x".repeat(25));
+        chunker.append(" tail");
+        chunker.finish();
+        
+        assertThat(texts()).containsExactly("short", "x".repeat(10), "x".repeat(10), "x".repeat(5), "tail");
+        assertThat(chunks).extracting(TextSplitter.TextChunk::getIndex).containsExactly(0, 1, 2, 3, 4);
+    }
+    
+    @Test
+    void collapsesWhitespaceButKeepsParagraphBreaks() {
+        StreamingChunker chunker = new StreamingChunker(CHARACTERS, 100, 0, chunks::add);
+        
+        chunker.append("  one \t two\nthree\n\n\n  four  ");
+        chunker.finish();
+        
+        assertThat(texts()).containsExactly("one two\nthree\n\nfour");
+    }
+    
+    private List<String> texts() {
+        return chunks.stream().map(TextSplitter.TextChunk::getText).collect(java.util.stream.Collectors.toList());
+    }
+    
+    private static List<String> words(TextSplitter.TextChunk chunk) {
+        return Arrays.asList(chunk.getText().split("\\s+"));
+    }
+}
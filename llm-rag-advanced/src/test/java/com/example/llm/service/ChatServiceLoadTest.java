@@ -0,0 +1,144 @@
+package com.example.llm.service;
+
+import com.example.llm.dto.ChatRequest;
+import com.example.llm.entity.User;
+import com.example.llm.llm.ChatPrompt;
+import com.example.llm.llm.LlmProvider;
+import com.example.llm.llm.Tokenizer;
+import com.example.llm.llm.ToolCallParser;
+import com.example.llm.rag.PromptBuilder;
+import com.example.llm.rag.ResponseCache;
+import com.example.llm.rag.RetrieverService;
+import com.example.llm.repository.ChatSessionRepository;
+import com.example.llm.tools.ToolRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Many concurrent chat streams served from a small pool standing in for the servlet request threads.
+ * Provider tokens arrive slowly and every store call blocks briefly, like the real model and JDBC. A
+ * chat path that pinned its request thread would need requests * latency / threads to get through.
+ */
+class ChatServiceLoadTest {
+    
+    private static final int REQUEST_THREADS = 4;
+    private static final int REQUESTS = 400;
+    private static final Duration TOKEN_DELAY = Duration.ofMillis(20);
+    private static final long STORE_MILLIS = 5;
+    
+    private final Queue<String> blockingThreads = new ConcurrentLinkedQueue<>();
+    private ExecutorService requestThreads;
+    private ChatService chatService;
+    
+    @BeforeEach
+    void setUp() {
+        AtomicInteger threadCount = new AtomicInteger();
+        requestThreads = Executors.newFixedThreadPool(REQUEST_THREADS,
+                runnable -> new Thread(runnable, "request-" + threadCount.incrementAndGet()));
+        
+        LlmProvider llmProvider = mock(LlmProvider.class);
+        when(llmProvider.chatStream(any())).thenAnswer(invocation ->
+                Mono.just(Flux.just("Hello", " from", " the", " model").delayElements(TOKEN_DELAY)));
+        
+        PromptBuilder promptBuilder = mock(PromptBuilder.class);
+        when(promptBuilder.buildPrompt(anyString(), anyList(), any(), anyList(), anyList()))
+                .thenAnswer(invocation -> new ChatPrompt("system", invocation.getArgument(0), null, List.of(), List.of(), 0.7, 100));
+        
+        ResponseCache responseCache = mock(ResponseCache.class);
+        when(responseCache.key(anyString(), anyList(), any())).thenReturn(Mono.empty());
+        
+        ChatHistoryStore chatHistoryStore = mock(ChatHistoryStore.class);
+        when(chatHistoryStore.recent(any(), anyInt())).thenAnswer(invocation -> {
+            block();
+            return List.of();
+        });
+        doAnswer(invocation -> {
+            block();
+            return null;
+        }).when(chatHistoryStore).append(any(), anyString(), anyString(), anyInt(), anyInt());
+        doAnswer(invocation -> {
+            block();
+            return null;
+        }).when(chatHistoryStore).flush(any());
+        
+        ConversationSummarizer conversationSummarizer = mock(ConversationSummarizer.class);
+        when(conversationSummarizer.get(any())).thenAnswer(invocation -> {
+            block();
+            return ConversationSummarizer.SessionSummary.NONE;
+        });
+        
+        chatService = new ChatService(llmProvider, mock(RetrieverService.class), promptBuilder, responseCache,
+                mock(ToolRegistry.class), new ToolCallParser(new ObjectMapper()), mock(Tokenizer.class),
+                mock(ChatSessionRepository.class), chatHistoryStore, conversationSummarizer);
+        ReflectionTestUtils.setField(chatService, "maxToolCalls", 3);
+    }
+    
+    @AfterEach
+    void tearDown() {
+        requestThreads.shutdownNow();
+    }
+    
+    @Test
+    void streamsDoNotPinRequestThreads() throws Exception {
+        User user = new User();
+        user.setUsername("load");
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        AtomicInteger deltas = new AtomicInteger();
+        
+        long start = System.nanoTime();
+        List<Future<?>> handled = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            ChatRequest request = new ChatRequest(UUID.randomUUID(), "question " + i, false, null, List.of());
+            handled.add(requestThreads.submit(() -> chatService.chatStream(request, user)
+                    .subscribe(response -> {
+                        if (response.getType().equals("delta")) {
+                            deltas.incrementAndGet();
+                        } else if (response.getType().equals("error")) {
+                            failures.add(response.getError());
+                        }
+                    }, error -> {
+                        failures.add(error.toString());
+                        done.countDown();
+                    }, done::countDown)));
+        }
+        for (Future<?> future : handled) {
+            future.get();
+        }
+        long handedOffMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        assertThat(done.await(30, TimeUnit.SECONDS)).isTrue();
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        assertThat(failures).isEmpty();
+        assertThat(deltas.get()).isEqualTo(REQUESTS * 4);
+        // No blocking store call ran on a request thread
+        assertThat(blockingThreads).isNotEmpty().noneMatch(thread -> thread.startsWith("request-"));
+        // Pinned threads would take REQUESTS * (4 tokens + 5 store calls) / REQUEST_THREADS, about 9.5 s
+        long pinnedMillis = REQUESTS * (4 * TOKEN_DELAY.toMillis() + 5 * STORE_MILLIS) / REQUEST_THREADS;
+        assertThat(handedOffMillis).isLessThan(pinnedMillis / 10);
+        assertThat(totalMillis).isLessThan(pinnedMillis / 2);
+    }
+    
+    private void block() throws InterruptedException {
+        blockingThreads.add(Thread.currentThread().getName());
+        Thread.sleep(STORE_MILLIS);
+    }
+}
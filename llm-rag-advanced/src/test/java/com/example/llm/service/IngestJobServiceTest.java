@@ -0,0 +1,277 @@
+package com.example.llm.service;
+
+import com.example.llm.dto.IngestJobDTO;
+import com.example.llm.entity.Chunk;
+import com.example.llm.entity.Document;
+import com.example.llm.entity.IngestJob;
+import com.example.llm.entity.User;
+import com.example.llm.rag.EmbeddingBatcher;
+import com.example.llm.rag.EmbeddingService;
+import com.example.llm.rag.RetrievalCache;
+import com.example.llm.rag.TextSplitter;
+import com.example.llm.rag.VectorIndexService;
+import com.example.llm.repository.ChunkBatchRepository;
+import com.example.llm.repository.DocumentRepository;
+import com.example.llm.repository.IngestJobRepository;
+import com.example.llm.util.HashingUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Job lifecycle across a shutdown, with the real IngestService over mocked storage and an embedding
+ * call that can be held open, so the interrupt reaches the same blocking call as in production.
+ * Stored chunks are kept in a map so an update can match what an earlier attempt inserted.
+ */
+class IngestJobServiceTest {
+    
+    private static final List<String> CHUNKS = List.of("first chunk", "second chunk", "third chunk");
+    
+    @TempDir
+    Path stagingDir;
+    
+    private final Map<UUID, IngestJob> jobs = new ConcurrentHashMap<>();
+    private final Map<UUID, Document> documents = new ConcurrentHashMap<>();
+    private final Map<UUID, ChunkBatchRepository.StoredChunk> storedChunks = new ConcurrentHashMap<>();
+    private final List<String> embeddedTexts = Collections.synchronizedList(new ArrayList<>());
+    private final IngestJobRepository ingestJobRepository = mock(IngestJobRepository.class);
+    private final DocumentRepository documentRepository = mock(DocumentRepository.class);
+    private final ChunkBatchRepository chunkBatchRepository = mock(ChunkBatchRepository.class);
+    private final EmbeddingService embeddingService = mock(EmbeddingService.class);
+    private final EmbeddingBatcher embeddingBatcher = mock(EmbeddingBatcher.class);
+    private final List<IngestJobService> started = new ArrayList<>();
+    private volatile Duration embeddingDelay = Duration.ZERO;
+    private volatile Predicate<List<String>> delayed = texts -> true;
+    private volatile CountDownLatch embeddingStarted = new CountDownLatch(1);
+    private IngestService ingestService;
+    private User user;
+    
+    @BeforeEach
+    void setUp() {
+        when(ingestJobRepository.save(any())).thenAnswer(invocation -> {
+            IngestJob job = invocation.getArgument(0);
+            if (job.getId() == null) {
+                job.setId(UUID.randomUUID());
+            }
+            job.setUpdatedAt(OffsetDateTime.now());
+            jobs.put(job.getId(), job);
+            return job;
+        });
+        when(ingestJobRepository.findById(any())).thenAnswer(invocation -> Optional.ofNullable(jobs.get(invocation.<UUID>getArgument(0))));
+        when(ingestJobRepository.findByStatusInOrderByCreatedAtAsc(anyCollection())).thenAnswer(invocation -> {
+            Collection<IngestJob.Status> statuses = invocation.getArgument(0);
+            return jobs.values().stream()
+                    .filter(job -> statuses.contains(job.getStatus()))
+                    .collect(java.util.stream.Collectors.toList());
+        });
+        
+        when(documentRepository.findByChecksum(anyString())).thenReturn(Optional.empty());
+        when(documentRepository.findById(any())).thenAnswer(invocation -> Optional.ofNullable(documents.get(invocation.<UUID>getArgument(0))));
+        when(documentRepository.saveAndFlush(any())).thenAnswer(invocation -> save(invocation.getArgument(0)));
+        when(documentRepository.save(any())).thenAnswer(invocation -> save(invocation.getArgument(0)));
+        
+        doAnswer(invocation -> {
+            invocation.<List<Chunk>>getArgument(0).forEach(chunk -> storedChunks.put(chunk.getId(),
+                    new ChunkBatchRepository.StoredChunk(chunk.getId(), chunk.getChunkIndex(), chunk.getContentHash())));
+            return null;
+        }).when(chunkBatchRepository).insertAll(anyList());
+        when(chunkBatchRepository.findStoredChunks(any())).thenAnswer(invocation -> new ArrayList<>(storedChunks.values()));
+        doAnswer(invocation -> {
+            invocation.<Collection<UUID>>getArgument(0).forEach(storedChunks::remove);
+            return null;
+        }).when(chunkBatchRepository).deleteAll(anyCollection());
+        
+        TextSplitter textSplitter = mock(TextSplitter.class);
+        when(textSplitter.streamChunks(any(), any(), any())).thenAnswer(invocation -> {
+            Consumer<TextSplitter.TextChunk> consumer = invocation.getArgument(2);
+            for (int i = 0; i < CHUNKS.size(); i++) {
+                consumer.accept(new TextSplitter.TextChunk(CHUNKS.get(i), i));
+            }
+            return CHUNKS.size();
+        });
+        
+        when(embeddingService.getBatchSize()).thenReturn(2);
+        when(embeddingService.getConcurrency()).thenReturn(1);
+        when(embeddingBatcher.embed(anyList())).thenAnswer(invocation -> {
+            List<String> texts = invocation.getArgument(0);
+            List<float[]> embeddings = new ArrayList<>();
+            texts.forEach(text -> embeddings.add(new float[]{1f, 0f}));
+            embeddedTexts.addAll(texts);
+            if (!delayed.test(texts)) {
+                return Mono.just(embeddings);
+            }
+            embeddingStarted.countDown();
+            return Mono.just(embeddings).delayElement(embeddingDelay);
+        });
+        
+        TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                invocation.<TransactionCallback<?>>getArgument(0).doInTransaction(null));
+        doAnswer(invocation -> {
+            invocation.<Consumer<Object>>getArgument(0).accept(null);
+            return null;
+        }).when(transactionTemplate).executeWithoutResult(any());
+        
+        ingestService = new IngestService(documentRepository, chunkBatchRepository, textSplitter, embeddingService,
+                embeddingBatcher, mock(VectorIndexService.class), mock(RetrievalCache.class), transactionTemplate);
+        
+        user = new User("ingest", "hash");
+        user.setId(UUID.randomUUID());
+    }
+    
+    @AfterEach
+    void tearDown() {
+        started.forEach(IngestJobService::stop);
+    }
+    
+    @Test
+    void stopLetsRunningJobFinish() throws Exception {
+        embeddingDelay = Duration.ofMillis(300);
+        IngestJobService jobService = start(5);
+        
+        IngestJobDTO submitted = jobService.submit(upload("content"), List.of(), user);
+        assertThat(embeddingStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        jobService.stop();
+        
+        IngestJob job = jobs.get(submitted.getId());
+        assertThat(job.getStatus()).isEqualTo(IngestJob.Status.DONE);
+        assertThat(Files.exists(Paths.get(job.getStagedPath()))).isFalse();
+    }
+    
+    @Test
+    void jobInterruptedByShutdownIsResumedOnNextStart() throws Exception {
+        // Longer than the shutdown timeout, so stop has to interrupt the worker
+        embeddingDelay = Duration.ofMinutes(10);
+        IngestJobService jobService = start(1);
+        
+        IngestJobDTO submitted = jobService.submit(upload("content"), List.of(), user);
+        assertThat(embeddingStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        jobService.stop();
+        
+        IngestJob job = jobs.get(submitted.getId());
+        UUID partialDocumentId = job.getDocumentId();
+        assertThat(job.getStatus()).isEqualTo(IngestJob.Status.EMBEDDING);
+        assertThat(job.getError()).isNull();
+        assertThat(partialDocumentId).isNotNull();
+        assertThat(Files.exists(Paths.get(job.getStagedPath()))).isTrue();
+        verify(documentRepository, never()).deleteById(any());
+        
+        embeddingDelay = Duration.ZERO;
+        start(5);
+        
+        awaitStatus(job.getId(), IngestJob.Status.DONE);
+        // Recovery dropped the partial document and ingested the file again
+        verify(documentRepository).deleteById(partialDocumentId);
+        assertThat(job.getDocumentId()).isNotNull().isNotEqualTo(partialDocumentId);
+        assertThat(job.getAttempts()).isEqualTo(2);
+        assertThat(job.getProcessedChunks()).isEqualTo(CHUNKS.size());
+        assertThat(Files.exists(Paths.get(job.getStagedPath()))).isFalse();
+    }
+    
+    @Test
+    void updateInterruptedByShutdownIsResumedOnNextStart() throws Exception {
+        Document document = save(new Document("notes.txt", "text/plain", 7L, "old checksum"));
+        UUID keptChunkId = storeChunk(document.getId(), 0, "first chunk");
+        UUID removedChunkId = storeChunk(document.getId(), 1, "removed chunk");
+        // One chunk per window, so the second chunk is stored before the third one hangs
+        when(embeddingService.getBatchSize()).thenReturn(1);
+        delayed = texts -> texts.contains("third chunk");
+        embeddingDelay = Duration.ofMinutes(10);
+        IngestJobService jobService = start(1);
+        
+        IngestJobDTO submitted = jobService.submitUpdate(document.getId(), upload("new content"), List.of(), user);
+        assertThat(embeddingStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        jobService.stop();
+        
+        IngestJob job = jobs.get(submitted.getId());
+        assertThat(job.getStatus()).isEqualTo(IngestJob.Status.EMBEDDING);
+        assertThat(job.getError()).isNull();
+        assertThat(Files.exists(Paths.get(job.getStagedPath()))).isTrue();
+        // Neither the chunks inserted so far nor the old ones were touched
+        verify(chunkBatchRepository, never()).deleteAll(anyCollection());
+        assertThat(storedChunks).hasSize(3);
+        assertThat(document.getChecksum()).isEqualTo("old checksum");
+        
+        embeddingDelay = Duration.ZERO;
+        start(5);
+        
+        awaitStatus(job.getId(), IngestJob.Status.DONE);
+        verify(documentRepository, never()).deleteById(any());
+        assertThat(job.getDocumentId()).isEqualTo(document.getId());
+        assertThat(job.getAttempts()).isEqualTo(2);
+        assertThat(document.getChecksum()).isNotEqualTo("old checksum");
+        // The rerun matched the chunk stored before the interrupt instead of embedding it again
+        assertThat(embeddedTexts).containsOnlyOnce("second chunk").doesNotContain("first chunk");
+        assertThat(storedChunks).containsKey(keptChunkId).doesNotContainKey(removedChunkId);
+        assertThat(storedChunks.values())
+                .extracting(ChunkBatchRepository.StoredChunk::getContentHash)
+                .containsExactlyInAnyOrder(CHUNKS.stream().map(IngestJobServiceTest::hash).toArray(String[]::new));
+        assertThat(Files.exists(Paths.get(job.getStagedPath()))).isFalse();
+    }
+    
+    private IngestJobService start(long shutdownTimeoutSeconds) {
+        IngestJobService jobService = new IngestJobService(ingestJobRepository, ingestService, new ObjectMapper());
+        ReflectionTestUtils.setField(jobService, "workers", 1);
+        ReflectionTestUtils.setField(jobService, "stagingDir", stagingDir.toString());
+        ReflectionTestUtils.setField(jobService, "maxAttempts", 3);
+        ReflectionTestUtils.setField(jobService, "maxActiveJobsPerUser", 100);
+        ReflectionTestUtils.setField(jobService, "shutdownTimeoutSeconds", shutdownTimeoutSeconds);
+        jobService.start();
+        started.add(jobService);
+        return jobService;
+    }
+    
+    private MockMultipartFile upload(String content) {
+        return new MockMultipartFile("file", "notes.txt", "text/plain", content.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private Document save(Document document) {
+        if (document.getId() == null) {
+            document.setId(UUID.randomUUID());
+        }
+        documents.put(document.getId(), document);
+        return document;
+    }
+    
+    private UUID storeChunk(UUID documentId, int index, String text) {
+        UUID id = UUID.randomUUID();
+        storedChunks.put(id, new ChunkBatchRepository.StoredChunk(id, index, hash(text)));
+        return id;
+    }
+    
+    private static String hash(String text) {
+        return HashingUtils.calculateSHA256(text.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void awaitStatus(UUID jobId, IngestJob.Status status) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (jobs.get(jobId).getStatus() != status && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(jobs.get(jobId).getStatus()).isEqualTo(status);
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.llm.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding and encoding of one embedding in the pgvector text form, which a plain vector column
+ * is read as, against the vector_send binary form that mapped columns and native queries read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorCodecBenchmark {
+    
+    @Param({"384", "1536"})
+    private int dimension;
+    
+    private float[] vector;
+    private String text;
+    private byte[] binary;
+    
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        text = VectorCodec.toText(vector);
+        binary = VectorCodec.toBinary(vector);
+    }
+    
+    @Benchmark
+    public float[] decodeText() {
+        return VectorCodec.fromText(text);
+    }
+    
+    @Benchmark
+    public float[] decodeBinary() {
+        return VectorCodec.fromBinary(binary);
+    }
+    
+    @Benchmark
+    public String encodeText() {
+        return VectorCodec.toText(vector);
+    }
+    
+    @Benchmark
+    public byte[] encodeBinary() {
+        return VectorCodec.toBinary(vector);
+    }
+}